@@ -0,0 +1,648 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+
+/**
+ * Crash recovery for the canvas. On every autosave tick the event thread
+ * hands the writer thread the ops painted since the previous tick; after an
+ * undo, or once enough ops have piled up, it hands over copy-on-write copies
+ * of the layers instead and the writer appends only the tiles that differ
+ * from the ones it wrote last. Layers are known by an id that stays the same
+ * while they are reordered, so a change to the stack only costs a record of
+ * the new order and properties. Records go to an append-only journal, each
+ * with a checksum so a record torn by a crash is recognised and dropped.
+ * <p>
+ * The journal is fsynced in batches rather than per record, and once it has
+ * grown to twice the size of a full checkpoint it is rewritten in the
+ * background as one checkpoint and renamed over the old journal. Replaying
+ * the records in order rebuilds the layers, imported image and shapes.
+ * Shapes are written whole, as their ops, on ticks where the scene changed.
+ * <p>
+ * -Dartstudio.autosave.seconds sets the tick (default 5; 0 turns autosave off),
+ * -Dartstudio.autosave.syncSeconds the fsync batch (default 30) and
+ * -Dartstudio.autosave.file the journal (default ~/.artstudio/autosave.journal).
+ */
+public class AutosaveJournal {
+
+    private static final int MAGIC = 0x4153414a; // "ASAJ"
+    private static final int VERSION = 2;
+    private static final byte LAYERS = 1, TILE = 2, OPS = 3, IMAGE = 4, SHAPES = 5;
+    private static final int VISIBLE = 1, TRANSPARENT = 2;
+    private static final int OPS_PER_CHECKPOINT = 256 * 1024; // Op bytes after which tiles are cheaper to replay
+    private static final long COMPACT_MIN_BYTES = 8 * 1024 * 1024;
+
+    private final Path file;
+    private final long syncNanos;
+    private final FileChannel lockChannel; // A separate file, since compaction replaces the journal
+    private final FileLock lock;
+    private final ExecutorService writer;
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    // Event thread side
+    private final ByteArrayOutputStream pendingOps = new ByteArrayOutputStream();
+    private final DataOutputStream opOut = new DataOutputStream(pendingOps);
+    private Layer opsLayer; // The layer pendingOps were painted on
+    private boolean resync; // The canvas changed in a way the pending ops do not describe
+    private LayerStack lastLayers;
+    private int lastModCount;
+    private final Map<Layer, Integer> layerIds = new IdentityHashMap<>();
+    private int nextLayerId;
+    private PlacedImage lastImage;
+    private ShapeScene lastShapes;
+    private int lastShapesModCount;
+    private volatile boolean compactRequested;
+
+    // Writer thread side
+    private FileChannel out;
+    private long length, checkpointLength;
+    private long lastSync;
+    private boolean unsynced;
+    private Map<Integer, WeakReference<?>[]> writtenTiles = new HashMap<>(); // Tile objects the journal holds
+                                                                               // now, by layer id and position
+    private final ArrayDeque<long[]> written = new ArrayDeque<>(); // {time, bytes} per append, last minute only
+
+    private AutosaveJournal(Path file, long syncNanos, FileChannel lockChannel, FileLock lock, FileChannel out) {
+        this.file = file;
+        this.syncNanos = syncNanos;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.out = out;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "AutosaveJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The tick in milliseconds, or 0 if autosave is off.
+    public static int getIntervalMillis() {
+        return (int) (Double.parseDouble(System.getProperty("artstudio.autosave.seconds", "5")) * 1000);
+    }
+
+    // Opens and locks the journal. Returns null if another instance holds it.
+    public static AutosaveJournal open() throws IOException {
+        String name = System.getProperty("artstudio.autosave.file");
+        Path file = name != null ? Paths.get(name)
+                : Paths.get(System.getProperty("user.home"), ".artstudio", "autosave.journal");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            return null;
+        }
+        FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long syncNanos = (long) (Double.parseDouble(System.getProperty("artstudio.autosave.syncSeconds", "30")) * 1e9);
+        return new AutosaveJournal(file, syncNanos, lockChannel, lock, out);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // What the journal left by the last session rebuilds to, or null if it holds nothing worth recovering.
+    // Call before the first tick, which starts the journal over.
+    public Recovery recover() throws IOException {
+        Recovery recovery = replay(new BufferedInputStream(Channels.newInputStream(out.position(0))));
+        return recovery != null && !recovery.isEmpty() ? recovery : null;
+    }
+
+    // Called on the event thread for every op as it is painted on a layer.
+    public void record(Layer layer, CanvasOp op) {
+        if (layer != opsLayer && pendingOps.size() > 0) {
+            resync(); // One layer's ops per tick; painting on another is rare enough to cost a tile pass
+        }
+        opsLayer = layer;
+        if (resync) {
+            return; // The next tick writes tiles anyway
+        }
+        try {
+            op.write(opOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory does not fail
+        }
+    }
+
+    // The canvas changed without ops, as undo does; the next tick writes the changed tiles instead.
+    public void resync() {
+        resync = true;
+        pendingOps.reset();
+    }
+
+    // One tick, on the event thread. Costs at most a copy of each layer's tile array; everything else is on
+    // the writer.
+    // Image is the imported image as placed, or null; the writer renders it when it has changed.
+    public void tick(LayerStack layers, ShapeScene shapes, PlacedImage image) {
+        if (!writing.compareAndSet(false, true)) {
+            return; // Still writing the last tick; the ops wait for the next one
+        }
+        boolean newDocument = layers != lastLayers;
+        boolean compact = compactRequested;
+        boolean resyncing = newDocument || compact || resync || pendingOps.size() > OPS_PER_CHECKPOINT;
+        boolean structure = resyncing || layers.getModCount() != lastModCount;
+        boolean imageChanged = newDocument || compact || image != lastImage; // Its placement is part of it
+        List<Shape> shapeList = newDocument || compact || shapes != lastShapes
+                || shapes.getModCount() != lastShapesModCount ? shapes.snapshot() : null; // Only when changed
+        if (newDocument) {
+            layerIds.clear();
+        }
+        int known = nextLayerId;
+        Snapshot snapshot = structure ? new Snapshot(layers, layerIds(layers)) : null;
+        boolean tiles = resyncing || nextLayerId != known; // A new layer's tiles already hold the pending ops
+        byte[] ops = !tiles && pendingOps.size() > 0 && layerIds.containsKey(opsLayer) ? opsRecord() : null;
+        pendingOps.reset();
+        resync = false;
+        compactRequested = false;
+        lastLayers = layers;
+        lastModCount = layers.getModCount();
+        lastImage = image;
+        lastShapes = shapes;
+        lastShapesModCount = shapes.getModCount();
+        writer.submit(() -> {
+            try {
+                if (compact) {
+                    compact(snapshot, image, shapeList);
+                } else {
+                    append(snapshot, tiles, newDocument, ops, imageChanged, image, shapeList);
+                }
+                syncIfDue();
+            } catch (IOException e) {
+                e.printStackTrace();
+                compactRequested = true; // Replay stops at a torn record, so start over with a full checkpoint
+            } finally {
+                writing.set(false);
+            }
+        });
+    }
+
+    // Bytes appended during the last minute, compactions included.
+    public synchronized long getBytesPerMinute() {
+        trimWritten(System.nanoTime());
+        long bytes = 0;
+        for (long[] entry : written) {
+            bytes += entry[1];
+        }
+        return bytes;
+    }
+
+    // Stops autosaving; waits briefly for the write in progress. A clean exit deletes the journal.
+    public void close(boolean delete) {
+        writer.submit(() -> {
+            try {
+                if (unsynced) {
+                    out.force(false);
+                }
+                if (delete) {
+                    out.truncate(0);
+                    Files.deleteIfExists(file);
+                }
+                out.close();
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The pending ops behind the id of the layer they were painted on.
+    private byte[] opsRecord() {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(pendingOps.size() + 4);
+        try {
+            new DataOutputStream(record).writeInt(layerIds.get(opsLayer));
+            pendingOps.writeTo(record);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory does not fail
+        }
+        return record.toByteArray();
+    }
+
+    // The id of every layer in the stack, giving new layers the next free one, and forgetting removed layers.
+    private int[] layerIds(LayerStack layers) {
+        int[] ids = new int[layers.size()];
+        Map<Layer, Integer> current = new IdentityHashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            Layer layer = layers.get(i);
+            Integer id = layerIds.get(layer);
+            ids[i] = id != null ? id : nextLayerId++;
+            current.put(layer, ids[i]);
+        }
+        layerIds.clear();
+        layerIds.putAll(current);
+        return ids;
+    }
+
+    // Runs on the writer thread. Snapshot is null when the stack did not change; tiles says whether to write
+    // its changed tiles or only its order and properties. Shapes is null when the scene did not change.
+    private void append(Snapshot snapshot, boolean tiles, boolean newDocument, byte[] ops, boolean imageChanged,
+            PlacedImage image, List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        if (length == 0) {
+            out.truncate(0);
+            DataOutputStream header = new DataOutputStream(records);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+        }
+        if (snapshot != null) {
+            writeLayers(records, snapshot, tiles, newDocument);
+        }
+        if (ops != null) {
+            writeRecord(records, OPS, ops);
+        }
+        if (imageChanged) {
+            writeRecord(records, IMAGE, encodeImage(image));
+        }
+        if (shapes != null) {
+            writeRecord(records, SHAPES, encodeShapes(shapes));
+        }
+        if (records.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        while (buffer.hasRemaining()) {
+            length += out.write(buffer, length);
+        }
+        if (newDocument || checkpointLength == 0) {
+            checkpointLength = records.size();
+        }
+        unsynced = true;
+        count(records.size());
+        if (length > Math.max(COMPACT_MIN_BYTES, 2 * checkpointLength)) {
+            compactRequested = true; // The next tick sends a full copy
+        }
+    }
+
+    // The stack's order and properties, then, if asked, the tiles that differ from the ones the journal holds.
+    // Layers the journal has not seen yet, and every layer of a new document, write all their painted tiles.
+    private void writeLayers(ByteArrayOutputStream records, Snapshot snapshot, boolean tiles, boolean full)
+            throws IOException {
+        ByteArrayOutputStream stack = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(stack);
+        data.writeInt(snapshot.width);
+        data.writeInt(snapshot.height);
+        data.writeBoolean(full);
+        data.writeInt(snapshot.active);
+        data.writeInt(snapshot.layers.length);
+        for (int l = 0; l < snapshot.layers.length; l++) {
+            Layer layer = snapshot.layers[l];
+            data.writeInt(snapshot.ids[l]);
+            data.writeUTF(layer.getName());
+            data.writeFloat(layer.getOpacity());
+            data.writeByte((layer.isVisible() ? VISIBLE : 0) | (layer.getSurface().isTransparent() ? TRANSPARENT : 0));
+            data.writeByte(layer.getBlendMode().ordinal());
+        }
+        writeRecord(records, LAYERS, stack.toByteArray());
+        Map<Integer, WeakReference<?>[]> written = new HashMap<>();
+        for (int l = 0; l < snapshot.layers.length; l++) {
+            WeakReference<?>[] previous = full ? null : writtenTiles.get(snapshot.ids[l]);
+            written.put(snapshot.ids[l], tiles || previous == null
+                    ? writeTiles(records, snapshot.ids[l], snapshot.layers[l].getSurface(), previous) : previous);
+        }
+        writtenTiles = written; // Drops removed layers
+    }
+
+    // Tiles of one layer that differ from the ones the journal holds, or every painted tile if it holds none.
+    private WeakReference<?>[] writeTiles(ByteArrayOutputStream records, int id, TiledSurface copy,
+            WeakReference<?>[] previous) throws IOException {
+        BufferedImage[] tiles = copy.snapshot();
+        WeakReference<?>[] written = previous != null ? previous : new WeakReference<?>[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            BufferedImage tile = tiles[i];
+            if (previous != null && written[i] != null && written[i].get() == tile) {
+                continue;
+            }
+            written[i] = new WeakReference<>(tile); // Null stays null: the tile as opened from a project
+            boolean blank = tile != null && TiledSurface.isBlank(tile);
+            if (previous == null && blank) {
+                continue; // A layer starts out blank
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(record);
+            data.writeInt(id);
+            data.writeInt(i);
+            if (!blank) {
+                data.write(TiledSurface.deflate(tile != null ? tile : copy.shareTile(i)));
+            }
+            writeRecord(records, TILE, record.toByteArray());
+        }
+        return written;
+    }
+
+    // Writes the whole document into a new journal and renames it over the old one.
+    private void compact(Snapshot snapshot, PlacedImage image, List<Shape> shapes) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+        FileChannel compacted = null;
+        try {
+            compacted = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel previous = out;
+            long previousLength = length;
+            out = compacted;
+            length = 0;
+            try {
+                append(snapshot, true, true, null, true, image, shapes);
+                compacted.force(false);
+            } catch (IOException e) {
+                out = previous;
+                length = previousLength;
+                throw e;
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            unsynced = false;
+            lastSync = System.nanoTime();
+            previous.close();
+            compacted = null; // Now the journal
+        } finally {
+            if (compacted != null) {
+                compacted.close();
+            }
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private void syncIfDue() throws IOException {
+        long now = System.nanoTime();
+        if (unsynced && now - lastSync >= syncNanos) {
+            out.force(false);
+            unsynced = false;
+            lastSync = now;
+        }
+    }
+
+    private synchronized void count(long bytes) {
+        long now = System.nanoTime();
+        written.addLast(new long[] { now, bytes });
+        trimWritten(now);
+    }
+
+    private void trimWritten(long now) {
+        while (!written.isEmpty() && now - written.peekFirst()[0] > TimeUnit.MINUTES.toNanos(1)) {
+            written.removeFirst();
+        }
+    }
+
+    // Replays records until the end or the first torn one.
+    static Recovery replay(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        Recovery recovery = null;
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte type;
+            byte[] payload;
+            try {
+                type = in.readByte();
+                int size = in.readInt();
+                if (size < 0 || size > Integer.MAX_VALUE - 8) {
+                    break;
+                }
+                payload = new byte[size];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            if (type == LAYERS) {
+                recovery = readLayers(data, recovery);
+            } else if (recovery == null) {
+                continue; // Nothing to apply it to
+            } else if (type == TILE) {
+                TiledSurface surface = recovery.surfaces.get(data.readInt());
+                int index = data.readInt();
+                if (surface != null) {
+                    surface.setTile(index, payload.length == 8 ? surface.getBlankTile()
+                            : TiledSurface.inflate(ByteBuffer.wrap(payload, 8, payload.length - 8)));
+                }
+            } else if (type == OPS) {
+                TiledSurface surface = recovery.surfaces.get(data.readInt());
+                while (surface != null && data.available() > 0) {
+                    CanvasOp op = CanvasOp.read(data);
+                    surface.apply(op, surface.bounds(op));
+                }
+            } else if (type == IMAGE) {
+                if (payload.length == 0) {
+                    recovery.image = null;
+                    recovery.imageBounds = null;
+                } else {
+                    recovery.imageBounds = new Rectangle(data.readInt(), data.readInt(), data.readInt(),
+                            data.readInt());
+                    BufferedImage image = ImageIO.read(data);
+                    recovery.image = image != null ? DecodedImageCache.toDisplayFormat(image) : null;
+                }
+            } else if (type == SHAPES) {
+                List<CanvasOp> shapes = new ArrayList<>();
+                while (data.available() > 0) {
+                    shapes.add(CanvasOp.read(data));
+                }
+                recovery.shapes = shapes;
+            }
+        }
+        return recovery;
+    }
+
+    // The stack as a LAYERS record describes it, keeping the pixels of layers it already knows unless the
+    // record starts a new document.
+    private static Recovery readLayers(DataInputStream data, Recovery previous) throws IOException {
+        int width = data.readInt();
+        int height = data.readInt();
+        boolean full = data.readBoolean();
+        Recovery recovery = new Recovery(width, height, data.readInt());
+        if (previous != null) {
+            recovery.image = previous.image;
+            recovery.imageBounds = previous.imageBounds;
+            recovery.shapes = previous.shapes;
+        }
+        int count = data.readInt();
+        for (int l = 0; l < count; l++) {
+            int id = data.readInt();
+            String name = data.readUTF();
+            float opacity = data.readFloat();
+            int flags = data.readByte();
+            int mode = data.readByte();
+            TiledSurface surface = full || previous == null ? null : previous.surfaces.get(id);
+            if (surface == null) {
+                surface = new TiledSurface(width, height, (flags & TRANSPARENT) != 0);
+            }
+            Layer layer = new Layer(name, surface);
+            layer.setProperties(name, opacity, (flags & VISIBLE) != 0,
+                    BlendMode.values()[Math.max(0, Math.min(mode, BlendMode.values().length - 1))]);
+            recovery.surfaces.put(id, surface);
+            recovery.layers.add(layer);
+        }
+        return recovery;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte type, byte[] payload) throws IOException {
+        DataOutputStream out = new DataOutputStream(records);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Renders the image here, on the writer thread.
+    private static byte[] encodeImage(PlacedImage image) throws IOException {
+        if (image == null) {
+            return new byte[0];
+        }
+        Rectangle bounds = image.getBounds();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeInt(bounds.x);
+        data.writeInt(bounds.y);
+        data.writeInt(bounds.width);
+        data.writeInt(bounds.height);
+        PngEncoder encoder = new PngEncoder();
+        encoder.setCompressionLevel(1);
+        encoder.write(PixelSource.of(image.render()), Channels.newChannel(record));
+        return record.toByteArray();
+    }
+
+    // The shapes' ops bottom first, as CanvasOp writes them; no shapes is an empty record.
+    private static byte[] encodeShapes(List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(record);
+        for (Shape shape : shapes) {
+            shape.toOp().write(data);
+        }
+        return record.toByteArray();
+    }
+
+    // What a tick hands the writer: copy-on-write copies of the layers, bottom first, with their ids.
+    private static final class Snapshot {
+        final int width, height, active;
+        final Layer[] layers;
+        final int[] ids;
+
+        Snapshot(LayerStack stack, int[] ids) {
+            this.width = stack.getWidth();
+            this.height = stack.getHeight();
+            this.active = stack.getActiveIndex();
+            this.layers = new Layer[stack.size()];
+            for (int i = 0; i < layers.length; i++) {
+                layers[i] = stack.get(i).copy();
+            }
+            this.ids = ids;
+        }
+    }
+
+    // The document as the journal last recorded it.
+    public static final class Recovery {
+        private final int width, height, active;
+        private final List<Layer> layers = new ArrayList<>();
+        private final Map<Integer, TiledSurface> surfaces = new HashMap<>(); // By layer id
+        private BufferedImage image;
+        private Rectangle imageBounds;
+        private List<CanvasOp> shapes = List.of(); // SHAPE ops, bottom first
+
+        private Recovery(int width, int height, int active) {
+            this.width = width;
+            this.height = height;
+            this.active = active;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        // A new stack over the recovered layers each call.
+        public LayerStack getLayers() {
+            LayerStack stack = new LayerStack(layers.get(0));
+            for (int i = 1; i < layers.size(); i++) {
+                stack.add(i, layers.get(i));
+            }
+            stack.setActive(Math.max(0, Math.min(active, layers.size() - 1)));
+            return stack;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public Rectangle getImageBounds() {
+            return imageBounds;
+        }
+
+        public List<CanvasOp> getShapes() {
+            return shapes;
+        }
+
+        boolean isEmpty() {
+            for (Layer layer : layers) {
+                if (layer.getSurface().getAllocatedTileCount() > 0) {
+                    return false;
+                }
+            }
+            return image == null && shapes.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command-line renderer for {@link CanvasScript} files. Runs headless and
+ * renders many documents at once on a fixed pool of worker threads.
+ * <p>
+ * Usage: java BatchRenderer [options] script...
+ * <pre>
+ *   -o dir        where the PNGs go (default: next to each script)
+ *   -size WxH     fit each render into a WxH thumbnail
+ *   -threads n    worker threads (default: one per processor)
+ *   -binary       convert JSON lines scripts to the binary .asop form instead of rendering
+ * </pre>
+ * Exits with status 1 if any script failed.
+ */
+public class BatchRenderer {
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        File outputDir = null;
+        int thumbWidth = 0, thumbHeight = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean binary = false;
+        List<File> scripts = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-o":
+                        outputDir = new File(args[++i]);
+                        break;
+                    case "-size":
+                        String[] size = args[++i].split("x");
+                        thumbWidth = Integer.parseInt(size[0]);
+                        thumbHeight = Integer.parseInt(size[1]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-binary":
+                        binary = true;
+                        break;
+                    default:
+                        scripts.add(new File(args[i]));
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            scripts.clear();
+        }
+        if (scripts.isEmpty() || threads < 1) {
+            System.err.println("Usage: java BatchRenderer [-o dir] [-size WxH] [-threads n] [-binary] script...");
+            System.exit(2);
+        }
+        if (outputDir != null) {
+            outputDir.mkdirs();
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<File>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (File script : scripts) {
+            File target = new File(outputDir != null ? outputDir : script.getAbsoluteFile().getParentFile(),
+                    baseName(script) + (binary ? ".asop" : ".png"));
+            int width = thumbWidth, height = thumbHeight;
+            boolean convert = binary;
+            results.add(workers.submit(() -> {
+                if (convert) {
+                    convert(script, target);
+                } else {
+                    render(script, target, width, height);
+                }
+                return target;
+            }));
+        }
+        workers.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                System.out.println(results.get(i).get().getPath());
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(scripts.get(i).getPath() + ": " + e.getCause().getMessage());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d of %d scripts in %.2f s on %d threads (%.0f per hour)%n", scripts.size() - failed,
+                scripts.size(), seconds, threads, (scripts.size() - failed) * 3600 / seconds);
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    // Renders one script to a PNG, scaled down to fit width x height when those are set.
+    public static void render(File script, File target, int width, int height) throws IOException {
+        TiledSurface surface;
+        try (InputStream in = new FileInputStream(script)) {
+            surface = CanvasScript.render(in);
+        }
+        PixelSource pixels = width > 0 && height > 0 ? PixelSource.of(thumbnail(surface, width, height)) : surface;
+        new PngEncoder().write(pixels, target.toPath());
+    }
+
+    private static void convert(File script, File target) throws IOException {
+        int[] size = new int[2];
+        List<CanvasOp> ops;
+        try (InputStream in = new FileInputStream(script)) {
+            ops = CanvasScript.readJson(in, size);
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            CanvasScript.writeBinary(out, size[0], size[1], ops);
+        }
+    }
+
+    // Fits the document into the box, drawing from the pyramid level nearest the thumbnail scale.
+    private static BufferedImage thumbnail(TiledSurface surface, int maxWidth, int maxHeight) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / surface.getWidth(),
+                (double) maxHeight / surface.getHeight()));
+        int width = Math.max(1, (int) Math.round(surface.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(surface.getHeight() * scale));
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.scale((double) width / surface.getWidth(), (double) height / surface.getHeight());
+        MipmapPyramid pyramid = new MipmapPyramid(surface);
+        int level = pyramid.levelFor(scale);
+        Rectangle all = new Rectangle(0, 0, surface.getWidth(), surface.getHeight());
+        if (level == 0) {
+            surface.drawTo(g, all);
+        } else {
+            pyramid.draw(g, level, all);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
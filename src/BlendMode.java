@@ -0,0 +1,98 @@
+/**
+ * How a layer's colours combine with the layers below it. Blending follows
+ * the separable modes of the W3C compositing spec: the mode mixes source and
+ * backdrop colour where both are opaque, and the result is then composited
+ * source-over with the layer's alpha times its opacity.
+ */
+public enum BlendMode {
+
+    NORMAL {
+        @Override
+        float blend(float source, float backdrop) {
+            return source;
+        }
+    },
+    MULTIPLY {
+        @Override
+        float blend(float source, float backdrop) {
+            return source * backdrop;
+        }
+    },
+    SCREEN {
+        @Override
+        float blend(float source, float backdrop) {
+            return source + backdrop - source * backdrop;
+        }
+    },
+    OVERLAY {
+        @Override
+        float blend(float source, float backdrop) {
+            return backdrop <= 0.5f ? 2 * source * backdrop
+                    : SCREEN.blend(source, 2 * backdrop - 1);
+        }
+    },
+    DARKEN {
+        @Override
+        float blend(float source, float backdrop) {
+            return Math.min(source, backdrop);
+        }
+    },
+    LIGHTEN {
+        @Override
+        float blend(float source, float backdrop) {
+            return Math.max(source, backdrop);
+        }
+    },
+    DIFFERENCE {
+        @Override
+        float blend(float source, float backdrop) {
+            return Math.abs(source - backdrop);
+        }
+    },
+    ADD {
+        @Override
+        float blend(float source, float backdrop) {
+            return Math.min(1, source + backdrop);
+        }
+    };
+
+    // One colour channel, both in 0..1.
+    abstract float blend(float source, float backdrop);
+
+    // Composites count ARGB pixels of source onto backdrop, in place. Neither is premultiplied.
+    public void composite(int[] source, int[] backdrop, int count, float opacity) {
+        if (this == NORMAL) {
+            PixelKernels.get().blend(source, backdrop, 0, count, opacity); // Plain source-over needs no mixing
+            return;
+        }
+        int opacity256 = Math.round(opacity * 256);
+        for (int i = 0; i < count; i++) {
+            int s = source[i];
+            int sa = ((s >>> 24) * opacity256) >> 8;
+            if (sa == 0) {
+                continue;
+            }
+            int d = backdrop[i];
+            int da = d >>> 24;
+            if (da == 0) {
+                backdrop[i] = (sa << 24) | (s & 0xffffff);
+                continue;
+            }
+            float as = sa / 255f;
+            float ad = da / 255f;
+            float ao = as + ad * (1 - as);
+            int r = channel(s >> 16, d >> 16, as, ad, ao);
+            int g = channel(s >> 8, d >> 8, as, ad, ao);
+            int b = channel(s, d, as, ad, ao);
+            backdrop[i] = (Math.round(ao * 255) << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private int channel(int source, int backdrop, float as, float ad, float ao) {
+        float cs = (source & 0xff) / 255f;
+        float cb = (backdrop & 0xff) / 255f;
+        float mixed = (1 - ad) * cs + ad * blend(cs, cb);
+        float co = (as * mixed + ad * (1 - as) * cb) / ao;
+        return Math.min(255, Math.max(0, Math.round(co * 255)));
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+
+/**
+ * Writes PNG exports on a background thread. The file is encoded into a
+ * temporary file next to the target and renamed over it only once complete,
+ * so a failed or cancelled save never leaves a half-written image behind.
+ * Cancel through the returned future.
+ */
+public class CanvasExporter {
+
+    // Every method is called on the event thread.
+    public interface Listener {
+        void progress(int rowsWritten, int height);
+
+        void finished(Path file);
+
+        void failed(IOException e);
+
+        void cancelled();
+    }
+
+    private static final ExecutorService exporter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "CanvasExporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The pixels must not change while the export runs; pass a frozen copy such as TiledSurface.copy().
+    public static Future<?> export(PixelSource pixels, PngEncoder encoder, Path target, Listener listener) {
+        return exporter.submit(() -> {
+            Path temp = null;
+            try {
+                Path directory = target.toAbsolutePath().getParent();
+                temp = Files.createTempFile(directory, "." + target.getFileName(), ".tmp");
+                encoder.setProgressListener((rows, height) -> SwingUtilities.invokeLater(
+                        () -> listener.progress(rows, height)));
+                encoder.write(pixels, temp);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                temp = null;
+                SwingUtilities.invokeLater(() -> listener.finished(target));
+            } catch (InterruptedIOException | ClosedByInterruptException e) {
+                SwingUtilities.invokeLater(listener::cancelled);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> listener.failed(e));
+            } finally {
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,61 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Undo/redo model for the canvas. Every op is reported through
+ * {@link #record(CanvasOp, Rectangle)} before it is painted, and
+ * {@link #commit()} closes the ops reported so far into one undoable edit.
+ */
+public interface CanvasHistory {
+
+    // Starts a new history on the surface; its current pixels are the oldest state.
+    void reset(TiledSurface surface);
+
+    // Called before the op is painted; area is where it will paint.
+    void record(CanvasOp op, Rectangle area);
+
+    // Returns false if nothing was recorded since the last commit.
+    boolean commit();
+
+    // Returns the area that changed, or null if there is nothing to undo.
+    Rectangle undo();
+
+    // Returns the area that changed, or null if there is nothing to redo.
+    Rectangle redo();
+
+    long getHistoryBytes();
+
+    // How many bytes full snapshots or raw tiles would need per byte actually stored.
+    double getCompressionRatio();
+
+    // The oldest state and the ops of every edit up to the current one, for saving with a project. Null if
+    // this model cannot be saved.
+    default Saved save() {
+        return null;
+    }
+
+    // Starts from a saved history; the surface must already show the state after its last edit.
+    default void load(TiledSurface surface, Saved saved) throws IOException {
+        reset(surface);
+    }
+
+    // History as stored in a project: tiles of the oldest state, then each edit's ops in CanvasOp's wire format.
+    final class Saved {
+        private final BufferedImage[] base;
+        private final byte[][] edits;
+
+        public Saved(BufferedImage[] base, byte[][] edits) {
+            this.base = base;
+            this.edits = edits;
+        }
+
+        public BufferedImage[] getBase() {
+            return base;
+        }
+
+        public byte[][] getEdits() {
+            return edits;
+        }
+    }
+}
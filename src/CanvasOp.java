@@ -0,0 +1,338 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One raster edit on the canvas: a brush segment or polyline, an eraser dab,
+ * a shape outline, a piece of text, a clear or a filter over a region. Ops
+ * carry everything they need to be drawn again, so the same op can be
+ * painted live and replayed from a journal.
+ */
+public class CanvasOp {
+
+    public static final byte LINE = 1;
+    public static final byte ERASE = 2;
+    public static final byte SHAPE = 3;
+    public static final byte TEXT = 4;
+    public static final byte CLEAR = 5;
+    public static final byte POLYLINE = 6;
+    public static final byte FILTER = 7;
+
+    // Shape names as used by DrawingCanvas.setDrawingShape; the index is the wire code.
+    static final String[] SHAPES = { "Rectangle", "Circle", "Square", "Triangle", "Star", "Pentagon", "Hexagon" };
+    static final int MAX_CORNERS = 10; // Room corners() needs
+
+    final byte type;
+    final int argb;
+    final float width; // Stroke width, or the eraser diameter
+    final int x1, y1, x2, y2;
+    final byte shape; // Index into SHAPES for SHAPE ops
+    final String text; // Only for TEXT ops
+    final int[] xs, ys; // Only for POLYLINE ops
+    final ImageFilter filter; // Only for FILTER ops
+
+    private CanvasOp(byte type, int argb, float width, int x1, int y1, int x2, int y2, byte shape, String text) {
+        this(type, argb, width, x1, y1, x2, y2, shape, text, null, null, null);
+    }
+
+    private CanvasOp(byte type, int argb, float width, int x1, int y1, int x2, int y2, byte shape, String text,
+            int[] xs, int[] ys, ImageFilter filter) {
+        this.type = type;
+        this.argb = argb;
+        this.width = width;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        this.shape = shape;
+        this.text = text;
+        this.xs = xs;
+        this.ys = ys;
+        this.filter = filter;
+    }
+
+    public static CanvasOp line(Color color, float width, int x1, int y1, int x2, int y2) {
+        return new CanvasOp(LINE, color.getRGB(), width, x1, y1, x2, y2, (byte) 0, null);
+    }
+
+    // Copies the first count points, so callers can reuse their arrays.
+    public static CanvasOp polyline(Color color, float width, int[] xs, int[] ys, int count) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        return new CanvasOp(POLYLINE, color.getRGB(), width, minX, minY, maxX, maxY, (byte) 0, null,
+                Arrays.copyOf(xs, count), Arrays.copyOf(ys, count), null);
+    }
+
+    public static CanvasOp erase(int diameter, int x, int y) {
+        return new CanvasOp(ERASE, Color.WHITE.getRGB(), diameter, x, y, x, y, (byte) 0, null);
+    }
+
+    // Returns null for shape names the canvas does not know, which draw nothing.
+    public static CanvasOp shape(String shapeName, Color color, float width, int startX, int startY, int endX,
+            int endY) {
+        for (int i = 0; i < SHAPES.length; i++) {
+            if (SHAPES[i].equals(shapeName)) {
+                return new CanvasOp(SHAPE, color.getRGB(), width, startX, startY, endX, endY, (byte) i, null);
+            }
+        }
+        return null;
+    }
+
+    public static CanvasOp text(String text, Color color, int x, int y) {
+        return new CanvasOp(TEXT, color.getRGB(), 1, x, y, x, y, (byte) 0, text);
+    }
+
+    public static CanvasOp clear(int width, int height) {
+        return new CanvasOp(CLEAR, Color.WHITE.getRGB(), 0, 0, 0, width, height, (byte) 0, null);
+    }
+
+    // Filters the pixels under region; TiledSurface runs it, since it reads the pixels it replaces.
+    public static CanvasOp filter(ImageFilter filter, Rectangle region) {
+        return new CanvasOp(FILTER, 0, 0, region.x, region.y, region.width, region.height, (byte) 0, null, null,
+                null, filter);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public ImageFilter getFilter() {
+        return filter;
+    }
+
+    // Area the op paints, including stroke width. The graphics context is only used for font metrics.
+    public Rectangle bounds(Graphics2D g) {
+        Rectangle area;
+        switch (type) {
+            case LINE:
+                area = new Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+                break;
+            case POLYLINE: // (x1, y1) and (x2, y2) hold the corners of the point bounds
+                area = new Rectangle(x1, y1, x2 - x1, y2 - y1);
+                break;
+            case ERASE:
+                int d = (int) width;
+                return new Rectangle(x1 - d / 2 - 1, y1 - d / 2 - 1, d + 2, d + 2);
+            case SHAPE:
+                area = outline().getBounds();
+                break;
+            case TEXT:
+                FontMetrics metrics = g.getFontMetrics();
+                area = new Rectangle(x1, y1 - metrics.getAscent(), metrics.stringWidth(text),
+                        metrics.getAscent() + metrics.getDescent());
+                break;
+            default:
+                return new Rectangle(x1, y1, x2, y2);
+        }
+        int pad = (int) Math.ceil(width / 2) + 2; // Stroke width and antialiasing spill past the geometry
+        area.grow(pad, pad);
+        return area;
+    }
+
+    public void apply(Graphics2D g) {
+        g.setColor(new Color(argb, true));
+        switch (type) {
+            case LINE:
+                g.setStroke(new BasicStroke(width));
+                g.drawLine(x1, y1, x2, y2);
+                break;
+            case POLYLINE: // Round joins so one polyline looks like the segments it replaces
+                g.setStroke(new BasicStroke(width, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND));
+                g.drawPolyline(xs, ys, xs.length);
+                break;
+            case ERASE:
+                int d = (int) width;
+                g.fillOval(x1 - d / 2, y1 - d / 2, d, d);
+                break;
+            case SHAPE:
+                g.setStroke(new BasicStroke(width));
+                g.draw(outline());
+                break;
+            case TEXT:
+                g.drawString(text, x1, y1);
+                break;
+            case CLEAR:
+                g.fillRect(x1, y1, x2, y2);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Geometry of a SHAPE op; (x1, y1) is where the drag started and (x2, y2) where it ended.
+    java.awt.Shape outline() {
+        int width = Math.abs(x2 - x1);
+        int height = Math.abs(y2 - y1);
+        switch (SHAPES[shape]) {
+            case "Rectangle":
+                return new Rectangle(Math.min(x1, x2), Math.min(y1, y2), width, height);
+            case "Circle":
+                int diameter = Math.max(width, height);
+                return new Ellipse2D.Float(Math.min(x1, x2), Math.min(y1, y2), diameter, diameter);
+            case "Square":
+                int sideLength = Math.min(width, height);
+                return new Rectangle(Math.min(x1, x2), Math.min(y1, y2), sideLength, sideLength);
+            default:
+                int[] xPoints = new int[MAX_CORNERS];
+                int[] yPoints = new int[MAX_CORNERS];
+                return new Polygon(xPoints, yPoints, corners(shape, x1, y1, x2, y2, xPoints, yPoints));
+        }
+    }
+
+    // Corners of a triangle, star, pentagon or hexagon dragged from (x1, y1) to (x2, y2) into xPoints and
+    // yPoints; returns how many, or 0 for the other shapes.
+    static int corners(int shape, int x1, int y1, int x2, int y2, int[] xPoints, int[] yPoints) {
+        int width = Math.abs(x2 - x1);
+        int height = Math.abs(y2 - y1);
+        switch (SHAPES[shape]) {
+            case "Triangle":
+                xPoints[0] = x1;
+                xPoints[1] = x2;
+                xPoints[2] = (x1 + x2) / 2;
+                yPoints[0] = y1;
+                yPoints[1] = y1;
+                yPoints[2] = y1 - width;
+                return 3;
+            case "Star":
+                return star(x1, y1, width, xPoints, yPoints);
+            case "Pentagon":
+                return regularPolygon(x1, y1, Math.max(width, height), 5, -Math.PI / 10, xPoints, yPoints);
+            case "Hexagon":
+                return regularPolygon(x1, y1, Math.max(width, height), 6, -Math.PI / 12, xPoints, yPoints);
+            default:
+                return 0;
+        }
+    }
+
+    private static int star(int centerX, int centerY, int size, int[] xPoints, int[] yPoints) {
+        for (int i = 0; i < 10; i++) {
+            double angle = i * Math.PI / 5;
+            double radius = (i % 2 == 0) ? size : size / 2.5;
+            xPoints[i] = centerX + (int) (Math.cos(angle) * radius);
+            yPoints[i] = centerY - (int) (Math.sin(angle) * radius);
+        }
+        return 10;
+    }
+
+    // Pentagon and hexagon; the offset turns the polygon so it sits the way the toolbar icons do.
+    private static int regularPolygon(int centerX, int centerY, int size, int sides, double offset, int[] xPoints,
+            int[] yPoints) {
+        for (int i = 0; i < sides; i++) {
+            double angle = i * 2 * Math.PI / sides + offset;
+            xPoints[i] = centerX + (int) (Math.cos(angle) * size);
+            yPoints[i] = centerY + (int) (Math.sin(angle) * size);
+        }
+        return sides;
+    }
+
+    /*
+     * Wire format: type byte, then ARGB int, width float and four int
+     * coordinates; SHAPE adds the shape byte, TEXT adds a UTF string and
+     * POLYLINE adds a point count and zig-zag varint deltas between points;
+ * FILTER adds the filter's own wire format.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeInt(argb);
+        out.writeFloat(width);
+        out.writeInt(x1);
+        out.writeInt(y1);
+        out.writeInt(x2);
+        out.writeInt(y2);
+        if (type == SHAPE) {
+            out.writeByte(shape);
+        } else if (type == TEXT) {
+            out.writeUTF(text);
+        } else if (type == POLYLINE) {
+            writeVarint(out, xs.length);
+            int x = x1, y = y1;
+            for (int i = 0; i < xs.length; i++) {
+                writeVarint(out, zigZag(xs[i] - x));
+                writeVarint(out, zigZag(ys[i] - y));
+                x = xs[i];
+                y = ys[i];
+            }
+        } else if (type == FILTER) {
+            filter.write(out);
+        }
+    }
+
+    public static CanvasOp read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type < LINE || type > FILTER) {
+            throw new IOException("Unknown canvas op " + type);
+        }
+        int argb = in.readInt();
+        float width = in.readFloat();
+        int x1 = in.readInt();
+        int y1 = in.readInt();
+        int x2 = in.readInt();
+        int y2 = in.readInt();
+        byte shape = 0;
+        String text = null;
+        if (type == SHAPE) {
+            shape = in.readByte();
+            if (shape < 0 || shape >= SHAPES.length) {
+                throw new IOException("Unknown shape " + shape);
+            }
+        } else if (type == TEXT) {
+            text = in.readUTF();
+        } else if (type == POLYLINE) {
+            int count = readVarint(in);
+            int[] xs = new int[count];
+            int[] ys = new int[count];
+            int x = x1, y = y1;
+            for (int i = 0; i < count; i++) {
+                x += unZigZag(readVarint(in));
+                y += unZigZag(readVarint(in));
+                xs[i] = x;
+                ys[i] = y;
+            }
+            return new CanvasOp(type, argb, width, x1, y1, x2, y2, shape, null, xs, ys, null);
+        } else if (type == FILTER) {
+            return new CanvasOp(type, argb, width, x1, y1, x2, y2, shape, null, null, null, ImageFilter.read(in));
+        }
+        return new CanvasOp(type, argb, width, x1, y1, x2, y2, shape, text);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
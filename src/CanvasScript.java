@@ -0,0 +1,374 @@
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads drawing scripts and renders them onto a {@link TiledSurface} without
+ * any Swing component, so artwork can be produced under
+ * java.awt.headless=true.
+ * <p>
+ * Two forms are accepted. The binary form is the magic "ASOP", a version
+ * int, width and height ints, then {@link CanvasOp} records up to the end of
+ * the stream. The JSON lines form is one flat object per line. An optional
+ * first line gives the size, and every other line is an op:
+ * <pre>
+ * {"width": 800, "height": 600}
+ * {"op": "line", "color": "#ff0000", "width": 5, "x1": 10, "y1": 10, "x2": 200, "y2": 80}
+ * {"op": "polyline", "color": "#000000", "width": 3, "points": [10, 10, 20, 15, 30, 12]}
+ * {"op": "erase", "size": 20, "x": 50, "y": 50}
+ * {"op": "shape", "shape": "Star", "color": "#0000ff", "width": 2, "x1": 300, "y1": 300, "x2": 360, "y2": 300}
+ * {"op": "text", "text": "Hello", "color": "#000000", "x": 40, "y": 500}
+ * {"op": "clear"}
+ * </pre>
+ * Colours are #rrggbb or #aarrggbb; shape names are the ones the toolbar uses.
+ */
+public class CanvasScript {
+
+    private static final int MAGIC = 0x41534f50; // "ASOP"
+    private static final int VERSION = 1;
+    private static final int DEFAULT_WIDTH = 800, DEFAULT_HEIGHT = 600;
+
+    // Renders a script in either form, streaming ops onto the surface as they are read.
+    public static TiledSurface render(InputStream input) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(input);
+        in.mark(4);
+        byte[] head = in.readNBytes(4);
+        in.reset();
+        if (head.length == 4 && ((head[0] & 0xff) << 24 | (head[1] & 0xff) << 16 | (head[2] & 0xff) << 8
+                | (head[3] & 0xff)) == MAGIC) {
+            return renderBinary(new DataInputStream(in));
+        }
+        return renderJson(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    // Writes ops in the binary form, which is several times smaller than JSON and needs no parsing.
+    public static void writeBinary(OutputStream output, int width, int height, Iterable<CanvasOp> ops)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        for (CanvasOp op : ops) {
+            op.write(out);
+        }
+        out.flush();
+    }
+
+    // Reads a JSON lines script into its size and ops, for converting it to the binary form.
+    public static List<CanvasOp> readJson(InputStream input, int[] size) throws IOException {
+        List<CanvasOp> ops = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        size[0] = DEFAULT_WIDTH;
+        size[1] = DEFAULT_HEIGHT;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            Map<String, Object> fields = parseLine(line, lineNumber);
+            if (!fields.containsKey("op")) {
+                if (!ops.isEmpty()) {
+                    throw new IOException("Line " + lineNumber + ": canvas size must come before any op");
+                }
+                size[0] = intField(fields, "width", lineNumber);
+                size[1] = intField(fields, "height", lineNumber);
+                continue;
+            }
+            ops.add(toOp(fields, lineNumber));
+        }
+        return ops;
+    }
+
+    private static TiledSurface renderBinary(DataInputStream in) throws IOException {
+        in.readInt(); // Magic, already checked
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported script version " + version);
+        }
+        TiledSurface surface = newSurface(in.readInt(), in.readInt());
+        int count = 0;
+        while (true) {
+            in.mark(1);
+            if (in.read() < 0) {
+                return surface; // The script may only end between ops
+            }
+            in.reset();
+            CanvasOp op;
+            try {
+                op = CanvasOp.read(in);
+            } catch (EOFException e) {
+                throw new IOException("Script is truncated inside op " + (count + 1), e);
+            }
+            surface.apply(op, surface.bounds(op));
+            count++;
+        }
+    }
+
+    private static TiledSurface renderJson(BufferedReader reader) throws IOException {
+        TiledSurface surface = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            Map<String, Object> fields = parseLine(line, lineNumber);
+            if (!fields.containsKey("op")) {
+                if (surface != null) {
+                    throw new IOException("Line " + lineNumber + ": canvas size must come before any op");
+                }
+                surface = newSurface(intField(fields, "width", lineNumber), intField(fields, "height", lineNumber));
+                continue;
+            }
+            if (surface == null) {
+                surface = newSurface(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+            }
+            CanvasOp op = toOp(fields, lineNumber);
+            surface.apply(op, surface.bounds(op));
+        }
+        return surface != null ? surface : newSurface(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
+    private static TiledSurface newSurface(int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Bad canvas size " + width + "x" + height);
+        }
+        return new TiledSurface(width, height);
+    }
+
+    private static CanvasOp toOp(Map<String, Object> fields, int line) throws IOException {
+        String type = stringField(fields, "op", line);
+        switch (type) {
+            case "line":
+                return CanvasOp.line(colorField(fields, line), floatField(fields, "width", line),
+                        intField(fields, "x1", line), intField(fields, "y1", line), intField(fields, "x2", line),
+                        intField(fields, "y2", line));
+            case "polyline":
+                if (!(fields.get("points") instanceof List)) {
+                    throw new IOException("Line " + line + ": polyline needs a points array");
+                }
+                List<?> points = (List<?>) fields.get("points");
+                if (points.size() < 2 || points.size() % 2 != 0) {
+                    throw new IOException("Line " + line + ": points must be x, y pairs");
+                }
+                int[] xs = new int[points.size() / 2];
+                int[] ys = new int[points.size() / 2];
+                for (int i = 0; i < xs.length; i++) {
+                    xs[i] = ((Number) points.get(2 * i)).intValue();
+                    ys[i] = ((Number) points.get(2 * i + 1)).intValue();
+                }
+                return CanvasOp.polyline(colorField(fields, line), floatField(fields, "width", line), xs, ys,
+                        xs.length);
+            case "erase":
+                return CanvasOp.erase(intField(fields, "size", line), intField(fields, "x", line),
+                        intField(fields, "y", line));
+            case "shape":
+                CanvasOp shape = CanvasOp.shape(stringField(fields, "shape", line), colorField(fields, line),
+                        floatField(fields, "width", line), intField(fields, "x1", line), intField(fields, "y1", line),
+                        intField(fields, "x2", line), intField(fields, "y2", line));
+                if (shape == null) {
+                    throw new IOException("Line " + line + ": unknown shape " + fields.get("shape"));
+                }
+                return shape;
+            case "text":
+                return CanvasOp.text(stringField(fields, "text", line), colorField(fields, line),
+                        intField(fields, "x", line), intField(fields, "y", line));
+            case "clear":
+                return CanvasOp.clear(Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2); // Clipped to the surface
+            default:
+                throw new IOException("Line " + line + ": unknown op " + type);
+        }
+    }
+
+    private static int intField(Map<String, Object> fields, String name, int line) throws IOException {
+        return number(fields, name, line).intValue();
+    }
+
+    private static float floatField(Map<String, Object> fields, String name, int line) throws IOException {
+        return number(fields, name, line).floatValue();
+    }
+
+    private static Number number(Map<String, Object> fields, String name, int line) throws IOException {
+        Object value = fields.get(name);
+        if (!(value instanceof Number)) {
+            throw new IOException("Line " + line + ": " + name + " must be a number");
+        }
+        return (Number) value;
+    }
+
+    private static String stringField(Map<String, Object> fields, String name, int line) throws IOException {
+        Object value = fields.get(name);
+        if (!(value instanceof String)) {
+            throw new IOException("Line " + line + ": " + name + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static Color colorField(Map<String, Object> fields, int line) throws IOException {
+        String value = stringField(fields, "color", line);
+        try {
+            if (value.startsWith("#") && value.length() == 7) {
+                return new Color(Integer.parseInt(value.substring(1), 16));
+            } else if (value.startsWith("#") && value.length() == 9) {
+                return new Color((int) Long.parseLong(value.substring(1), 16), true);
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Line " + line + ": bad colour " + value);
+    }
+
+    /* ======================JSON=========================== */
+
+    // Parses one flat object whose values are numbers, strings or arrays of numbers.
+    private static Map<String, Object> parseLine(String line, int lineNumber) throws IOException {
+        JsonCursor cursor = new JsonCursor(line, lineNumber);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        cursor.expect('{');
+        if (!cursor.consume('}')) {
+            do {
+                String key = cursor.string();
+                cursor.expect(':');
+                fields.put(key, cursor.value());
+            } while (cursor.consume(','));
+            cursor.expect('}');
+        }
+        cursor.end();
+        return fields;
+    }
+
+    private static class JsonCursor {
+        private final String text;
+        private final int line;
+        private int pos;
+
+        JsonCursor(String text, int line) {
+            this.text = text;
+            this.line = line;
+        }
+
+        Object value() throws IOException {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                return string();
+            }
+            if (consume('[')) {
+                List<Object> items = new ArrayList<>();
+                if (!consume(']')) {
+                    do {
+                        items.add(number());
+                    } while (consume(','));
+                    expect(']');
+                }
+                return items;
+            }
+            return number();
+        }
+
+        Number number() throws IOException {
+            skipSpace();
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String digits = text.substring(start, pos);
+            try {
+                double value = Double.parseDouble(digits);
+                return value == Math.rint(value) && Math.abs(value) <= Integer.MAX_VALUE ? (Number) (int) value
+                        : (Number) value;
+            } catch (NumberFormatException e) {
+                throw error("expected a value");
+            }
+        }
+
+        String string() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("bad escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad escape");
+                        }
+                        pos += 4;
+                        break;
+                    default: // \" \\ \/ and the rest stand for themselves
+                        value.append(escaped);
+                        break;
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        boolean consume(char c) {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws IOException {
+            if (!consume(c)) {
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        void end() throws IOException {
+            skipSpace();
+            if (pos != text.length()) {
+                throw error("unexpected text after object");
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException("Line " + line + ", column " + (pos + 1) + ": " + message);
+        }
+    }
+}
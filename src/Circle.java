@@ -1,11 +1,16 @@
 import java.awt.Color;
 
 public class Circle extends Shape{
-    
+
     public Circle(int x, int y, int w , int h, Color c , int f){
         super(x, y ,w, h ,c);
+        store.type[handle] = ShapeStore.CIRCLE;
         if(f == 1){
-            isFilled = true;
+            store.flags[handle] |= ShapeStore.FILLED;
         }
     }
+
+    Circle(ShapeStore store, int handle){
+        super(store, handle);
+    }
 }
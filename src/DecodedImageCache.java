@@ -0,0 +1,176 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Process-wide cache of decoded images, so importing the same file again
+ * skips the decode. Entries are keyed by canonical path, file length and
+ * modification time, plus the region and size they were decoded at, so an
+ * edited file is never served stale. Images are stored already converted to
+ * the screen's pixel format.
+ * <p>
+ * Entries are held strongly up to a byte budget
+ * (-Dartstudio.imageCache.budgetMB, default 256) in least recently used
+ * order. Entries pushed out of the budget are kept through soft references,
+ * so the collector can take them back under heap pressure. Cached images are
+ * shared and must not be drawn into.
+ */
+public class DecodedImageCache {
+
+    private static final DecodedImageCache shared = new DecodedImageCache(
+            Long.getLong("artstudio.imageCache.budgetMB", 256) * 1024 * 1024);
+
+    private final long byteBudget;
+    private final LinkedHashMap<Key, BufferedImage> strong = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final Map<Key, SoftReference<BufferedImage>> soft = new LinkedHashMap<>();
+    private long bytes;
+    private long hits, misses, evictions;
+
+    public DecodedImageCache(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    public static DecodedImageCache shared() {
+        return shared;
+    }
+
+    // Identifies one decode of a file as it is on disk now.
+    public static Key key(File file, Rectangle region, int width, int height) throws IOException {
+        return new Key(file.getCanonicalPath(), file.length(), file.lastModified(), new Rectangle(region), width,
+                height);
+    }
+
+    public synchronized BufferedImage get(Key key) {
+        BufferedImage image = strong.get(key);
+        if (image == null) {
+            SoftReference<BufferedImage> reference = soft.remove(key);
+            image = reference != null ? reference.get() : null;
+            if (image != null) {
+                add(key, image); // Still there after all; back under the budget
+            }
+        }
+        if (image != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return image;
+    }
+
+    public synchronized void put(Key key, BufferedImage image) {
+        soft.remove(key);
+        BufferedImage old = strong.remove(key);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        add(key, image);
+    }
+
+    public synchronized void clear() {
+        strong.clear();
+        soft.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    // Entries pushed out of the byte budget, whether or not their soft copy survived.
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void add(Key key, BufferedImage image) {
+        strong.put(key, image);
+        bytes += sizeOf(image);
+        Iterator<Map.Entry<Key, BufferedImage>> eldest = strong.entrySet().iterator();
+        while (bytes > byteBudget && strong.size() > 1 && eldest.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = eldest.next();
+            eldest.remove();
+            bytes -= sizeOf(entry.getValue());
+            soft.put(entry.getKey(), new SoftReference<>(entry.getValue()));
+            evictions++;
+        }
+        soft.values().removeIf(reference -> reference.get() == null); // Drop the ones the collector took
+    }
+
+    // Copy in the pixel layout the screen blits fastest; integer ARGB or RGB when there is no screen.
+    public static BufferedImage toDisplayFormat(BufferedImage image) {
+        boolean opaque = image.getTransparency() == Transparency.OPAQUE;
+        BufferedImage converted;
+        if (!GraphicsEnvironment.isHeadless()) {
+            GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration();
+            if (image.getColorModel().equals(gc.getColorModel(image.getTransparency()))) {
+                return image;
+            }
+            converted = gc.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+        } else {
+            int type = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+            if (image.getType() == type) {
+                return image;
+            }
+            converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        }
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    public static final class Key {
+        private final String path;
+        private final long length, modified;
+        private final Rectangle region;
+        private final int width, height;
+
+        private Key(String path, long length, long modified, Rectangle region, int width, int height) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.region = region;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return path.equals(other.path) && length == other.length && modified == other.modified
+                    && region.equals(other.region) && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, modified, region, width, height);
+        }
+    }
+}
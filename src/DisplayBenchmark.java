@@ -0,0 +1,100 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Frame time of painting the canvas straight from its tiles and the scaled
+ * loaded image, against blitting it from a {@link DisplayCache}. Run it on a
+ * desktop to measure the default pipeline with a VolatileImage. Headless runs
+ * measure the software pipeline and the managed-image fallback.
+ * <p>
+ * Usage: java DisplayBenchmark [width] [height] [frames]
+ */
+public class DisplayBenchmark {
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1600;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        GraphicsConfiguration gc = GraphicsEnvironment.isHeadless() ? null
+                : GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        TiledSurface surface = new TiledSurface(width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            CanvasOp op = CanvasOp.line(new Color(random.nextInt(0xffffff)), 5, x, y, x + random.nextInt(81) - 40,
+                    y + random.nextInt(81) - 40);
+            surface.apply(op, surface.bounds(op));
+        }
+        BufferedImage photo = new BufferedImage(4000, 3000, BufferedImage.TYPE_3BYTE_BGR); // What ImageIO gives a JPEG
+        Graphics2D pg = photo.createGraphics();
+        for (int i = 0; i < 500; i++) {
+            pg.setColor(new Color(random.nextInt(0xffffff)));
+            pg.fillOval(random.nextInt(4000), random.nextInt(3000), 300, 300);
+        }
+        pg.dispose();
+        Rectangle photoArea = new Rectangle(100, 100, width * 3 / 4, height * 3 / 4);
+        DisplayCache.Renderer renderer = (g, area) -> {
+            surface.drawTo(g, area);
+            g.drawImage(photo, photoArea.x, photoArea.y, photoArea.width, photoArea.height, null);
+        };
+
+        Image target = gc != null ? gc.createCompatibleVolatileImage(width, height, Transparency.OPAQUE)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); // Stand-in for the Swing back buffer
+        Rectangle all = new Rectangle(0, 0, width, height);
+        DisplayCache cache = new DisplayCache();
+
+        System.out.printf("%dx%d, %d frames, %s%n", width, height, frames,
+                gc == null ? "headless software pipeline" : gc.getClass().getSimpleName());
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            long direct = time(target, frames, g -> {
+                g.setClip(all);
+                renderer.render(g, all);
+            });
+            long cached = time(target, frames, g -> cache.paint(g, gc, width, height, all, renderer, Color.WHITE));
+            Rectangle dab = new Rectangle(0, 0, 64, 64);
+            long dabbed = time(target, frames, g -> {
+                dab.setLocation(random.nextInt(width - 64), random.nextInt(height - 64));
+                cache.invalidate(dab);
+                cache.paint(g, gc, width, height, dab, renderer, Color.WHITE);
+            });
+            if (report) {
+                System.out.printf("cache accelerated: %b%n", cache.isAccelerated());
+                print("direct full frame", direct, frames);
+                print("cached full frame", cached, frames);
+                print("cached 64x64 damage", dabbed, frames);
+            }
+        }
+    }
+
+    private interface Frame {
+        void paint(Graphics2D g);
+    }
+
+    private static long time(Image target, int frames, Frame frame) {
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            Graphics2D g = (Graphics2D) target.getGraphics();
+            frame.paint(g);
+            g.dispose();
+            if (!GraphicsEnvironment.isHeadless()) {
+                Toolkit.getDefaultToolkit().sync(); // Count the GPU work, not just queuing it
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void print(String name, long nanos, int frames) {
+        System.out.printf("%-22s %8.3f ms/frame%n", name, nanos / 1e6 / frames);
+    }
+}
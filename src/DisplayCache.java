@@ -0,0 +1,130 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+/**
+ * What the canvas shows, kept in component pixels so a repaint is one blit.
+ * On an accelerated pipeline the copy lives in a {@link VolatileImage};
+ * otherwise it is a compatible managed image. Only the areas passed to
+ * {@link #invalidate(Rectangle)} are rendered again, unless the surface was
+ * lost or the component changed size.
+ * <p>
+ * -Dartstudio.display=volatile, managed or direct forces a mode; direct skips
+ * the cache and renders every paint, as the canvas did before.
+ */
+public class DisplayCache {
+
+    // Draws the cached content for the given area of the component.
+    public interface Renderer {
+        void render(Graphics2D g, Rectangle area);
+    }
+
+    private static final String MODE = System.getProperty("artstudio.display", "auto");
+
+    private VolatileImage volatileImage;
+    private BufferedImage managedImage;
+    private GraphicsConfiguration configuration; // What the current image was created for
+    private int width, height;
+    private Rectangle dirty; // Component area that no longer matches the content; null if none
+
+    public void invalidate(Rectangle area) {
+        if (area != null && !area.isEmpty()) {
+            dirty = dirty == null ? new Rectangle(area) : dirty.union(area);
+        }
+    }
+
+    public void invalidateAll() {
+        dirty = new Rectangle(0, 0, width, height);
+    }
+
+    // True while the copy sits in video memory, which is what this cache is for.
+    public boolean isAccelerated() {
+        return volatileImage != null && volatileImage.getCapabilities().isAccelerated();
+    }
+
+    // Brings the dirty part of the copy up to date, then copies the clip onto g.
+    public void paint(Graphics2D g, GraphicsConfiguration gc, int width, int height, Rectangle clip,
+            Renderer renderer, Color background) {
+        if ("direct".equals(MODE) || width <= 0 || height <= 0) {
+            renderer.render(g, clip);
+            return;
+        }
+        if (width != this.width || height != this.height || gc != configuration) {
+            flush();
+            this.width = width;
+            this.height = height;
+            this.configuration = gc;
+        }
+        if (useVolatile(gc)) {
+            do {
+                if (volatileImage == null) {
+                    volatileImage = gc.createCompatibleVolatileImage(width, height, Transparency.OPAQUE);
+                    invalidateAll();
+                }
+                int status = volatileImage.validate(gc);
+                if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    volatileImage.flush();
+                    volatileImage = gc.createCompatibleVolatileImage(width, height, Transparency.OPAQUE);
+                    invalidateAll();
+                } else if (status == VolatileImage.IMAGE_RESTORED) {
+                    invalidateAll(); // Surface came back empty
+                }
+                refresh(volatileImage, renderer, background);
+                blit(g, volatileImage, clip);
+            } while (volatileImage.contentsLost());
+        } else {
+            if (managedImage == null) {
+                managedImage = gc != null ? gc.createCompatibleImage(width, height, Transparency.OPAQUE)
+                        : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                invalidateAll();
+            }
+            refresh(managedImage, renderer, background);
+            blit(g, managedImage, clip);
+        }
+    }
+
+    // Releases the copy; the next paint renders everything again.
+    public void flush() {
+        if (volatileImage != null) {
+            volatileImage.flush();
+            volatileImage = null;
+        }
+        managedImage = null;
+        dirty = null;
+    }
+
+    // The software pipeline gains nothing from a VolatileImage, so it gets the managed image.
+    private boolean useVolatile(GraphicsConfiguration gc) {
+        if (gc == null || "managed".equals(MODE)) {
+            return false;
+        }
+        return "volatile".equals(MODE) || gc.getImageCapabilities().isAccelerated();
+    }
+
+    private void refresh(Image image, Renderer renderer, Color background) {
+        if (dirty == null) {
+            return;
+        }
+        Rectangle area = dirty.intersection(new Rectangle(0, 0, width, height));
+        dirty = null;
+        if (area.isEmpty()) {
+            return;
+        }
+        Graphics2D g = (Graphics2D) image.getGraphics();
+        g.clip(area);
+        g.setColor(background);
+        g.fillRect(area.x, area.y, area.width, area.height);
+        renderer.render(g, area);
+        g.dispose();
+    }
+
+    private static void blit(Graphics2D g, Image image, Rectangle clip) {
+        g.drawImage(image, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, clip.x, clip.y,
+                clip.x + clip.width, clip.y + clip.height, null);
+    }
+}
@@ -3,9 +3,17 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import javax.swing.*;
 
 public class DrawingCanvas extends JPanel {
@@ -22,37 +30,91 @@ public class DrawingCanvas extends JPanel {
     private boolean isCroppingImage = false; // Flag for cropping the image
     private boolean isAddingText = false; // Flag for adding text mode
     private boolean isBrushDrawing = true; // Flag for brush drawing mode
+    private boolean isSelectingShape = false; // Flag for selecting and moving shapes
 
     /* ======================FLAGS=========================== */
     private String currentShape = "Rectangle"; // Current shape type
     private int lastX, lastY; // Last mouse coordinates
     private int brushWidth = 5; // Default brush width
-    private Image canvasImage; // Image for the canvas
-    private Graphics2D g2d; // Graphics context for drawing
+    private float strokeWidth = 1; // Stroke for brush and shapes; follows the slider once it moves
+    private LayerStack layers; // The document; null until the canvas is initialized
+    private TiledSurface canvasSurface; // The active layer's pixels, tiled and allocated on first write
 
     /* ======================Image Handling=========================== */
     private ImageHandler imageHandler = new ImageHandler();
+    private Consumer<IOException> imageErrors = e -> { }; // Told when the image fails to decode; set by addImage
+
+    /* ======================Shapes=========================== */
+    private ShapeScene shapes; // Drawn over the layers; replaced with the document
+    private Shape selectedShape; // Only while selecting shapes
+    private int grabX, grabY; // Where in the selected shape the pointer holds it
+    private int selectedFromX, selectedFromY; // Where the selected shape was when the drag started
 
     /* ======================Zoom Handling=========================== */
     private double zoomLevel = 1.0; // Default zoom level
+    private MipmapPyramid canvasPyramid; // Reduced copies of the canvas for zooming out
+    private MipmapPyramid imagePyramid; // Same for the loaded image; rebuilt when the image changes
+    private BufferedImage pyramidImage; // Image imagePyramid was built from
+    private final DisplayCache displayCache = new DisplayCache(); // Canvas as shown, in component pixels
+
+    /* ======================Saving=========================== */
+    private long saveBlockedNanos; // Event thread time spent starting the last asynchronous save
+    private static final boolean PROJECT_HISTORY = !"false".equals(System.getProperty("artstudio.project.history"));
+    private ProjectFile project; // File the document was opened from or last saved to as a project
+    private static final ExecutorService projectWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ProjectWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Told on the event thread how a project save ended.
+    public interface ProjectListener {
+        void saved(Path file, long fileLength);
+
+        void failed(IOException e);
+    }
 
     /* ======================Text Handling=========================== */
     private String currentText = "";
     private int textX, textY; // Coordinates for text positioning
 
     /* ======================Canvas History=========================== */
-    private List<Image> canvasHistory = new ArrayList<>();
-    private int currentHistoryIndex = -1;
+    private static final long HISTORY_BUDGET = Long.getLong("artstudio.history.budgetMB", 64) * 1024 * 1024;
+    private static final int HISTORY_DEPTH = Integer.getInteger("artstudio.history.depth", 100);
+    private static final int KEYFRAME_INTERVAL = Integer.getInteger("artstudio.history.keyframeOps", 1000);
+    private CanvasHistory canvasHistory; // The active layer's
+    private final Deque<Object> undoLayers = new ArrayDeque<>(); // Layer or ShapeScene of each edit, latest first
+    private final Deque<Object> redoLayers = new ArrayDeque<>();
+
+    /* ======================Autosave=========================== */
+    private AutosaveJournal autosave; // Null when autosave is off or another instance owns the journal
+    private Timer autosaveTimer;
+
+    /* ======================Damage Tracking=========================== */
+    private static final int FRAME_MILLIS = 16; // One flush per display frame at 60 Hz
+    private Rectangle damage; // Canvas area painted since the last flush, in canvas coordinates
+    private final Timer damageTimer = new Timer(FRAME_MILLIS, e -> flushDamage());
+
+    /* ======================Stroke Input=========================== */
+    private static final int STROKE_TICK_MILLIS = 8; // Rasterize queued brush points at about 120 Hz
+    private final StrokeBuffer strokeBuffer = new StrokeBuffer(1024);
+    private final Timer strokeTimer = new Timer(STROKE_TICK_MILLIS, e -> flushStroke());
+    private final int[] strokeXs = new int[strokeBuffer.capacity() + 1]; // +1 for the point the polyline starts at
+    private final int[] strokeYs = new int[strokeBuffer.capacity() + 1];
 
     public DrawingCanvas() {
         setBackground(Color.WHITE);
         setDoubleBuffered(true);
+        damageTimer.setRepeats(false);
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
                 lastX = e.getX();
                 lastY = e.getY();
+                if (isSelectingShape) {
+                    selectShape(e.getX(), e.getY());
+                }
                 if (isEraserActive) {
                     erase(lastX, lastY);
                 }
@@ -80,15 +142,28 @@ public class DrawingCanvas extends JPanel {
                 if (isDrawingShape) {
                     drawShape(e.getX(), e.getY()); // Draw shape at the end point when released
                 } else if (isCroppingImage) {
+                    Rectangle before = imageBounds();
                     imageHandler.setCropEnd(e.getX(), e.getY());
                     imageHandler.performCrop(); // Perform cropping when mouse is released.
+                    addDamage(before.union(imageBounds()));
                 } else if (isBrushDrawing && !(isEraserActive || isDrawingShape || isDraggingImage || isResizingImage
                         || isCroppingImage)) {
-                    draw(e.getX(), e.getY()); // Draw at the end point when released
+                    queueStrokePoint(e.getX(), e.getY()); // Draw at the end point when released
+                    flushStroke();
+                }
+                strokeTimer.stop();
+                if (selectedShape != null && shapes.moved(selectedShape, selectedFromX, selectedFromY)) {
+                    shapesEdited();
                 }
 
                 saveCanvasState();
 
+                if (isResizingImage) {
+                    finishResize(); // May decode the file again at the final size
+                }
+                if (isDraggingImage || isResizingImage) {
+                    addDamage(imageBounds()); // Drop the red outline
+                }
                 isDraggingImage = false; // Stop dragging
                 isResizingImage = false; // Stop resizing
             }
@@ -100,22 +175,23 @@ public class DrawingCanvas extends JPanel {
                 if (isEraserActive) {
                     erase(e.getX(), e.getY());
                 } else if (isDrawingShape) {
+                } else if (isSelectingShape) {
+                    dragShape(e.getX(), e.getY());
                 } else if (isDraggingImage) {
+                    Rectangle before = imageBounds();
                     imageHandler.repositionImage(e.getX(), e.getY());
+                    addDamage(before.union(imageBounds()));
                 } else if (isResizingImage) {
+                    Rectangle before = imageBounds();
                     imageHandler.resizeImage(e.getX(), e.getY());
+                    addDamage(before.union(imageBounds()));
                 } else if (isAddingText) {
                     textX = e.getX();
                     textY = e.getY();
                     repaint();
                 } else if (isBrushDrawing) {
-                    draw(e.getX(), e.getY());
-                    lastX = e.getX();
-                    lastY = e.getY();
-
+                    queueStrokePoint(e.getX(), e.getY()); // Drawn on the next stroke tick
                 }
-
-                repaint();
             }
         });
     }
@@ -124,16 +200,21 @@ public class DrawingCanvas extends JPanel {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
-        AffineTransform originalTransform = g2d.getTransform();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        displayCache.paint(g2d, getGraphicsConfiguration(), getWidth(), getHeight(), clip, this::renderContent,
+                getBackground());
 
+        AffineTransform originalTransform = g2d.getTransform(); // Overlays are drawn live, never cached
         g2d.scale(zoomLevel, zoomLevel);
-
-        if (canvasImage != null) {
-            g2d.drawImage(canvasImage, 0, 0, null);
+        if (selectedShape != null) {
+            Rectangle outline = selectedShape.getBounds();
+            g2d.setColor(Color.BLUE);
+            g2d.drawRect(outline.x, outline.y, outline.width, outline.height);
         }
         if (imageHandler.getLoadedImage() != null) {
-            g2d.drawImage(imageHandler.getLoadedImage(), imageHandler.getImageX(), imageHandler.getImageY(),
-                    imageHandler.getImageWidth(), imageHandler.getImageHeight(), null);
             if (isDraggingImage || isResizingImage) {
                 g2d.setColor(Color.RED);
                 g2d.drawRect(imageHandler.getImageX(), imageHandler.getImageY(), imageHandler.getImageWidth(),
@@ -148,23 +229,103 @@ public class DrawingCanvas extends JPanel {
                 g2d.setColor(currentColor);
                 g2d.drawString(currentText, textX, textY);
             }
+            if (imageHandler.isLoading()) { // Decode progress along the bottom of the placeholder
+                int barY = imageHandler.getImageY() + imageHandler.getImageHeight() - 4;
+                g2d.setColor(Color.DARK_GRAY);
+                g2d.fillRect(imageHandler.getImageX(), barY,
+                        imageHandler.getImageWidth() * imageHandler.getLoadProgress() / 100, 4);
+            }
         }
-
         g2d.setTransform(originalTransform);
     }
 
+    // Canvas and loaded image for an area of the component; this is what the display cache holds.
+    private void renderContent(Graphics2D g2d, Rectangle view) {
+        g2d.scale(zoomLevel, zoomLevel);
+        if (layers != null) {
+            Rectangle area = new Rectangle(0, 0, layers.getWidth(), layers.getHeight());
+            area = area.intersection(toCanvas(view)); // Only draw the tiles this paint covers
+            int level = canvasPyramid.levelFor(zoomLevel);
+            if (level == 0) {
+                layers.drawTo(g2d, area);
+            } else {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                canvasPyramid.draw(g2d, level, area);
+            }
+        }
+        if (imageHandler.getLoadedImage() != null) {
+            drawLoadedImage(g2d);
+        }
+        if (shapes != null) {
+            shapes.drawTo(g2d, toCanvas(view));
+        }
+    }
+
+    // Draws the loaded image through its transform, from the pyramid level that matches its on-screen scale.
+    private void drawLoadedImage(Graphics2D g2d) {
+        BufferedImage image = imageHandler.getLoadedImage();
+        if (imagePyramid == null || pyramidImage != image) { // Loads and filters produce a new image; transforms do not
+            imagePyramid = new MipmapPyramid(PixelSource.of(image));
+            pyramidImage = image;
+        }
+        int level = imagePyramid.levelFor(zoomLevel * imageHandler.getImageScale());
+        AffineTransform canvasTransform = g2d.getTransform();
+        java.awt.Shape canvasClip = g2d.getClip();
+        java.awt.Shape crop = imageHandler.getClip();
+        if (crop != null) {
+            g2d.clip(crop);
+        }
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.transform(imageHandler.getTransform());
+        if (level == 0) {
+            g2d.drawImage(image, 0, 0, null);
+        } else {
+            imagePyramid.draw(g2d, level, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        }
+        g2d.setTransform(canvasTransform);
+        g2d.setClip(canvasClip);
+    }
+
     public void initializeCanvas(int width, int height) {
-        canvasImage = createImage(width, height);
-        g2d = (Graphics2D) canvasImage.getGraphics();
-        clearCanvas(); // Clear canvas initially
+        TiledSurface background = new TiledSurface(Math.max(1, width), Math.max(1, height)); // Starts out all white
+        layers = new LayerStack(newLayer("Background", background)); // The blank canvas is the oldest state
+        activeLayerChanged();
+        canvasPyramid = new MipmapPyramid(layers);
+        shapes = new ShapeScene(HISTORY_DEPTH);
+        selectedShape = null;
+        displayCache.invalidateAll();
+        undoLayers.clear();
+        redoLayers.clear();
+        project = null;
+    }
+
+    // A layer with a history of its own, starting from the surface as it is.
+    private static Layer newLayer(String name, TiledSurface surface) {
+        Layer layer = new Layer(name, surface);
+        layer.setHistory(createHistory());
+        layer.getHistory().reset(surface);
+        return layer;
+    }
+
+    // -Dartstudio.history=tiles keeps touched tiles; the default journals ops between keyframes.
+    private static CanvasHistory createHistory() {
+        if ("tiles".equals(System.getProperty("artstudio.history"))) {
+            return new TileHistory(HISTORY_BUDGET, HISTORY_DEPTH);
+        }
+        return new JournalHistory(KEYFRAME_INTERVAL, HISTORY_DEPTH);
     }
 
     public void clearCanvas() {
-        if (g2d != null) { // Check if g2d is initialized before using it
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, getWidth(), getHeight());
+        if (canvasSurface != null) { // Check if the canvas is initialized before using it
+            paintOp(CanvasOp.clear(canvasSurface.getWidth(), canvasSurface.getHeight()));
+            imageHandler.cancelLoading();
             imageHandler = new ImageHandler(); // Clear loaded image reference.
-            repaint();
+            saveCanvasState();
+            selectedShape = null;
+            if (shapes.clear() != null) {
+                shapesEdited();
+            }
+            repaintAll();
         }
     }
 
@@ -179,12 +340,11 @@ public class DrawingCanvas extends JPanel {
 
     public void setBrushWidth(int width) {
         this.brushWidth = width;
-        if (g2d != null) { // Update stroke width in g2d if initialized
-            g2d.setStroke(new BasicStroke(brushWidth));
-        }
+        this.strokeWidth = width;
     }
 
     public void setDrawingShape(boolean drawingShape, String shapeType) {
+        deselectShapes();
         this.isDrawingShape = drawingShape;
         this.currentShape = shapeType;
 
@@ -196,6 +356,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void activateEraser() {
+        deselectShapes();
         this.isEraserActive = true;
         this.isDrawingShape = false;
         this.isResizingImage = false; // Deactivate resizing when eraser is active.
@@ -205,6 +366,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void setResizingMode(boolean resizingMode) {
+        deselectShapes();
         isResizingImage = resizingMode;
         isDrawingShape = false;
         isDraggingImage = false;
@@ -214,6 +376,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void setDraggingMode(boolean draggingMode) {
+        deselectShapes();
         isDraggingImage = draggingMode;
         isDrawingShape = false;
         isResizingImage = false;
@@ -223,6 +386,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void setCroppingMode(boolean croppingMode) {
+        deselectShapes();
         isCroppingImage = croppingMode;
         isDraggingImage = false;
         isDrawingShape = false;
@@ -232,6 +396,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void setAddingTextMode(boolean addingText) {
+        deselectShapes();
         this.isAddingText = addingText;
         this.isDrawingShape = false;
         this.isResizingImage = false;
@@ -241,6 +406,7 @@ public class DrawingCanvas extends JPanel {
     }
 
     public void setBrushDrawingMode(boolean brushDrawing) {
+        deselectShapes();
         this.isBrushDrawing = brushDrawing;
         this.isDrawingShape = false;
         this.isResizingImage = false;
@@ -249,202 +415,649 @@ public class DrawingCanvas extends JPanel {
         this.isAddingText = false;
     }
 
+    // Picking a shape and dragging it moves it; everything else is off meanwhile.
+    public void setShapeSelectMode(boolean selecting) {
+        deselectShapes();
+        this.isSelectingShape = selecting;
+        this.isDrawingShape = false;
+        this.isResizingImage = false;
+        this.isDraggingImage = false;
+        this.isCroppingImage = false;
+        this.isAddingText = false;
+        this.isBrushDrawing = false;
+        this.isEraserActive = false;
+    }
+
+    private void deselectShapes() {
+        isSelectingShape = false;
+        if (selectedShape != null) {
+            addDamage(selectionBounds(selectedShape));
+            selectedShape = null;
+        }
+    }
+
     public void setCurrentText(String text) {
         this.currentText = text;
     }
 
+    // Adds the dragged-out shape to the scene on top; it stays movable rather than going into the layer.
     private void drawShape(int x, int y) {
-        if (g2d != null) { // Check if g2d is initialized before using it
-            g2d.setColor(currentColor);
-            int width = Math.abs(x - lastX);
-            int height = Math.abs(y - lastY);
-
-            switch (currentShape) {
-                case "Rectangle":
-                    g2d.drawRect(Math.min(lastX, x), Math.min(lastY, y), width, height); // Draw rectangle
-                    break;
-                case "Circle":
-                    int diameter = Math.max(width, height);
-                    g2d.drawOval(Math.min(lastX, x), Math.min(lastY, y), diameter, diameter); // Draw circle
-                    break;
-                case "Square":
-                    int sideLength = Math.min(width, height);
-                    g2d.drawRect(Math.min(lastX, x), Math.min(lastY, y), sideLength, sideLength); // Draw square
-                    break;
-                case "Triangle":
-                    drawTriangle(lastX, lastY, x, y); // Draw triangle using custom method
-                    break;
-                case "Star":
-                    drawStar(lastX, lastY, width); // Draw star using custom method
-                    break;
-                case "Pentagon":
-                    drawPentagon(lastX, lastY, Math.max(width, height)); // Draw pentagon using custom method
-                    break;
-                case "Hexagon":
-                    drawHexagon(lastX, lastY, Math.max(width, height)); // Draw hexagon using custom method
-                    break;
-                default:
-                    break;
-            }
-
-            repaint();
+        Shape shape = Shape.create(currentShape, currentColor, strokeWidth, lastX, lastY, x, y);
+        if (layers != null && shape != null) {
+            addDamage(shapes.add(shape));
+            shapesEdited();
         }
     }
 
-    private void drawTriangle(int x1, int y1, int x2, int y2) {
-        int[] xPoints = { x1, x2, (x1 + x2) / 2 };
-        int[] yPoints = { y1, y1, y1 - Math.abs(x2 - x1) };
-        g2d.drawPolygon(xPoints, yPoints, 3); // Draw triangle as a polygon
+    // Selects the topmost shape under the component point, or nothing.
+    private void selectShape(int viewX, int viewY) {
+        if (shapes == null) {
+            return;
+        }
+        int x = (int) Math.floor(viewX / zoomLevel), y = (int) Math.floor(viewY / zoomLevel);
+        Shape picked = shapes.pick(x, y);
+        if (selectedShape != null) {
+            addDamage(selectionBounds(selectedShape));
+        }
+        selectedShape = picked;
+        if (picked != null) {
+            grabX = x - picked.getX();
+            grabY = y - picked.getY();
+            selectedFromX = picked.getX();
+            selectedFromY = picked.getY();
+            addDamage(selectionBounds(picked));
+        }
     }
 
-    private void drawStar(int centerX, int centerY, int size) {
-        int[] xPoints = new int[10];
-        int[] yPoints = new int[10];
-
-        for (int i = 0; i < 10; i++) {
-            double angle = i * Math.PI / 5;
-            double radius = (i % 2 == 0) ? size : size / 2.5;
-            xPoints[i] = centerX + (int) (Math.cos(angle) * radius);
-            yPoints[i] = centerY - (int) (Math.sin(angle) * radius);
+    // Only the old and new place of the shape are drawn again.
+    private void dragShape(int viewX, int viewY) {
+        if (selectedShape != null) {
+            int x = (int) Math.floor(viewX / zoomLevel), y = (int) Math.floor(viewY / zoomLevel);
+            Rectangle moved = shapes.move(selectedShape, x - grabX, y - grabY);
+            moved.grow(2, 2); // The selection outline
+            addDamage(moved);
         }
+    }
 
-        g2d.drawPolygon(xPoints, yPoints, 10); // Draw star as a polygon
+    // Shape area including the selection outline drawn around it.
+    private static Rectangle selectionBounds(Shape shape) {
+        Rectangle bounds = shape.getBounds();
+        bounds.grow(2, 2);
+        return bounds;
     }
 
-    private void drawPentagon(int centerX, int centerY, int size) {
-        int[] xPoints = new int[5];
-        int[] yPoints = new int[5];
+    // The scene recorded an edit; it is the next thing to undo.
+    private void shapesEdited() {
+        saveCanvasState(); // Ops painted before the shape undo on their own
+        undoLayers.push(shapes);
+        redoLayers.clear();
+        if (undoLayers.size() > HISTORY_DEPTH) {
+            undoLayers.removeLast();
+        }
+    }
 
-        for (int i = 0; i < 5; i++) {
-            double angle = i * 2 * Math.PI / 5 - Math.PI / 10; // Adjust angle for pentagon shape
-            xPoints[i] = centerX + (int) (Math.cos(angle) * size);
-            yPoints[i] = centerY + (int) (Math.sin(angle) * size);
+    private void queueStrokePoint(int x, int y) {
+        if (!strokeBuffer.add(x, y, System.nanoTime())) {
+            flushStroke(); // Ring is full; draw what we have and make room
+            strokeBuffer.add(x, y, System.nanoTime());
         }
+        if (!strokeTimer.isRunning()) {
+            strokeTimer.start();
+        }
+    }
 
-        g2d.drawPolygon(xPoints, yPoints, 5); // Draw pentagon as a polygon
+    // Draws every point queued since the last tick as one polyline from the last drawn point.
+    private void flushStroke() {
+        strokeXs[0] = lastX;
+        strokeYs[0] = lastY;
+        int count = strokeBuffer.drainTo(strokeXs, strokeYs, 1);
+        if (count == 0) {
+            return;
+        }
+        paintOp(CanvasOp.polyline(currentColor, strokeWidth, strokeXs, strokeYs, count + 1));
+        lastX = strokeXs[count];
+        lastY = strokeYs[count];
+        flushDamage(); // The tick is the frame for strokes, so repaint now
     }
 
-    private void drawHexagon(int centerX, int centerY, int size) {
-        int[] xPoints = new int[6];
-        int[] yPoints = new int[6];
+    private void erase(int x, int y) {
+        paintOp(CanvasOp.erase(brushWidth, x, y));
+    }
 
-        for (int i = 0; i < 6; i++) {
-            double angle = i * 2 * Math.PI / 6 - Math.PI / 12; // Adjust angle for hexagon shape
-            xPoints[i] = centerX + (int) (Math.cos(angle) * size);
-            yPoints[i] = centerY + (int) (Math.sin(angle) * size);
+    // Every canvas edit goes through here so history sees it before it is painted.
+    private void paintOp(CanvasOp op) {
+        if (canvasSurface != null && op != null) { // Check if the canvas is initialized before using it
+            Rectangle area = canvasSurface.bounds(op);
+            canvasHistory.record(op, area);
+            if (autosave != null) {
+                autosave.record(layers.getActive(), op);
+            }
+            canvasSurface.apply(op, area);
+            canvasChanged(area);
         }
+    }
 
-        g2d.drawPolygon(xPoints, yPoints, 6); // Draw hexagon as a polygon
+    // Active layer pixels under area changed: drop the composite and reduced copies built from them and repaint.
+    private void canvasChanged(Rectangle area) {
+        layerChanged(layers.getActive(), area);
     }
 
-    private void draw(int x, int y) {
-        if (g2d != null) { // Check if g2d is initialized before using it
-            g2d.setColor(currentColor);
-            g2d.drawLine(lastX, lastY, x, y);
-            repaint();
+    private void layerChanged(Layer layer, Rectangle area) {
+        if (area != null) {
+            layers.invalidate(layer, area);
+            canvasPyramid.invalidate(area);
+            addDamage(area);
         }
     }
 
-    private void erase(int x, int y) {
-        if (g2d != null) { // Check if g2d is initialized before using it
-            g2d.setColor(Color.WHITE);
-            g2d.fillOval(x - brushWidth / 2, y - brushWidth / 2, brushWidth, brushWidth);
-            repaint();
+    // Queues a canvas area for repaint; everything queued within a frame goes out as one repaint.
+    private void addDamage(Rectangle area) {
+        if (area == null || area.isEmpty()) {
+            return;
+        }
+        damage = damage == null ? new Rectangle(area) : damage.union(area);
+        if (!damageTimer.isRunning()) {
+            damageTimer.start();
         }
     }
 
-    // image processing
-    public void addImage(String filePath) throws IOException {
-        imageHandler.addImage(filePath);
-        saveCanvasState();
+    private void flushDamage() {
+        if (damage != null) {
+            Rectangle view = toView(damage);
+            displayCache.invalidate(view);
+            repaint(view);
+            damage = null;
+        }
+    }
+
+    // For changes that can move or rescale everything, such as zoom and image edits.
+    private void repaintAll() {
+        displayCache.invalidateAll();
         repaint();
     }
 
+    // Canvas rectangle to component pixels at the current zoom, rounded outwards.
+    private Rectangle toView(Rectangle area) {
+        int x1 = (int) Math.floor(area.x * zoomLevel) - 1;
+        int y1 = (int) Math.floor(area.y * zoomLevel) - 1;
+        int x2 = (int) Math.ceil((area.x + area.width) * zoomLevel) + 1;
+        int y2 = (int) Math.ceil((area.y + area.height) * zoomLevel) + 1;
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    // Component pixels to the canvas rectangle under them, rounded outwards.
+    private Rectangle toCanvas(Rectangle view) {
+        int x1 = (int) Math.floor(view.x / zoomLevel);
+        int y1 = (int) Math.floor(view.y / zoomLevel);
+        int x2 = (int) Math.ceil((view.x + view.width) / zoomLevel);
+        int y2 = (int) Math.ceil((view.y + view.height) / zoomLevel);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    // Loaded image area including the outline drawn around it while dragging or resizing.
+    private Rectangle imageBounds() {
+        Rectangle bounds = new Rectangle(imageHandler.getImageX(), imageHandler.getImageY(),
+                imageHandler.getImageWidth(), imageHandler.getImageHeight());
+        bounds.grow(2, 2);
+        return bounds;
+    }
+
+    // image processing
+    // Returns at once; the image shows as a placeholder while it decodes, and history records it once done.
+    public void addImage(String filePath, Consumer<IOException> onError) {
+        imageErrors = onError;
+        ImageHandler handler = imageHandler;
+        int width = canvasSurface != null ? canvasSurface.getWidth() : Integer.MAX_VALUE;
+        int height = canvasSurface != null ? canvasSurface.getHeight() : Integer.MAX_VALUE;
+        handler.addImageAsync(filePath, width, height, new ImageHandler.LoadListener() {
+            @Override
+            public void placeholder() {
+                repaintAll();
+            }
+
+            @Override
+            public void progress(int percent) {
+                addDamage(imageBounds()); // Progress bar
+            }
+
+            @Override
+            public void finished() {
+                if (handler == imageHandler) { // Not cleared in the meantime
+                    saveCanvasState();
+                    repaintAll();
+                }
+            }
+
+            @Override
+            public void failed(IOException e) {
+                repaintAll();
+                onError.accept(e);
+            }
+        });
+    }
+
+    // Swaps in sharper pixels from the file when they arrive; history keeps the image as the resize left it.
+    private void finishResize() {
+        ImageHandler handler = imageHandler;
+        handler.finishResize(new ImageHandler.LoadListener() {
+            @Override
+            public void placeholder() {
+            }
+
+            @Override
+            public void progress(int percent) {
+            }
+
+            @Override
+            public void finished() {
+                if (handler == imageHandler) {
+                    addDamage(imageBounds());
+                }
+            }
+
+            @Override
+            public void failed(IOException e) {
+                imageErrors.accept(e);
+            }
+        });
+    }
+
     public void performCrop() {
         imageHandler.performCrop();
-        repaint();
+        repaintAll();
     }
 
     public void resizeImage(int newWidth, int newHeight) {
         imageHandler.resizeImage(newWidth, newHeight);
-        repaint();
+        repaintAll();
     }
 
     public void repositionImage(int newX, int newY) {
         imageHandler.repositionImage(newX, newY);
-        repaint();
+        repaintAll();
     }
 
     public void rotateImageClockwise() {
         imageHandler.rotateImageClockwise();
-        repaint();
+        repaintAll();
     }
 
     public void rotateImageAntiClockwise() {
         imageHandler.rotateImageAntiClockwise();
-        repaint();
+        repaintAll();
+    }
+
+    // Clockwise by any angle; negative turns the other way.
+    public void rotateImage(double degrees) {
+        imageHandler.rotateImage(degrees);
+        repaintAll();
     }
 
     // use save functionality from IMageHandle
     public void saveCanvasAsPNG(String filePath) throws IOException {
-        imageHandler.saveCanvasAsPNG(canvasImage, filePath);
+        imageHandler.saveCanvasAsPNG(layers, shapes != null ? shapes.getShapes() : null, filePath);
+    }
+
+    // Returns once the layers are frozen; flattening, encoding and writing happen on the export thread.
+    public Future<?> saveCanvasAsPNGAsync(String filePath, CanvasExporter.Listener listener) {
+        long start = System.nanoTime();
+        Future<?> save = imageHandler.saveCanvasAsPNGAsync(layers, shapes != null ? shapes.snapshot() : null,
+                filePath, listener);
+        saveBlockedNanos = System.nanoTime() - start;
+        return save;
+    }
+
+    // Saves layers, image and undo history (unless -Dartstudio.project.history=false) as an .artstudio project.
+    // Saving again to the same file only writes what changed since. History is only kept for documents with a
+    // single layer, since undo across layers depends on the order edits were made in. The document is frozen
+    // here and written on the project thread, which also renders the image and deflates the tiles; the
+    // listener hears how it went.
+    public Future<?> saveProject(String filePath, ProjectListener listener) throws IOException {
+        if (imageHandler.isLoading()) {
+            throw new IOException("The image is still loading");
+        }
+        Path path = new File(filePath).toPath();
+        saveCanvasState();
+        CanvasHistory.Saved history = PROJECT_HISTORY && layers.size() == 1 ? canvasHistory.save() : null;
+        LayerStack frozen = layers.copy();
+        List<TiledSurface> surfaces = new ArrayList<>();
+        for (Layer layer : layers.getLayers()) {
+            surfaces.add(layer.getSurface());
+        }
+        PlacedImage image = imageHandler.getPlacedImage();
+        List<CanvasOp> shapeOps = shapes.toOps();
+        boolean sameSize = project != null && project.getWidth() == layers.getWidth()
+                && project.getHeight() == layers.getHeight();
+        boolean saveAs = sameSize && !project.getPath().toAbsolutePath().equals(path.toAbsolutePath());
+        if (!sameSize) {
+            project = new ProjectFile(path, layers.getWidth(), layers.getHeight());
+        }
+        ProjectFile target = project;
+        return projectWriter.submit(() -> {
+            try {
+                if (saveAs) {
+                    target.saveAs(path, frozen, surfaces, image, history, shapeOps);
+                } else {
+                    target.save(frozen, surfaces, image, history, shapeOps);
+                }
+                SwingUtilities.invokeLater(() -> listener.saved(path, target.getFileLength()));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> listener.failed(e));
+            }
+        });
+    }
+
+    // Replaces the document with a project. Only the index is read now; tiles load as they are drawn.
+    public void openProject(String filePath) throws IOException {
+        ProjectFile opened = ProjectFile.open(new File(filePath).toPath());
+        replaceDocument(opened.getLayers(), opened.getImage(), opened.getImageBounds(), opened.getShapes());
+        if (opened.getHistory() != null) {
+            Layer bottom = layers.get(0);
+            bottom.getHistory().load(bottom.getSurface(), opened.getHistory());
+            for (int i = 0; i < Math.min(opened.getHistory().getEdits().length, HISTORY_DEPTH); i++) {
+                undoLayers.push(bottom);
+            }
+        }
+        project = opened;
+    }
+
+    // Shows another document; its history starts over.
+    private void replaceDocument(LayerStack document, BufferedImage image, Rectangle imageBounds,
+            List<CanvasOp> shapeOps) {
+        imageHandler.cancelLoading();
+        imageHandler = new ImageHandler();
+        if (image != null) {
+            imageHandler.restoreImage(image, imageBounds);
+        }
+        for (Layer layer : document.getLayers()) {
+            layer.setHistory(createHistory());
+            layer.getHistory().reset(layer.getSurface());
+        }
+        layers = document;
+        activeLayerChanged();
+        canvasPyramid = new MipmapPyramid(layers);
+        shapes = new ShapeScene(HISTORY_DEPTH, shapeOps);
+        selectedShape = null;
+        displayCache.invalidateAll();
+        undoLayers.clear();
+        redoLayers.clear();
+        project = null;
+        repaintAll();
+    }
+
+    // How long the last asynchronous save held up the event thread.
+    public double getSaveBlockedMillis() {
+        return saveBlockedNanos / 1e6;
+    }
+
+    /* ======================Filters=========================== */
+
+    public void filterImage(ImageFilter filter) {
+        imageHandler.applyFilter(filter);
+        repaintAll();
+    }
+
+    // Pixel size of the loaded image as decoded, which is not the size it is drawn at; null if there is none.
+    public Dimension getLoadedImageSize() {
+        BufferedImage image = imageHandler.getLoadedImage();
+        return image != null ? new Dimension(image.getWidth(), image.getHeight()) : null;
+    }
+
+    // Filters region of the active layer as one undoable edit; null filters the whole layer.
+    public void filterCanvas(ImageFilter filter, Rectangle region) {
+        if (canvasSurface != null) {
+            saveCanvasState();
+            paintOp(CanvasOp.filter(filter, region != null ? region
+                    : new Rectangle(0, 0, canvasSurface.getWidth(), canvasSurface.getHeight())));
+            saveCanvasState();
+        }
+    }
+
+    // Canvas area shown in the component, to filter just what is on screen.
+    public Rectangle getVisibleCanvasRegion() {
+        return toCanvas(getVisibleRect()).intersection(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+    }
+
+    // The loaded image, or region of the active layer, scaled down to fit maxSide for previewing filters.
+    public BufferedImage getFilterProxy(Rectangle region, int maxSide) {
+        if (region == null) {
+            BufferedImage image = imageHandler.getLoadedImage();
+            return image != null ? FilterEngine.proxy(image, maxSide) : null;
+        }
+        double scale = Math.min(1, (double) maxSide / Math.max(region.width, region.height));
+        BufferedImage proxy = new BufferedImage(Math.max(1, (int) (region.width * scale)),
+                Math.max(1, (int) (region.height * scale)), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = proxy.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.scale(scale, scale);
+        g.translate(-region.x, -region.y);
+        canvasSurface.drawTo(g, region);
+        g.dispose();
+        return proxy;
     }
 
     // Zoom functionality
     public void zoomIn() {
         zoomLevel *= 1.1; // Increase zoom level by 10%
-        repaint();
+        repaintAll();
     }
 
     public void zoomOut() {
         zoomLevel /= 1.1; // Decrease zoom level by 10%
-        repaint();
+        repaintAll();
     }
 
     private void drawText(int x, int y) {
-        if (g2d != null && !currentText.isEmpty()) {
-            g2d.setColor(currentColor);
-            g2d.drawString(currentText, x, y);
-            repaint();
+        if (!currentText.isEmpty()) {
+            paintOp(CanvasOp.text(currentText, currentColor, x, y));
         }
     }
 
+    // Undoes the latest edit on whichever layer it was made.
     public void undo() {
-        if (currentHistoryIndex > 0) {
-            currentHistoryIndex--;
-            canvasImage = copyImage(canvasHistory.get(currentHistoryIndex));
-            g2d = (Graphics2D) canvasImage.getGraphics();
-            repaint();
+        if (layers != null) {
+            saveCanvasState();
+            step(undoLayers, redoLayers, true);
         }
     }
 
     public void redo() {
-        if (currentHistoryIndex < canvasHistory.size() - 1) {
-            currentHistoryIndex++;
-            canvasImage = copyImage(canvasHistory.get(currentHistoryIndex));
-            g2d = (Graphics2D) canvasImage.getGraphics();
-            repaint();
+        if (layers != null) {
+            step(redoLayers, undoLayers, false);
         }
     }
 
-    private void saveCanvasState() {
-        if (currentHistoryIndex < canvasHistory.size() - 1) {
-            canvasHistory = canvasHistory.subList(0, currentHistoryIndex + 1);
+    // Undoes or redoes on the first layer in from that still has the edit, and records it in to.
+    private void step(Deque<Object> from, Deque<Object> to, boolean undo) {
+        while (!from.isEmpty()) {
+            Object target = from.pop();
+            if (target instanceof ShapeScene) {
+                ShapeScene scene = (ShapeScene) target;
+                Rectangle area = undo ? scene.undo() : scene.redo();
+                if (area != null) {
+                    to.push(scene);
+                    if (selectedShape != null) { // It may have just been taken away
+                        addDamage(selectionBounds(selectedShape));
+                        selectedShape = null;
+                    }
+                    addDamage(area);
+                    return;
+                }
+                continue;
+            }
+            Layer layer = (Layer) target;
+            Rectangle area = undo ? layer.getHistory().undo() : layer.getHistory().redo();
+            if (area != null) {
+                to.push(layer);
+                if (autosave != null) {
+                    autosave.resync(); // Undo restores tiles rather than painting ops
+                }
+                layerChanged(layer, area);
+                return;
+            }
         }
-        if (canvasHistory.size() == 20) {
-            canvasHistory.remove(0);
-        } else {
-            currentHistoryIndex++;
+    }
+
+    /* ======================Layers=========================== */
+
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    // Adds an empty transparent layer above the active one and makes it active.
+    public void addLayer() {
+        saveCanvasState();
+        int number = layers.size() + 1;
+        while (hasLayerNamed("Layer " + number)) {
+            number++;
         }
-        canvasHistory.add(copyImage(canvasImage));
+        layers.add(layers.getActiveIndex() + 1,
+                newLayer("Layer " + number, new TiledSurface(layers.getWidth(), layers.getHeight(), true)));
+        activeLayerChanged();
+        layersChanged();
     }
 
-    private Image copyImage(Image img) {
-        BufferedImage copy = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-        Graphics g = copy.getGraphics();
-        g.drawImage(img, 0, 0, null);
-        g.dispose();
-        return copy;
+    // Removes a layer with its history; the last layer left cannot be removed.
+    public boolean removeLayer(int index) {
+        saveCanvasState();
+        Layer removed = layers.remove(index);
+        if (removed == null) {
+            return false;
+        }
+        undoLayers.removeIf(layer -> layer == removed);
+        redoLayers.removeIf(layer -> layer == removed);
+        activeLayerChanged();
+        layersChanged();
+        return true;
+    }
+
+    public void moveLayer(int from, int to) {
+        layers.move(from, to);
+        layersChanged();
+    }
+
+    public void setActiveLayer(int index) {
+        saveCanvasState(); // The edit in progress belongs to the layer it was painted on
+        layers.setActive(index);
+        activeLayerChanged();
+    }
+
+    public void setLayerProperties(int index, String name, float opacity, boolean visible, BlendMode blendMode) {
+        layers.setProperties(index, name, opacity, visible, blendMode);
+        layersChanged();
+    }
+
+    private boolean hasLayerNamed(String name) {
+        for (Layer layer : layers.getLayers()) {
+            if (layer.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Painting and undo go to the active layer's surface and history.
+    private void activeLayerChanged() {
+        canvasSurface = layers.getActive().getSurface();
+        canvasHistory = layers.getActive().getHistory();
+    }
+
+    // The stack or a layer's properties changed; everything may look different.
+    private void layersChanged() {
+        canvasPyramid.invalidate(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+        repaintAll();
+    }
+
+    // Opens the autosave journal unless -Dartstudio.autosave.seconds=0, and returns what the last session
+    // left in it, or null. Autosaving starts with startAutosave(), once the caller has decided about recovery.
+    public AutosaveJournal.Recovery openAutosave() {
+        if (AutosaveJournal.getIntervalMillis() <= 0) {
+            return null;
+        }
+        try {
+            autosave = AutosaveJournal.open();
+            return autosave != null ? autosave.recover() : null;
+        } catch (IOException e) {
+            e.printStackTrace(); // Carry on; recovery is a convenience
+            return null;
+        }
+    }
+
+    public void recover(AutosaveJournal.Recovery recovery) {
+        replaceDocument(recovery.getLayers(), recovery.getImage(), recovery.getImageBounds(), recovery.getShapes());
+    }
+
+    public void startAutosave() {
+        if (autosave == null || autosaveTimer != null) {
+            return;
+        }
+        autosaveTimer = new Timer(AutosaveJournal.getIntervalMillis(), e -> {
+            if (layers != null && !imageHandler.isLoading()) { // A placeholder is not worth saving
+                autosave.tick(layers, shapes, imageHandler.getPlacedImage());
+            }
+        });
+        autosaveTimer.start();
+    }
+
+    // Stops autosaving and deletes the journal, since nothing needs recovering after a clean exit.
+    public void stopAutosave() {
+        if (autosaveTimer != null) {
+            autosaveTimer.stop();
+        }
+        if (autosave != null) {
+            autosave.close(true);
+            autosave = null;
+        }
+    }
+
+    // False when autosave is off or another instance holds the journal.
+    public boolean isAutosaving() {
+        return autosave != null && autosaveTimer != null;
+    }
+
+    public long getAutosaveBytesPerMinute() {
+        return autosave != null ? autosave.getBytesPerMinute() : 0;
+    }
+
+    public long getHistoryBytes() {
+        long bytes = 0;
+        if (layers != null) {
+            for (Layer layer : layers.getLayers()) {
+                bytes += layer.getHistory().getHistoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    // For the active layer's history.
+    public double getHistoryCompressionRatio() {
+        return canvasHistory != null ? canvasHistory.getCompressionRatio() : 1;
+    }
+
+    // Drag events folded into each rasterized brush polyline.
+    public double getStrokeCoalescingRatio() {
+        return strokeBuffer.getCoalescingRatio();
+    }
+
+    // Time from a queued drag point to its pixels being on the canvas, averaged per tick.
+    public double getStrokeLatencyMillis() {
+        return strokeBuffer.getAverageLatencyMillis();
+    }
+
+    public double getMaxStrokeLatencyMillis() {
+        return strokeBuffer.getMaxLatencyMillis();
+    }
+
+    // Closes the ops painted since the last call into one undoable edit on the active layer.
+    private void saveCanvasState() {
+        if (canvasHistory != null && canvasHistory.commit()) {
+            undoLayers.push(layers.getActive());
+            redoLayers.clear();
+            shapes.clearRedo();
+            if (undoLayers.size() > HISTORY_DEPTH) {
+                undoLayers.removeLast();
+            }
+        }
     }
 
 }
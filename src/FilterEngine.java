@@ -0,0 +1,154 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs {@link ImageFilter}s over packed ARGB pixels, splitting every pass into
+ * row bands on a fork/join pool. Filters work on the int[] behind
+ * {@code DataBufferInt} rasters rather than through Graphics2D, and the
+ * buffer between the passes of a multi-pass filter and each worker's row
+ * scratch are kept for the next run, so a run allocates nothing per pixel,
+ * and nothing at all once it has filtered an image of the same size. A
+ * buffer larger than a few megapixels is dropped when its run ends, so one
+ * filter over a huge document does not stay pinned for the whole session.
+ * <p>
+ * -Dartstudio.filter.threads sets the pool size (default: one per core), and
+ * -Dartstudio.filter.keepPixels the largest buffer kept (default: 4M pixels).
+ */
+public class FilterEngine {
+
+    private static final int BAND_ROWS = 32; // Rows one task filters; smaller bands split no further
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger("artstudio.filter.threads", Runtime.getRuntime().availableProcessors()), p -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("FilterEngine-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+
+    private static final FilterEngine shared = new FilterEngine();
+
+    private static final ThreadLocal<float[]> scratch = ThreadLocal.withInitial(() -> new float[0]);
+
+    private static final int KEEP_PIXELS = Integer.getInteger("artstudio.filter.keepPixels", 4 << 20);
+
+    private int[] between = new int[0]; // Output of the passes before the last, reused across runs
+
+    // The pool filters run on; other pixel work split into row bands, such as ResizeEngine, shares it.
+    static ForkJoinPool pool() {
+        return pool;
+    }
+
+    // The engine the canvas filters with, so replaying a filter op does not need one passed in.
+    public static FilterEngine shared() {
+        return shared;
+    }
+
+    // Filters width * height pixels from src into dst, which must be a different array of at least that size.
+    public synchronized void filter(ImageFilter filter, int[] src, int[] dst, int width, int height) {
+        int passes = filter.passes();
+        int[] from = src;
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                int[] to = dst;
+                if (pass < passes - 1) {
+                    if (between.length < width * height) {
+                        between = new int[width * height];
+                    }
+                    to = between;
+                }
+                pool.invoke(new Band(filter, pass, from, to, width, height, 0, height));
+                from = to;
+            }
+        } finally {
+            if (between.length > KEEP_PIXELS) {
+                between = new int[0];
+            }
+        }
+    }
+
+    // A filtered copy of the image in the display format.
+    public BufferedImage filter(ImageFilter filter, BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        filter(filter, pixels(image), ((DataBufferInt) result.getRaster().getDataBuffer()).getData(), width, height);
+        return DecodedImageCache.toDisplayFormat(result);
+    }
+
+    // A copy of the image scaled down to fit maxSide, to preview filters on; the image itself if it already fits.
+    public static BufferedImage proxy(BufferedImage image, int maxSide) {
+        double scale = Math.min(1, (double) maxSide / Math.max(image.getWidth(), image.getHeight()));
+        if (scale == 1) {
+            return image;
+        }
+        BufferedImage proxy = new BufferedImage(Math.max(1, (int) (image.getWidth() * scale)),
+                Math.max(1, (int) (image.getHeight() * scale)), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = proxy.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, proxy.getWidth(), proxy.getHeight(), null);
+        g.dispose();
+        return proxy;
+    }
+
+    // The image's ARGB ints: its own array for TYPE_INT_ARGB, a converted copy otherwise. A cropped image
+    // shares its parent's larger array, so it is copied too.
+    static int[] pixels(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        boolean whole = raster.getDataBuffer().getSize() == width * height && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0;
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && whole) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        int[] pixels = new int[width * height];
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && whole) {
+            PixelKernels.get().copy(((DataBufferInt) raster.getDataBuffer()).getData(), 0, pixels, 0, pixels.length,
+                    true);
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        return pixels;
+    }
+
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageFilter filter;
+        private final int pass;
+        private final int[] src, dst;
+        private final int width, height, fromRow, toRow;
+
+        Band(ImageFilter filter, int pass, int[] src, int[] dst, int width, int height, int fromRow, int toRow) {
+            this.filter = filter;
+            this.pass = pass;
+            this.src = src;
+            this.dst = dst;
+            this.width = width;
+            this.height = height;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= BAND_ROWS) {
+                float[] rows = scratch.get();
+                if (rows.length < filter.scratchSize(width)) {
+                    rows = new float[filter.scratchSize(width)];
+                    scratch.set(rows);
+                }
+                filter.run(pass, src, dst, width, height, fromRow, toRow, rows);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new Band(filter, pass, src, dst, width, height, fromRow, middle),
+                    new Band(filter, pass, src, dst, width, height, middle, toRow));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.Rectangle;
+import java.awt.Window;
+import java.awt.image.BufferedImage;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.SwingConstants;
+
+/**
+ * Picks a filter and its settings and applies it to the loaded image, the
+ * part of the active layer on screen, or the whole layer. Settings preview on
+ * a copy of the target scaled down to the preview size, so dragging a slider
+ * never filters the full-size pixels.
+ */
+public class FiltersDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+    private static final int PREVIEW_SIZE = 320;
+    private static final String[] TARGETS = { "Image", "Visible canvas", "Whole layer" };
+
+    private final DrawingCanvas canvas;
+    private final JComboBox<String> filters = new JComboBox<>(ImageFilter.NAMES);
+    private final JComboBox<String> targets = new JComboBox<>(TARGETS);
+    private final JSlider amount = new JSlider(0, 100, 30);
+    private final JSlider contrast = new JSlider(0, 300, 100);
+    private final JLabel amountLabel = new JLabel();
+    private final JLabel preview = new JLabel("", SwingConstants.CENTER);
+    private BufferedImage proxy; // Target scaled to the preview size
+    private double proxyScale; // Proxy pixels per target pixel
+
+    public FiltersDialog(Window owner, DrawingCanvas canvas) {
+        super(owner, "Filters", ModalityType.APPLICATION_MODAL);
+        this.canvas = canvas;
+        filters.addActionListener(e -> updatePreview());
+        targets.addActionListener(e -> {
+            proxy = null;
+            updatePreview();
+        });
+        amount.addChangeListener(e -> updatePreview());
+        contrast.addChangeListener(e -> updatePreview());
+        targets.setSelectedIndex(canvas.getLoadedImageSize() != null ? 0 : 2);
+
+        JPanel settings = new JPanel(new GridLayout(0, 2, 4, 4));
+        settings.add(new JLabel("Filter"));
+        settings.add(filters);
+        settings.add(new JLabel("Apply to"));
+        settings.add(targets);
+        settings.add(amountLabel);
+        settings.add(amount);
+        settings.add(new JLabel("Contrast"));
+        settings.add(contrast);
+
+        JButton apply = new JButton("Apply");
+        apply.addActionListener(e -> apply());
+        JButton cancel = new JButton("Cancel");
+        cancel.addActionListener(e -> dispose());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(apply);
+        buttons.add(cancel);
+
+        preview.setPreferredSize(new Dimension(PREVIEW_SIZE, PREVIEW_SIZE));
+        getContentPane().add(settings, BorderLayout.NORTH);
+        getContentPane().add(preview, BorderLayout.CENTER);
+        getContentPane().add(buttons, BorderLayout.SOUTH);
+        updatePreview();
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    // The filter as the controls are set, for a target at full size.
+    private ImageFilter selectedFilter() {
+        float value = amount.getValue() / 100f;
+        switch (filters.getSelectedIndex() + 1) {
+            case ImageFilter.GAUSSIAN_BLUR:
+                return ImageFilter.gaussianBlur(value * 30);
+            case ImageFilter.SHARPEN:
+                return ImageFilter.sharpen(value * 2);
+            case ImageFilter.EDGE_DETECT:
+                return ImageFilter.edgeDetect();
+            case ImageFilter.BRIGHTNESS_CONTRAST:
+                return ImageFilter.brightnessContrast(value * 2 - 1, contrast.getValue() / 100f);
+            default:
+                return ImageFilter.grayscale();
+        }
+    }
+
+    // Null for the loaded image, otherwise the canvas area the filter goes to.
+    private Rectangle targetRegion() {
+        switch (targets.getSelectedIndex()) {
+            case 1:
+                return canvas.getVisibleCanvasRegion();
+            case 2:
+                return new Rectangle(0, 0, canvas.getLayers().getWidth(), canvas.getLayers().getHeight());
+            default:
+                return null;
+        }
+    }
+
+    private void updatePreview() {
+        int type = filters.getSelectedIndex() + 1;
+        amountLabel.setText(type == ImageFilter.GAUSSIAN_BLUR ? "Radius" : type == ImageFilter.SHARPEN ? "Strength"
+                : "Brightness");
+        amount.setEnabled(type == ImageFilter.GAUSSIAN_BLUR || type == ImageFilter.SHARPEN
+                || type == ImageFilter.BRIGHTNESS_CONTRAST);
+        contrast.setEnabled(type == ImageFilter.BRIGHTNESS_CONTRAST);
+        if (proxy == null) {
+            Rectangle region = targetRegion();
+            if (region != null && region.isEmpty()) {
+                preview.setIcon(null);
+                preview.setText("Nothing to filter");
+                return;
+            }
+            proxy = canvas.getFilterProxy(region, PREVIEW_SIZE);
+            if (proxy == null) {
+                preview.setIcon(null);
+                preview.setText("No image loaded");
+                return;
+            }
+            int targetWidth = region != null ? region.width : canvas.getLoadedImageSize().width;
+            proxyScale = (double) proxy.getWidth() / Math.max(1, targetWidth);
+        }
+        preview.setText("");
+        preview.setIcon(new ImageIcon(FilterEngine.shared().filter(selectedFilter().scaled(proxyScale), proxy)));
+    }
+
+    private void apply() {
+        Rectangle region = targetRegion();
+        if (region == null) {
+            canvas.filterImage(selectedFilter());
+        } else if (!region.isEmpty()) {
+            canvas.filterCanvas(selectedFilter(), region);
+        }
+        dispose();
+    }
+}
@@ -0,0 +1,128 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares undo cost of the old full-canvas copyImage snapshots with the
+ * journal and tile histories on a tiled surface. Each edit is a random brush
+ * stroke.
+ * <p>
+ * Usage: java HistoryBenchmark [width] [height] [edits] [segmentsPerStroke]
+ */
+public class HistoryBenchmark {
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+        int edits = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int segments = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+
+        System.out.printf("Canvas %dx%d, %d edits of %d segments%n", width, height, edits, segments);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            snapshots(width, height, edits, segments, report);
+            history("journal", new JournalHistory(1000, edits), width, height, edits, segments, report);
+            history("tiles", new TileHistory(Long.MAX_VALUE, edits), width, height, edits, segments, report);
+        }
+    }
+
+    private static void snapshots(int width, int height, int edits, int segments, boolean report) {
+        BufferedImage canvas = blankCanvas(width, height);
+        Graphics2D g = canvas.createGraphics();
+        Random random = new Random(42);
+        List<Image> history = new ArrayList<>();
+        history.add(copyImage(canvas));
+        long commitNanos = 0;
+        for (int i = 0; i < edits; i++) {
+            for (CanvasOp op : stroke(random, width, height, segments)) {
+                op.apply(g);
+            }
+            long start = System.nanoTime();
+            history.add(copyImage(canvas));
+            commitNanos += System.nanoTime() - start;
+        }
+        long undoNanos = 0;
+        for (int i = edits - 1; i >= 0; i--) {
+            long start = System.nanoTime();
+            canvas = (BufferedImage) copyImage(history.get(i));
+            undoNanos += System.nanoTime() - start;
+        }
+        g.dispose();
+        if (report) {
+            print("copyImage", commitNanos, undoNanos, edits, (long) history.size() * width * height * 4);
+        }
+    }
+
+    private static void history(String name, CanvasHistory history, int width, int height, int edits, int segments,
+            boolean report) {
+        TiledSurface surface = new TiledSurface(width, height);
+        Random random = new Random(42);
+        history.reset(surface);
+        long commitNanos = 0;
+        for (int i = 0; i < edits; i++) {
+            long start = System.nanoTime();
+            for (CanvasOp op : stroke(random, width, height, segments)) {
+                Rectangle area = surface.bounds(op);
+                history.record(op, area);
+                surface.apply(op, area);
+            }
+            history.commit();
+            commitNanos += System.nanoTime() - start;
+        }
+        long bytes = history.getHistoryBytes();
+        long undoNanos = 0;
+        for (int i = 0; i < edits; i++) {
+            long start = System.nanoTime();
+            history.undo();
+            undoNanos += System.nanoTime() - start;
+        }
+        if (report) {
+            print(name, commitNanos, undoNanos, edits, bytes);
+        }
+    }
+
+    private static List<CanvasOp> stroke(Random random, int width, int height, int segments) {
+        List<CanvasOp> ops = new ArrayList<>(segments);
+        int x = random.nextInt(width);
+        int y = random.nextInt(height);
+        Color color = new Color(random.nextInt(0xffffff));
+        for (int i = 0; i < segments; i++) {
+            int nextX = Math.max(0, Math.min(width - 1, x + random.nextInt(41) - 20));
+            int nextY = Math.max(0, Math.min(height - 1, y + random.nextInt(41) - 20));
+            ops.add(CanvasOp.line(color, 5, x, y, nextX, nextY));
+            x = nextX;
+            y = nextY;
+        }
+        return ops;
+    }
+
+    private static BufferedImage blankCanvas(int width, int height) {
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = canvas.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return canvas;
+    }
+
+    // The snapshot copy DrawingCanvas used before the tile and journal histories.
+    private static Image copyImage(Image img) {
+        BufferedImage copy = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+        Graphics g = copy.getGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    private static void print(String name, long commitNanos, long undoNanos, int edits, long bytes) {
+        System.out.printf("%-10s commit %8.3f ms/edit   undo %8.3f ms/step   history %,14d bytes%n", name,
+                commitNanos / 1e6 / edits, undoNanos / 1e6 / edits, bytes);
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One image filter and its settings: Gaussian blur, sharpen, edge detect,
+ * brightness/contrast or grayscale. Filters read and write packed ARGB ints
+ * that are not premultiplied; {@link FilterEngine} runs them over row bands
+ * in parallel. Like {@link CanvasOp}, a filter carries everything it needs to
+ * run again, so filtering the canvas can be journaled and replayed.
+ */
+public final class ImageFilter {
+
+    public static final byte GAUSSIAN_BLUR = 1;
+    public static final byte SHARPEN = 2;
+    public static final byte EDGE_DETECT = 3;
+    public static final byte BRIGHTNESS_CONTRAST = 4;
+    public static final byte GRAYSCALE = 5;
+
+    static final int MAX_RADIUS = 4096; // Far past what the dialog offers; a longer blur is a corrupt journal
+
+    static final String[] NAMES = { "Gaussian Blur", "Sharpen", "Edge Detect", "Brightness/Contrast", "Grayscale" };
+
+    final byte type;
+    final float amount; // Blur radius, sharpen strength or brightness (-1..1)
+    final float contrast; // Only for BRIGHTNESS_CONTRAST; 1 leaves contrast as it is
+
+    private final float[] kernel; // Blur weights; final, so the pool's workers see them filled in
+
+    private ImageFilter(byte type, float amount, float contrast) {
+        this.type = type;
+        this.amount = amount;
+        this.contrast = contrast;
+        this.kernel = type == GAUSSIAN_BLUR ? kernel(getRadius(), amount) : null;
+    }
+
+    // Radius in pixels; about three times sigma.
+    public static ImageFilter gaussianBlur(float radius) {
+        return new ImageFilter(GAUSSIAN_BLUR, Math.max(0, Math.min(MAX_RADIUS, radius)), 0);
+    }
+
+    // Strength 0 leaves the image as it is; 1 is a strong unsharp kernel.
+    public static ImageFilter sharpen(float strength) {
+        return new ImageFilter(SHARPEN, Math.max(0, strength), 0);
+    }
+
+    public static ImageFilter edgeDetect() {
+        return new ImageFilter(EDGE_DETECT, 0, 0);
+    }
+
+    // Brightness from -1 (black) to 1 (white); contrast 0 is flat grey, 1 unchanged, above 1 stronger.
+    public static ImageFilter brightnessContrast(float brightness, float contrast) {
+        return new ImageFilter(BRIGHTNESS_CONTRAST, Math.max(-1, Math.min(1, brightness)), Math.max(0, contrast));
+    }
+
+    public static ImageFilter grayscale() {
+        return new ImageFilter(GRAYSCALE, 0, 0);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getName() {
+        return NAMES[type - 1];
+    }
+
+    // Pixels around each output pixel the filter reads.
+    public int getRadius() {
+        switch (type) {
+            case GAUSSIAN_BLUR:
+                return (int) Math.ceil(amount);
+            case SHARPEN:
+            case EDGE_DETECT:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    // The same filter for a copy of the image scaled by factor, as used for previews.
+    public ImageFilter scaled(double factor) {
+        return type == GAUSSIAN_BLUR ? gaussianBlur((float) (amount * factor)) : this;
+    }
+
+    // Passes over the whole image; each pass reads the previous one's output.
+    int passes() {
+        return type == GAUSSIAN_BLUR && amount >= 0.5f ? 2 : 1;
+    }
+
+    // Floats of scratch run() needs for an image of the given size.
+    int scratchSize(int width) {
+        return type == GAUSSIAN_BLUR ? 4 * (width + 2 * getRadius()) : 0;
+    }
+
+    // Filters rows [fromRow, toRow) of one pass from src into dst. Both are width * height, packed. Scratch
+    // holds at least scratchSize(width) floats and is only used by the calling thread.
+    void run(int pass, int[] src, int[] dst, int width, int height, int fromRow, int toRow, float[] scratch) {
+        switch (type) {
+            case GAUSSIAN_BLUR:
+                if (passes() == 1) {
+                    System.arraycopy(src, fromRow * width, dst, fromRow * width, (toRow - fromRow) * width);
+                } else if (pass == 0) {
+                    blurRows(src, dst, width, fromRow, toRow, scratch);
+                } else {
+                    blurColumns(src, dst, width, height, fromRow, toRow, scratch);
+                }
+                break;
+            case SHARPEN:
+                sharpen(src, dst, width, height, fromRow, toRow);
+                break;
+            case EDGE_DETECT:
+                edges(src, dst, width, height, fromRow, toRow);
+                break;
+            case BRIGHTNESS_CONTRAST:
+                adjust(src, dst, width, fromRow, toRow);
+                break;
+            default:
+                gray(src, dst, width, fromRow, toRow);
+                break;
+        }
+    }
+
+    // Horizontal blur pass; writes premultiplied pixels so the vertical pass does not bleed transparent colour.
+    // Each row is first unpacked into premultiplied channel planes, padded by the radius at both ends.
+    private void blurRows(int[] src, int[] dst, int width, int fromRow, int toRow, float[] scratch) {
+        float[] weights = kernel;
+        int radius = weights.length / 2;
+        int n = width + 2 * radius;
+        PixelKernels kernels = PixelKernels.get();
+        for (int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+            kernels.unpack(src, row, width, scratch, radius, n, true);
+            for (int c = 0; c < 4 * n; c += n) {
+                Arrays.fill(scratch, c, c + radius, scratch[c + radius]);
+                Arrays.fill(scratch, c + radius + width, c + n, scratch[c + radius + width - 1]);
+            }
+            for (int x = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int k = 0; k < weights.length; k++) {
+                    float w = weights[k];
+                    a += w * scratch[x + k];
+                    r += w * scratch[n + x + k];
+                    g += w * scratch[2 * n + x + k];
+                    b += w * scratch[3 * n + x + k];
+                }
+                dst[row + x] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    // Vertical blur pass over premultiplied rows; writes plain ARGB again. Whole rows are accumulated at a
+    // time, so the source is read along its rows rather than down its columns.
+    private void blurColumns(int[] src, int[] dst, int width, int height, int fromRow, int toRow,
+            float[] scratch) {
+        float[] weights = kernel;
+        int radius = weights.length / 2;
+        for (int y = fromRow; y < toRow; y++) {
+            Arrays.fill(scratch, 0, 4 * width, 0);
+            for (int k = 0; k < weights.length; k++) {
+                float w = weights[k];
+                int row = Math.max(0, Math.min(height - 1, y + k - radius)) * width;
+                for (int x = 0; x < width; x++) {
+                    int p = src[row + x];
+                    scratch[x] += w * (p >>> 24);
+                    scratch[width + x] += w * ((p >> 16) & 0xff);
+                    scratch[2 * width + x] += w * ((p >> 8) & 0xff);
+                    scratch[3 * width + x] += w * (p & 0xff);
+                }
+            }
+            PixelKernels.get().pack(scratch, 0, width, width, dst, y * width, true);
+        }
+    }
+
+    // 3x3 Laplacian sharpen on the colour channels; alpha is kept.
+    private void sharpen(int[] src, int[] dst, int width, int height, int fromRow, int toRow) {
+        float centre = 1 + 4 * amount;
+        for (int y = fromRow; y < toRow; y++) {
+            int up = Math.max(0, y - 1) * width, row = y * width, down = Math.min(height - 1, y + 1) * width;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(0, x - 1), right = Math.min(width - 1, x + 1);
+                int p = src[row + x], n = src[up + x], s = src[down + x], w = src[row + left], e = src[row + right];
+                int r = clamp(centre * ((p >> 16) & 0xff) - amount * (((n >> 16) & 0xff) + ((s >> 16) & 0xff)
+                        + ((w >> 16) & 0xff) + ((e >> 16) & 0xff)));
+                int g = clamp(centre * ((p >> 8) & 0xff) - amount * (((n >> 8) & 0xff) + ((s >> 8) & 0xff)
+                        + ((w >> 8) & 0xff) + ((e >> 8) & 0xff)));
+                int b = clamp(centre * (p & 0xff) - amount * ((n & 0xff) + (s & 0xff) + (w & 0xff) + (e & 0xff)));
+                dst[row + x] = (p & 0xff000000) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    // Sobel gradient magnitude of the luminance, as grey; alpha is kept.
+    private static void edges(int[] src, int[] dst, int width, int height, int fromRow, int toRow) {
+        for (int y = fromRow; y < toRow; y++) {
+            int up = Math.max(0, y - 1) * width, row = y * width, down = Math.min(height - 1, y + 1) * width;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(0, x - 1), right = Math.min(width - 1, x + 1);
+                int nw = luma(src[up + left]), n = luma(src[up + x]), ne = luma(src[up + right]);
+                int w = luma(src[row + left]), e = luma(src[row + right]);
+                int sw = luma(src[down + left]), s = luma(src[down + x]), se = luma(src[down + right]);
+                int gx = (ne + 2 * e + se) - (nw + 2 * w + sw);
+                int gy = (sw + 2 * s + se) - (nw + 2 * n + ne);
+                int v = Math.min(255, (int) Math.sqrt(gx * gx + gy * gy));
+                dst[row + x] = (src[row + x] & 0xff000000) | (v << 16) | (v << 8) | v;
+            }
+        }
+    }
+
+    private void adjust(int[] src, int[] dst, int width, int fromRow, int toRow) {
+        PixelKernels.get().brightnessContrast(src, dst, fromRow * width, (toRow - fromRow) * width, amount, contrast);
+    }
+
+    private static void gray(int[] src, int[] dst, int width, int fromRow, int toRow) {
+        for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+            int p = src[i];
+            int v = luma(p);
+            dst[i] = (p & 0xff000000) | (v << 16) | (v << 8) | v;
+        }
+    }
+
+    // Rec. 601 luma in 0..255, in integer arithmetic.
+    private static int luma(int p) {
+        return (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8;
+    }
+
+    private static int clamp(float value) {
+        return value <= 0 ? 0 : value >= 255 ? 255 : (int) (value + 0.5f);
+    }
+
+    // Normalised Gaussian weights for -radius..radius.
+    private static float[] kernel(int radius, float amount) {
+        double sigma = Math.max(amount / 3.0, 0.5);
+        float[] weights = new float[2 * radius + 1];
+        double sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+            sum += weights[k + radius] = (float) Math.exp(-k * k / (2 * sigma * sigma));
+        }
+        for (int k = 0; k < weights.length; k++) {
+            weights[k] /= sum;
+        }
+        return weights;
+    }
+
+    /*
+     * Wire format: type byte, then amount and contrast floats.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeFloat(amount);
+        out.writeFloat(contrast);
+    }
+
+    public static ImageFilter read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type < GAUSSIAN_BLUR || type > GRAYSCALE) {
+            throw new IOException("Unknown filter " + type);
+        }
+        float amount = in.readFloat();
+        if (type == GAUSSIAN_BLUR && !(amount >= 0 && amount <= MAX_RADIUS)) { // The weights are built right away
+            throw new IOException("Blur radius out of range: " + amount);
+        }
+        return new ImageFilter(type, amount, in.readFloat());
+    }
+}
@@ -1,136 +1,547 @@
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
 
 public class ImageHandler {
- private BufferedImage loadedImage;
- private int imageX, imageY; // Position of the image
- private int imageWidth, imageHeight; // Size of the image
+ // Told about a background load on the event thread; placeholder means getLoadedImage() now shows a rougher preview.
+ public interface LoadListener {
+  void placeholder();
+
+  void progress(int percent);
+
+  void finished();
+
+  void failed(IOException e);
+ }
+
+ private static final long PREVIEW_MILLIS = 150; // Partial decodes are shown at most this often
+ private static final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+  Thread thread = new Thread(r, "ImageHandler-decoder");
+  thread.setDaemon(true);
+  return thread;
+ });
+
+ private BufferedImage loadedImage; // Pixels as decoded; crops, resizes and rotations only change transform
+ private ImageTransform transform; // Loaded image pixels to canvas coordinates
+ private PlacedImage placed; // The image as placed, handed to saves until the next change
+ private BufferedImage placedImage; // Loaded image, transform and its version placed was taken from
+ private ImageTransform placedTransform;
+ private int placedVersion;
+ private ImageTransform resizeStart; // Transform before the resize drag in progress
+ private double turnCentreX, turnCentreY; // Centre of the bounds before a run of rotations, which they keep to
+ private ImageTransform turnTransform; // Transform and version the last rotation left
+ private int turnVersion;
  private int cropStartX, cropStartY; // Starting point of crop rectangle
  private int cropEndX, cropEndY; // Ending point of crop rectangle
+ private File sourceFile; // File the loaded image can be decoded again from; null once its pixels are edited
+ private Rectangle sourceRegion; // Part of sourceFile the loaded image shows, in file pixels
+ private Future<?> loading; // Background decode in progress, or null
+ private long loadGeneration; // Bumped per load so results of a superseded one are dropped
+ private int loadProgress; // Percent decoded while loading
 
+ // The decoded pixels, before the transform; draw them through getTransform() and getClip().
  public BufferedImage getLoadedImage() {
   return loadedImage;
  }
 
+ // Loaded image pixels to canvas coordinates; a copy.
+ public AffineTransform getTransform() {
+  return transform.toAffineTransform();
+ }
+
+ // Canvas area crops leave of the image, or null if it was not cropped.
+ public java.awt.Shape getClip() {
+  return transform.getClip();
+ }
+
+ // Canvas pixels per loaded image pixel, along the more stretched axis.
+ public double getImageScale() {
+  return transform.getScale();
+ }
+
+ // Folded steps of the transform, each a crop, scale, rotation or translation.
+ public int getTransformSteps() {
+  return transform != null ? transform.getStepCount() : 0;
+ }
+
  public int getImageX() {
-  return imageX;
+  return getImageBounds().x;
  }
 
  public int getImageY() {
-  return imageY;
+  return getImageBounds().y;
  }
 
  public int getImageWidth() {
-  return imageWidth;
+  return getImageBounds().width;
  }
 
  public int getImageHeight() {
-  return imageHeight;
+  return getImageBounds().height;
  }
 
- public void addImage(String filePath) {
-  try {
-   loadedImage = ImageIO.read(new File(filePath)); // Load the image from file path.
+ // Shows image stretched over bounds, dropping any earlier transform.
+ private void place(BufferedImage image, Rectangle bounds) {
+  loadedImage = image;
+  transform = ImageTransform.placed(image.getWidth(), image.getHeight(), bounds);
+ }
 
-   this.imageX = 50; // Default position on canvas (can be adjusted)
-   this.imageY = 50; // Default position on canvas (can be adjusted)
+ // Canvas area the transformed image covers, rounded outwards.
+ public Rectangle getImageBounds() {
+  return transform != null ? transform.getBounds() : new Rectangle();
+ }
+
+ // Puts back an image saved in a project where it was placed. Its pixels no longer come from a file.
+ public void restoreImage(BufferedImage image, Rectangle bounds) {
+  cancelLoading();
+  place(image, bounds);
+  sourceFile = null;
+  sourceRegion = null;
+ }
+
+ public boolean isLoading() {
+  return loading != null;
+ }
+
+ public int getLoadProgress() {
+  return loadProgress;
+ }
+
+ // Starts decoding on the decoder thread and returns at once; call on the event thread. Until the decode
+ // finishes the image shows as a placeholder, refined as passes or rows arrive, and cannot be edited.
+ public void addImageAsync(String filePath, int canvasWidth, int canvasHeight, LoadListener listener) {
+  cancelLoading();
+  long generation = ++loadGeneration;
+  File file = new File(filePath);
+  loadProgress = 0;
+  loading = decoder.submit(() -> {
+   try {
+    Dimension size = readSize(file);
+    int maxWidth = Math.max(1, canvasWidth - 50);
+    int maxHeight = Math.max(1, canvasHeight - 50);
+    double scale = Math.min(1.0, Math.min((double) maxWidth / size.width, (double) maxHeight / size.height));
+    int width = Math.max(1, (int) Math.round(size.width * scale));
+    int height = Math.max(1, (int) Math.round(size.height * scale));
+    Rectangle region = new Rectangle(0, 0, size.width, size.height);
+    BufferedImage blank = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+    blank.setRGB(0, 0, Color.LIGHT_GRAY.getRGB());
+    post(generation, () -> {
+     place(blank, new Rectangle(50, 50, width, height)); // Grey box of the final size until pixels arrive
+     sourceFile = null;
+     listener.placeholder();
+    });
+    BufferedImage image = decode(file, region, width, height, reader -> {
+     if (reader.getNumThumbnails(0) > 0) { // An embedded thumbnail is the quickest preview there is
+      BufferedImage thumbnail = reader.readThumbnail(0, 0);
+      post(generation, () -> {
+       place(thumbnail, getImageBounds());
+       listener.placeholder();
+      });
+     }
+     reader.addIIOReadProgressListener(new IIOReadProgressAdapter() {
+      @Override
+      public void imageProgress(ImageReader source, float percentageDone) {
+       if (Thread.currentThread().isInterrupted()) {
+        source.abort(); // Readers ignore interrupts; this is how cancelLoading reaches them
+       }
+       post(generation, () -> {
+        loadProgress = (int) percentageDone;
+        listener.progress(loadProgress);
+       });
+      }
+     });
+     reader.addIIOReadUpdateListener(new IIOReadUpdateAdapter() {
+      private long lastPreview = System.nanoTime();
+
+      @Override
+      public void passComplete(ImageReader source, BufferedImage theImage) {
+       preview(theImage); // Progressive JPEG and interlaced PNG passes
+      }
 
-   if (loadedImage != null) { // Check if the loaded image is not null.
-    this.imageWidth = loadedImage.getWidth();
-    this.imageHeight = loadedImage.getHeight();
-   } else {
-    throw new IOException("Failed to load image.");
+      @Override
+      public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width,
+        int height, int periodX, int periodY, int[] bands) {
+       if (System.nanoTime() - lastPreview > PREVIEW_MILLIS * 1_000_000) {
+        preview(theImage); // Rows decoded so far, on top of the grey box
+       }
+      }
+
+      private void preview(BufferedImage partial) {
+       lastPreview = System.nanoTime();
+       BufferedImage copy = new BufferedImage(partial.getColorModel(), partial.copyData(null),
+         partial.isAlphaPremultiplied(), null); // The reader keeps writing into its own
+       post(generation, () -> {
+        place(copy, getImageBounds());
+        listener.placeholder();
+       });
+      }
+     });
+    });
+    post(generation, () -> {
+     loading = null;
+     place(image, getImageBounds());
+     sourceFile = file;
+     sourceRegion = region;
+     listener.finished();
+    });
+   } catch (IOException | RuntimeException | Error e) { // Out of memory or a broken reader must not leave loading set
+    post(generation, () -> {
+     loading = null;
+     loadedImage = null;
+     transform = null;
+     listener.failed(asIOException(e));
+    });
    }
-  } catch (IOException e) {
-   e.printStackTrace();
+  });
+ }
+
+ // Stops a background load and drops the image it was loading.
+ public void cancelLoading() {
+  if (loading != null) {
+   loading.cancel(true);
+   loading = null;
+   loadedImage = null;
+   transform = null;
   }
+  loadGeneration++;
  }
 
- public void performCrop() {
-  if (loadedImage != null) {
-   try {
-    int x1 = Math.min(cropStartX, cropEndX);
-    int y1 = Math.min(cropStartY, cropEndY);
-    int width = Math.abs(cropEndX - cropStartX);
-    int height = Math.abs(cropEndY - cropStartY);
-
-    BufferedImage croppedImg = loadedImage.getSubimage(x1 - imageX, y1 - imageY, width, height);
-    loadedImage = croppedImg;
-    this.imageWidth = croppedImg.getWidth();
-    this.imageHeight = croppedImg.getHeight();
-
-    this.imageX += x1 - Math.min(imageX + width, x1); // Adjust position after cropping.
-    this.imageY += y1 - Math.min(imageY + height, y1);
-   } catch (RasterFormatException e) {
-    e.printStackTrace();
+ // What a failed decode tells its listener.
+ private static IOException asIOException(Throwable e) {
+  return e instanceof IOException ? (IOException) e : new IOException("Cannot decode the image: " + e, e);
+ }
+
+ // Runs on the event thread, unless a newer load has started since.
+ private void post(long generation, Runnable update) {
+  SwingUtilities.invokeLater(() -> {
+   if (generation == loadGeneration) {
+    update.run();
    }
+  });
+ }
+
+ private interface ReaderSetup {
+  void prepare(ImageReader reader) throws IOException;
+ }
+
+ private static class IIOReadProgressAdapter implements IIOReadProgressListener {
+  @Override
+  public void sequenceStarted(ImageReader source, int minIndex) {
+  }
+
+  @Override
+  public void sequenceComplete(ImageReader source) {
+  }
+
+  @Override
+  public void imageStarted(ImageReader source, int imageIndex) {
+  }
+
+  @Override
+  public void imageProgress(ImageReader source, float percentageDone) {
+  }
+
+  @Override
+  public void imageComplete(ImageReader source) {
+  }
+
+  @Override
+  public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+  }
+
+  @Override
+  public void thumbnailProgress(ImageReader source, float percentageDone) {
+  }
+
+  @Override
+  public void thumbnailComplete(ImageReader source) {
+  }
+
+  @Override
+  public void readAborted(ImageReader source) {
   }
  }
 
- public void resizeImage(int newWidth, int newHeight) {
-  if (loadedImage != null) {
+ private static class IIOReadUpdateAdapter implements IIOReadUpdateListener {
+  @Override
+  public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+    int minX, int minY, int periodX, int periodY, int[] bands) {
+  }
+
+  @Override
+  public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+    int periodX, int periodY, int[] bands) {
+  }
+
+  @Override
+  public void passComplete(ImageReader source, BufferedImage theImage) {
+  }
+
+  @Override
+  public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+    int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+  }
+
+  @Override
+  public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+    int height, int periodX, int periodY, int[] bands) {
+  }
+
+  @Override
+  public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+  }
+ }
+
+ private static Dimension readSize(File file) throws IOException {
+  try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+   ImageReader reader = openReader(in, file);
    try {
-    // Create a new BufferedImage with the desired dimensions
-    BufferedImage resizedImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g = resizedImage.createGraphics();
-
-    // Set rendering hints for better quality
-    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-    // Draw the original image scaled to the new size
-    g.drawImage(loadedImage, 0, 0, newWidth, newHeight, null);
-    g.dispose();
-
-    // Update loaded image and dimensions
-    loadedImage = resizedImage;
-    this.imageWidth = newWidth;
-    this.imageHeight = newHeight;
-   } catch (Exception e) {
-    e.printStackTrace();
+    return new Dimension(reader.getWidth(0), reader.getHeight(0));
+   } finally {
+    reader.dispose();
    }
   }
  }
 
- public void repositionImage(int newX, int newY) {
-  this.imageX = newX;
-  this.imageY = newY;
+ // Decodes a region of the file with the coarsest subsampling that still gives width x height, then scales to that.
+ private static BufferedImage decode(File file, Rectangle region, int width, int height) throws IOException {
+  return decode(file, region, width, height, null);
  }
 
- public void rotateImageClockwise() {
-  if (loadedImage != null) {
+ // Serves repeat imports of an unchanged file from DecodedImageCache; decodes and caches it otherwise.
+ private static BufferedImage decode(File file, Rectangle region, int width, int height, ReaderSetup setup)
+   throws IOException {
+  DecodedImageCache.Key key = DecodedImageCache.key(file, region, width, height);
+  BufferedImage cached = DecodedImageCache.shared().get(key);
+  if (cached != null) {
+   return cached;
+  }
+  try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+   ImageReader reader = openReader(in, file);
    try {
-    loadedImage = rotateImage(loadedImage, 45);
-   } catch (Exception e) {
-    e.printStackTrace();
+    if (setup != null) {
+     setup.prepare(reader);
+    }
+    ImageReadParam param = reader.getDefaultReadParam();
+    int step = Math.max(1, Math.min(region.width / width, region.height / height));
+    param.setSourceRegion(region);
+    param.setSourceSubsampling(step, step, 0, 0);
+    BufferedImage image = reader.read(0, param);
+    if (image.getWidth() != width || image.getHeight() != height) {
+     BufferedImage scaled = new BufferedImage(width, height, image.getTransparency() == Transparency.OPAQUE
+       ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+     Graphics2D g = scaled.createGraphics();
+     g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+     g.drawImage(image, 0, 0, width, height, null); // Subsampling left it less than twice as large
+     g.dispose();
+     image = scaled;
+    }
+    image = DecodedImageCache.toDisplayFormat(image);
+    if (!Thread.currentThread().isInterrupted()) { // An aborted read returns whatever it had so far
+     DecodedImageCache.shared().put(key, image);
+    }
+    return image;
+   } finally {
+    reader.dispose();
+   }
+  }
+ }
+
+ private static ImageReader openReader(ImageInputStream in, File file) throws IOException {
+  if (in == null) {
+   throw new IOException("Cannot open " + file);
+  }
+  Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+  if (!readers.hasNext()) {
+   throw new IOException("Failed to load image.");
+  }
+  ImageReader reader = readers.next();
+  reader.setInput(in, true, true);
+  return reader;
+ }
+
+ // Clips the image to the crop rectangle. For an image that still follows its file, the loaded pixels and the
+ // file region shrink to what stays visible, so enlarging it later decodes only that much of the file.
+ public void performCrop() {
+  if (loadedImage != null && loading == null) {
+   Rectangle area = new Rectangle(Math.min(cropStartX, cropEndX), Math.min(cropStartY, cropEndY),
+     Math.abs(cropEndX - cropStartX), Math.abs(cropEndY - cropStartY));
+   if (area.intersects(getImageBounds())) {
+    transform.crop(area);
+    if (sourceFile != null) {
+     narrowToClip();
+    }
    }
   }
  }
 
+ // Keeps the loaded pixels the crops leave visible, plus one for bilinear sampling at the edge, and the part of
+ // sourceRegion they came from.
+ private void narrowToClip() {
+  Rectangle part;
+  try {
+   part = transform.toAffineTransform().createInverse().createTransformedShape(transform.getClip()).getBounds();
+  } catch (NoninvertibleTransformException e) {
+   return;
+  }
+  part.grow(1, 1);
+  part = part.intersection(new Rectangle(0, 0, loadedImage.getWidth(), loadedImage.getHeight()));
+  if (part.isEmpty() || part.width == loadedImage.getWidth() && part.height == loadedImage.getHeight()) {
+   return;
+  }
+  double scaleX = (double) sourceRegion.width / loadedImage.getWidth();
+  double scaleY = (double) sourceRegion.height / loadedImage.getHeight();
+  int x1 = sourceRegion.x + (int) Math.round(part.x * scaleX);
+  int y1 = sourceRegion.y + (int) Math.round(part.y * scaleY);
+  int x2 = sourceRegion.x + (int) Math.round((part.x + part.width) * scaleX);
+  int y2 = sourceRegion.y + (int) Math.round((part.y + part.height) * scaleY);
+  sourceRegion = new Rectangle(x1, y1, Math.max(1, x2 - x1), Math.max(1, y2 - y1));
+  BufferedImage visible = loadedImage.getSubimage(part.x, part.y, part.width, part.height);
+  WritableRaster pixels = visible.copyData(visible.getRaster().createCompatibleWritableRaster(part.width,
+    part.height)); // Its own pixels, so the rest can be collected
+  loadedImage = new BufferedImage(visible.getColorModel(), pixels, visible.isAlphaPremultiplied(), null);
+  transform.subimage(part.x, part.y, part.width, part.height);
+ }
+
+ // One step of a resize drag: scales the image so its bounds become newWidth x newHeight, with the top left
+ // corner in place. Steps replace each other rather than add up.
+ public void resizeImage(int newWidth, int newHeight) {
+  if (loadedImage != null && loading == null) {
+   if (resizeStart == null) {
+    resizeStart = transform.copy();
+   }
+   Rectangle start = resizeStart.getBounds();
+   transform = resizeStart.copy();
+   transform.scale((double) Math.max(1, newWidth) / Math.max(1, start.width),
+     (double) Math.max(1, newHeight) / Math.max(1, start.height), start.x, start.y);
+  }
+ }
+
+ // Called when a resize drag ends. If the image is now drawn larger than its pixels were decoded at, the file is
+ // decoded again with enough of them, up to its full size, on the decoder thread; the stretched pixels show until
+ // then. The listener hears finished once the new pixels are in, or failed.
+ public void finishResize(LoadListener listener) {
+  resizeStart = null;
+  if (loadedImage == null || sourceFile == null || loading != null) {
+   return;
+  }
+  double scale = Math.min(transform.getScale(), Math.min((double) sourceRegion.width / loadedImage.getWidth(),
+    (double) sourceRegion.height / loadedImage.getHeight()));
+  if (scale > 1.01) {
+   BufferedImage stretched = loadedImage;
+   File file = sourceFile;
+   Rectangle region = new Rectangle(sourceRegion);
+   int width = (int) Math.round(stretched.getWidth() * scale);
+   int height = (int) Math.round(stretched.getHeight() * scale);
+   long generation = loadGeneration;
+   decoder.submit(() -> {
+    try {
+     BufferedImage image = decode(file, region, width, height);
+     post(generation, () -> {
+      if (loadedImage == stretched && sourceFile == file && region.equals(sourceRegion)) { // Not cropped since
+       loadedImage = image;
+       transform.resample(width, height);
+       listener.finished();
+      }
+     });
+    } catch (IOException | RuntimeException | Error e) {
+     post(generation, () -> listener.failed(asIOException(e))); // Keep drawing the pixels we have, stretched
+    }
+   });
+  }
+ }
+
+ // Moves the image so its bounds start at (newX, newY).
+ public void repositionImage(int newX, int newY) {
+  if (transform != null) {
+   Rectangle bounds = getImageBounds();
+   transform.translate(newX - bounds.x, newY - bounds.y);
+  }
+ }
+
+ public void rotateImageClockwise() {
+  rotateImage(45);
+ }
+
  public void rotateImageAntiClockwise() {
-  if (loadedImage != null) {
-   try {
-    loadedImage = rotateImage(loadedImage, -45);
-   } catch (Exception e) {
-    e.printStackTrace();
+  rotateImage(-45);
+ }
+
+ // Turns the image clockwise by any angle about the centre of its bounds; the bounds grow to hold the corners.
+ // The pivot is a whole canvas pixel, so quarter turns of bounds with an odd side keep pixels on the grid and
+ // render as an index copy rather than half a pixel off and resampled. Of the whole pixels around the centre, it
+ // takes the one that leaves the turned bounds nearest where the run of rotations started, so turning back and
+ // forth does not creep.
+ public void rotateImage(double degrees) {
+  if (loadedImage != null && loading == null) {
+   Rectangle bounds = getImageBounds();
+   if (turnTransform != transform || turnVersion != transform.getModCount()) { // Moved or changed since
+    turnCentreX = bounds.getCenterX();
+    turnCentreY = bounds.getCenterY();
+   }
+   double radians = Math.toRadians(degrees);
+   int pivotX = 0, pivotY = 0;
+   double nearest = Double.MAX_VALUE;
+   for (int i = 0; i < 4; i++) {
+    int x = (int) ((i & 1) == 0 ? Math.floor(bounds.getCenterX()) : Math.ceil(bounds.getCenterX()));
+    int y = (int) ((i & 2) == 0 ? Math.floor(bounds.getCenterY()) : Math.ceil(bounds.getCenterY()));
+    Point2D centre = AffineTransform.getRotateInstance(radians, x, y)
+      .transform(new Point2D.Double(bounds.getCenterX(), bounds.getCenterY()), null);
+    double distance = Math.abs(centre.getX() - turnCentreX) + Math.abs(centre.getY() - turnCentreY);
+    if (distance < nearest - 1e-9) {
+     nearest = distance;
+     pivotX = x;
+     pivotY = y;
+    }
    }
+   transform.rotate(radians, pivotX, pivotY);
+   turnTransform = transform;
+   turnVersion = transform.getModCount();
+  }
+ }
+
+ // Replaces the loaded pixels with a filtered copy; the transform stays.
+ public void applyFilter(ImageFilter filter) {
+  if (loadedImage != null && !isLoading()) {
+   loadedImage = FilterEngine.shared().filter(filter, loadedImage);
+   sourceFile = null; // Filtered pixels no longer match the file
   }
  }
 
- private BufferedImage rotateImage(BufferedImage image, double angle) {
-  int w = image.getWidth();
-  int h = image.getHeight();
-  BufferedImage rotatedImage = new BufferedImage(w, h, image.getType());
-  Graphics2D g2d = rotatedImage.createGraphics();
-  g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-  g2d.rotate(Math.toRadians(angle), w / 2, h / 2);
-  g2d.drawImage(image, 0, 0, null);
-  g2d.dispose();
-  return rotatedImage;
+ // The image as placed on the canvas, or null if there is none. Cheap: the pixels are only rendered when a save
+ // asks it to, on the save's thread, and the same instance comes back until the image or its placement changes.
+ public PlacedImage getPlacedImage() {
+  if (loadedImage == null) {
+   return null;
+  }
+  if (placed == null || placedImage != loadedImage || placedTransform != transform
+    || placedVersion != transform.getModCount()) {
+   placed = new PlacedImage(loadedImage, transform.copy());
+   placedImage = loadedImage;
+   placedTransform = transform;
+   placedVersion = transform.getModCount();
+  }
+  return placed;
  }
 
  public void setCropStart(int x, int y) {
@@ -143,19 +554,81 @@ public class ImageHandler {
   cropEndY = y;
  }
 
- public void saveCanvasAsPNG(Image canvasImage, String filePath) {
-  if (canvasImage != null) {
-   try {
-    BufferedImage bufferedImage = new BufferedImage(canvasImage.getWidth(null), canvasImage.getHeight(null),
-      BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g2d = bufferedImage.createGraphics();
-    g2d.drawImage(canvasImage, 0, 0, null);
-    g2d.drawImage(loadedImage, imageX, imageY, null); // Draw the loaded image onto the canvas
-    g2d.dispose();
-    ImageIO.write(bufferedImage, "png", new File(filePath));
-   } catch (IOException e) {
-    e.printStackTrace();
-   }
+ // Streams the flattened layers with the loaded image and then shapes on top to a PNG, encoded in parallel row
+ // bands. Shapes may be null.
+ public void saveCanvasAsPNG(LayerStack layers, List<Shape> shapes, String filePath) throws IOException {
+  if (layers != null) {
+   newPngEncoder().write(composite(layers, shapes, getPlacedImage()), new File(filePath).toPath());
+  }
+ }
+
+ // Saves on the export thread from a copy-on-write freeze of the layers, so drawing can go on meanwhile; the
+ // image is rendered there too. The shapes must not change while it runs; pass a ShapeScene.snapshot().
+ public Future<?> saveCanvasAsPNGAsync(LayerStack layers, List<Shape> shapes, String filePath,
+   CanvasExporter.Listener listener) {
+  return CanvasExporter.export(composite(layers.copy(), shapes, getPlacedImage()), newPngEncoder(),
+    new File(filePath).toPath(), listener);
+ }
+
+ // -Dartstudio.png.filter and -Dartstudio.png.level pick the encoder settings.
+ private static PngEncoder newPngEncoder() {
+  PngEncoder encoder = new PngEncoder();
+  encoder.setFilter(PngEncoder.Filter.valueOf(System.getProperty("artstudio.png.filter", "ADAPTIVE")));
+  encoder.setCompressionLevel(Integer.getInteger("artstudio.png.level", 6));
+  return encoder;
+ }
+
+ // Flattened canvas pixels with the placed image and the shapes drawn over them, one band at a time instead of
+ // as a copy. The image is rendered by the first band that reaches it, on the thread reading the pixels.
+ private static PixelSource composite(PixelSource canvasSurface, List<Shape> shapes, PlacedImage placed) {
+  if (placed == null && (shapes == null || shapes.isEmpty())) {
+   return canvasSurface;
   }
+  Rectangle imageArea = placed != null ? placed.getBounds() : new Rectangle();
+  return new PixelSource() {
+   @Override
+   public int getWidth() {
+    return canvasSurface.getWidth();
+   }
+
+   @Override
+   public int getHeight() {
+    return canvasSurface.getHeight();
+   }
+
+   @Override
+   public void readPixels(Rectangle area, int[] out) {
+    canvasSurface.readPixels(area, out);
+    Graphics2D g2d = null;
+    if (placed != null && area.intersects(imageArea)) {
+     g2d = band(area, out);
+     g2d.drawImage(placed.render(), imageArea.x - area.x, imageArea.y - area.y, imageArea.width, imageArea.height,
+       null);
+    }
+    if (shapes != null) {
+     for (Shape shape : shapes) {
+      if (shape.getBounds().intersects(area)) {
+       if (g2d == null) {
+        g2d = band(area, out);
+       }
+       g2d.translate(-area.x, -area.y);
+       shape.drawPixels(g2d); // The same pixels whichever band it falls in
+       g2d.translate(area.x, area.y);
+      }
+     }
+    }
+    if (g2d != null) {
+     g2d.dispose();
+    }
+   }
+
+   // Drawing onto the band's pixels in place.
+   private Graphics2D band(Rectangle area, int[] out) {
+    DataBufferInt buffer = new DataBufferInt(out, area.width * area.height);
+    WritableRaster raster = Raster.createPackedRaster(buffer, area.width, area.height, area.width,
+      new int[] { 0xff0000, 0xff00, 0xff, 0xff000000 }, null);
+    return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null).createGraphics();
+   }
+  };
  }
 }
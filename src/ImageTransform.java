@@ -0,0 +1,242 @@
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the imported image goes on the canvas: an ordered list of crops,
+ * scales, rotations and translations from its decoded source pixels to
+ * canvas coordinates. Edits append steps instead of resampling pixels, and a
+ * step of the same kind as the last one is folded into it, so eight 45 degree
+ * rotations cost eight matrix multiplies and leave one step.
+ * <p>
+ * The steps combine into one {@link AffineTransform} plus a clip for the
+ * crops, which is how the canvas draws the image. {@link #render} builds the
+ * pixels at canvas resolution, for exports and saves.
+ */
+public final class ImageTransform {
+
+    public enum Kind {
+        CROP, SCALE, ROTATE, TRANSLATE
+    }
+
+    /**
+     * One step. A crop's clip is in the coordinates the steps before it lead
+     * to; the steps after it move the clip along with the image.
+     */
+    private static final class Step {
+        final Kind kind;
+        final AffineTransform transform;
+        Area clip;
+
+        Step(Kind kind, AffineTransform transform, Area clip) {
+            this.kind = kind;
+            this.transform = transform;
+            this.clip = clip;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+    private int sourceWidth, sourceHeight;
+    private AffineTransform combined; // Steps multiplied out, or null until asked for again
+    private Area clip; // Crops in canvas coordinates, null if none
+    private Rectangle bounds;
+    private int modCount;
+
+    public ImageTransform(int sourceWidth, int sourceHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+    }
+
+    // Source pixels stretched over bounds.
+    public static ImageTransform placed(int sourceWidth, int sourceHeight, Rectangle bounds) {
+        ImageTransform transform = new ImageTransform(sourceWidth, sourceHeight);
+        transform.scale((double) bounds.width / sourceWidth, (double) bounds.height / sourceHeight, 0, 0);
+        transform.translate(bounds.x, bounds.y);
+        return transform;
+    }
+
+    public ImageTransform copy() {
+        ImageTransform copy = new ImageTransform(sourceWidth, sourceHeight);
+        for (Step step : steps) {
+            copy.steps.add(new Step(step.kind, new AffineTransform(step.transform),
+                    step.clip != null ? new Area(step.clip) : null));
+        }
+        return copy;
+    }
+
+    // Keeps only the part of the image inside area, in canvas coordinates.
+    public void crop(Rectangle area) {
+        add(Kind.CROP, new AffineTransform(), new Area(area));
+    }
+
+    // Scales by sx, sy about the canvas point (anchorX, anchorY), which stays where it is.
+    public void scale(double sx, double sy, double anchorX, double anchorY) {
+        AffineTransform scale = AffineTransform.getTranslateInstance(anchorX, anchorY);
+        scale.scale(sx, sy);
+        scale.translate(-anchorX, -anchorY);
+        add(Kind.SCALE, scale, null);
+    }
+
+    // Rotates clockwise on screen by radians about the canvas point (centreX, centreY).
+    public void rotate(double radians, double centreX, double centreY) {
+        add(Kind.ROTATE, AffineTransform.getRotateInstance(radians, centreX, centreY), null);
+    }
+
+    public void translate(double dx, double dy) {
+        add(Kind.TRANSLATE, AffineTransform.getTranslateInstance(dx, dy), null);
+    }
+
+    // The source was replaced by the same picture at another size; the image stays as it is on the canvas.
+    public void resample(int width, int height) {
+        AffineTransform fit = AffineTransform.getScaleInstance((double) sourceWidth / width,
+                (double) sourceHeight / height);
+        if (!steps.isEmpty() && steps.get(0).kind == Kind.SCALE) {
+            steps.get(0).transform.concatenate(fit);
+        } else {
+            steps.add(0, new Step(Kind.SCALE, fit, null));
+        }
+        sourceWidth = width;
+        sourceHeight = height;
+        changed();
+    }
+
+    // The source was cut down to its part at (x, y), width x height; the image stays as it is on the canvas.
+    public void subimage(int x, int y, int width, int height) {
+        AffineTransform offset = AffineTransform.getTranslateInstance(x, y);
+        if (!steps.isEmpty() && steps.get(0).kind == Kind.SCALE) {
+            steps.get(0).transform.concatenate(offset);
+        } else {
+            steps.add(0, new Step(Kind.TRANSLATE, offset, null));
+        }
+        sourceWidth = width;
+        sourceHeight = height;
+        changed();
+    }
+
+    private void add(Kind kind, AffineTransform transform, Area crop) {
+        Step last = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+        if (last != null && last.kind == kind) {
+            if (kind == Kind.CROP) {
+                last.clip.intersect(crop);
+            } else {
+                last.transform.preConcatenate(transform);
+            }
+        } else {
+            steps.add(new Step(kind, transform, crop));
+        }
+        changed();
+    }
+
+    private void changed() {
+        combined = null;
+        clip = null;
+        bounds = null;
+        modCount++;
+    }
+
+    // Steps after folding; each kind change starts a new one.
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    public int getModCount() {
+        return modCount;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    // Source pixel coordinates to canvas coordinates. A copy, free to change.
+    public AffineTransform toAffineTransform() {
+        combine();
+        return new AffineTransform(combined);
+    }
+
+    // What the crops leave of the canvas, or null if the image was never cropped. A copy, free to change.
+    public Shape getClip() {
+        combine();
+        return clip != null ? new Area(clip) : null;
+    }
+
+    // Canvas pixels the image covers, rounded outwards.
+    public Rectangle getBounds() {
+        if (bounds == null) {
+            combine();
+            Area covered = new Area(combined.createTransformedShape(new Rectangle(0, 0, sourceWidth, sourceHeight)));
+            if (clip != null) {
+                covered.intersect(clip);
+            }
+            Rectangle2D area = covered.getBounds2D();
+            int x1 = (int) Math.floor(area.getMinX() + 1e-6), y1 = (int) Math.floor(area.getMinY() + 1e-6);
+            int x2 = (int) Math.ceil(area.getMaxX() - 1e-6), y2 = (int) Math.ceil(area.getMaxY() - 1e-6);
+            bounds = new Rectangle(x1, y1, Math.max(0, x2 - x1), Math.max(0, y2 - y1));
+        }
+        return new Rectangle(bounds);
+    }
+
+    // Canvas pixels per source pixel along whichever source axis is stretched most.
+    public double getScale() {
+        combine();
+        return Math.max(Math.hypot(combined.getScaleX(), combined.getShearY()),
+                Math.hypot(combined.getShearX(), combined.getScaleY()));
+    }
+
+    private void combine() {
+        if (combined != null) {
+            return;
+        }
+        AffineTransform total = new AffineTransform();
+        Area crops = null;
+        for (Step step : steps) {
+            total.preConcatenate(step.transform);
+            if (crops != null) {
+                crops = crops.createTransformedArea(step.transform);
+            }
+            if (step.clip != null) {
+                if (crops == null) {
+                    crops = new Area(step.clip);
+                } else {
+                    crops.intersect(step.clip);
+                }
+            }
+        }
+        combined = total;
+        clip = crops;
+    }
+
+    // The source as placed, at canvas resolution: an ARGB image the size of getBounds(), resampled by
+    // RotationEngine. Sources shrunk to under half size are scaled down by ResizeEngine first, as bilinear would
+    // alias.
+    public BufferedImage render(BufferedImage source) {
+        Rectangle area = getBounds();
+        BufferedImage result = new BufferedImage(Math.max(1, area.width), Math.max(1, area.height),
+                BufferedImage.TYPE_INT_ARGB);
+        AffineTransform draw = toAffineTransform();
+        Shape crops = getClip();
+        BufferedImage pixels = source;
+        double scaleX = Math.hypot(draw.getScaleX(), draw.getShearY());
+        double scaleY = Math.hypot(draw.getShearX(), draw.getScaleY());
+        if (scaleX < 0.5 || scaleY < 0.5) {
+            int width = Math.max(1, (int) Math.round(source.getWidth() * Math.min(1, scaleX)));
+            int height = Math.max(1, (int) Math.round(source.getHeight() * Math.min(1, scaleY)));
+            pixels = ResizeEngine.commit(source, width, height);
+            draw.scale((double) source.getWidth() / width, (double) source.getHeight() / height);
+        }
+        draw.preConcatenate(AffineTransform.getTranslateInstance(-area.x, -area.y));
+        if (crops != null) {
+            crops = AffineTransform.getTranslateInstance(-area.x, -area.y).createTransformedShape(crops);
+        }
+        RotationEngine.transform(pixels, draw, result, crops, RotationEngine.defaultInterpolation());
+        return result;
+    }
+}
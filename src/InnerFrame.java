@@ -6,6 +6,8 @@
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Future;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 
@@ -15,6 +17,9 @@ public class InnerFrame extends javax.swing.JFrame {
      * Creates new form InnerFrame
      */
     private DrawingCanvas drawingCanvas; // Declare the drawing canvas as DrawingCanvas
+    private LayersDialog layersDialog; // Created the first time Layers is pressed
+    private String status; // Last message on the status line, or null
+    private Timer autosaveStatus; // Keeps the autosave rate in the status line's tooltip current
 
     public InnerFrame() {
         initComponents(); // Call to auto-generated method
@@ -26,13 +31,105 @@ public class InnerFrame extends javax.swing.JFrame {
         drawingCanvas.setSize(Brawingboard.getWidth(), Brawingboard.getHeight()); // Set size if needed
         Brawingboard.add(drawingCanvas, BorderLayout.CENTER);
         
-        drawingCanvas.initializeCanvas(Brawingboard.getWidth(), Brawingboard.getHeight()); // Initialize canvas with
-        // dimensions
+        Dimension documentSize = documentSize(); // Initialize canvas with dimensions
+        drawingCanvas.initializeCanvas(documentSize.width, documentSize.height);
+
+        AutosaveJournal.Recovery recovery = drawingCanvas.openAutosave(); // Only there if the last run crashed
+        if (recovery != null && JOptionPane.showConfirmDialog(this,
+                "ArtStudio did not exit cleanly last time. Recover the unsaved work?", "Recover",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            drawingCanvas.recover(recovery);
+        }
+        drawingCanvas.startAutosave();
+        if (drawingCanvas.isAutosaving()) {
+            autosaveStatus = new Timer(AutosaveJournal.getIntervalMillis(), e -> updateStatusTip());
+            autosaveStatus.start();
+        }
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                stopAutosave();
+            }
+        });
 
         Brawingboard.revalidate();
         Brawingboard.repaint();
     }
 
+    // The heading line above the tools doubles as the status line. It is narrow, so the whole message is also
+    // its tooltip.
+    private void showStatus(String message) {
+        status = message;
+        jLabel1.setText(" " + message);
+        updateStatusTip();
+    }
+
+    // The last message, then how much autosave has been writing.
+    private void updateStatusTip() {
+        String rate = autosaveStatus != null ? String.format("Autosave wrote %,d bytes in the last minute",
+                drawingCanvas.getAutosaveBytesPerMinute()) : null;
+        jLabel1.setToolTipText(status == null ? rate : rate == null ? status : status + "; " + rate);
+    }
+
+    // A clean exit leaves nothing to recover.
+    private void stopAutosave() {
+        if (autosaveStatus != null) {
+            autosaveStatus.stop();
+        }
+        drawingCanvas.stopAutosave();
+    }
+
+    // Board size unless -Dartstudio.canvas.size=WIDTHxHEIGHT asks for a larger document.
+    private Dimension documentSize() {
+        String size = System.getProperty("artstudio.canvas.size");
+        if (size != null) {
+            String[] parts = size.toLowerCase().split("x");
+            try {
+                return new Dimension(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring artstudio.canvas.size=" + size);
+            }
+        }
+        return new Dimension(Brawingboard.getWidth(), Brawingboard.getHeight());
+    }
+
+    // Progress dialog for a background save; its Cancel button stops the export.
+    private class SaveProgress implements CanvasExporter.Listener {
+        private final ProgressMonitor monitor;
+        private Future<?> save;
+
+        SaveProgress(File file) {
+            monitor = new ProgressMonitor(InnerFrame.this, "Saving " + file.getName(), null, 0, 100);
+            monitor.setMillisToDecideToPopup(200); // Quick saves finish without a dialog
+        }
+
+        @Override
+        public void progress(int rowsWritten, int height) {
+            if (monitor.isCanceled()) {
+                save.cancel(true);
+            } else {
+                monitor.setProgress((int) ((long) rowsWritten * 100 / height));
+            }
+        }
+
+        @Override
+        public void finished(Path file) {
+            monitor.close();
+            JOptionPane.showMessageDialog(InnerFrame.this, "File saved successfully!");
+        }
+
+        @Override
+        public void failed(IOException e) {
+            monitor.close();
+            JOptionPane.showMessageDialog(InnerFrame.this, "Error saving file: " + e.getMessage());
+        }
+
+        @Override
+        public void cancelled() {
+            monitor.close();
+        }
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -425,6 +522,11 @@ public class InnerFrame extends javax.swing.JFrame {
 
         BtnFilter.setIcon(new javax.swing.ImageIcon(getClass().getResource("/Icons/color-filter-line.png"))); // NOI18N
         BtnFilter.setText("Filters");
+        BtnFilter.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                BtnFilterActionPerformed(evt);
+            }
+        });
 
         BtnGoback.setIcon(new javax.swing.ImageIcon(getClass().getResource("/Icons/arrow-go-back-fill.png"))); // NOI18N
         BtnGoback.addActionListener(new java.awt.event.ActionListener() {
@@ -478,6 +580,12 @@ public class InnerFrame extends javax.swing.JFrame {
         });
 
         BtnMarker.setIcon(new javax.swing.ImageIcon(getClass().getResource("/Icons/markup-line.png"))); // NOI18N
+        BtnMarker.setToolTipText("Select and move shapes");
+        BtnMarker.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                BtnMarkerActionPerformed(evt);
+            }
+        });
 
         jSlider1.setMaximum(50);
         jSlider1.setMinorTickSpacing(5);
@@ -657,12 +765,13 @@ public class InnerFrame extends javax.swing.JFrame {
                 return f.isDirectory() || f.getName().toLowerCase().endsWith(".png")
                         || f.getName().toLowerCase().endsWith(".jpg")
                         || f.getName().toLowerCase().endsWith(".jpeg")
-                        || f.getName().toLowerCase().endsWith(".webp");
+                        || f.getName().toLowerCase().endsWith(".webp")
+                        || f.getName().toLowerCase().endsWith(ProjectFile.EXTENSION);
             }
             
             @Override
             public String getDescription() {
-                return "Images (*.png, *.jpg, *.jpeg, *.webp)";
+                return "Images and projects (*.png, *.jpg, *.jpeg, *.webp, *" + ProjectFile.EXTENSION + ")";
             }
         });
         
@@ -670,15 +779,20 @@ public class InnerFrame extends javax.swing.JFrame {
 
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
-            try {
-                drawingCanvas.addImage(selectedFile.getAbsolutePath()); // Add the image to the canvas.
-                drawingCanvas.deactivateEraser(); // Ensure no other modes are active.
-                drawingCanvas.setDrawingShape(false, ""); // Ensure no shapes are being drawn.
-                drawingCanvas.setResizingMode(false); // Ensure resizing mode is off.
-                drawingCanvas.setDraggingMode(false); // Ensure dragging mode is off.
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error loading image: " + ex.getMessage());
+            if (selectedFile.getName().toLowerCase().endsWith(ProjectFile.EXTENSION)) { // Opens in place of the canvas
+                try {
+                    drawingCanvas.openProject(selectedFile.getAbsolutePath());
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(this, "Error opening project: " + ex.getMessage());
+                }
+                return;
             }
+            drawingCanvas.addImage(selectedFile.getAbsolutePath(), // Decodes in the background
+                    ex -> JOptionPane.showMessageDialog(this, "Error loading image: " + ex.getMessage()));
+            drawingCanvas.deactivateEraser(); // Ensure no other modes are active.
+            drawingCanvas.setDrawingShape(false, ""); // Ensure no shapes are being drawn.
+            drawingCanvas.setResizingMode(false); // Ensure resizing mode is off.
+            drawingCanvas.setDraggingMode(false); // Ensure dragging mode is off.
         }
     }// GEN-LAST:event_BtnAddimageActionPerformed
 
@@ -686,6 +800,7 @@ public class InnerFrame extends javax.swing.JFrame {
         JFrame frame = new JFrame("Exit");
         if (JOptionPane.showConfirmDialog(frame, "Are you sure you want to Exit ?", "Exit",
                 JOptionPane.YES_NO_OPTION) == JOptionPane.YES_NO_OPTION) {
+            stopAutosave();
             System.exit(0);
         }
     }// GEN-LAST:event_BtnExitActionPerformed
@@ -694,7 +809,7 @@ public class InnerFrame extends javax.swing.JFrame {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Save As");
         
-        fileChooser.setFileFilter(new FileFilter() {
+        FileFilter pngFilter = new FileFilter() {
             @Override
             public boolean accept(File f) {
                 return f.isDirectory() || f.getName().toLowerCase().endsWith(".png");
@@ -704,21 +819,57 @@ public class InnerFrame extends javax.swing.JFrame {
             public String getDescription() {
                 return "PNG Images (*.png)";
             }
-        });
+        };
+        FileFilter projectFilter = new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isDirectory() || f.getName().toLowerCase().endsWith(ProjectFile.EXTENSION);
+            }
+            
+            @Override
+            public String getDescription() {
+                return "ArtStudio Projects (*" + ProjectFile.EXTENSION + ")";
+            }
+        };
+        fileChooser.addChoosableFileFilter(projectFilter);
+        fileChooser.setFileFilter(pngFilter);
         
         fileChooser.setAcceptAllFileFilterUsed(false);
         
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
+            if (fileChooser.getFileFilter() == projectFilter
+                    || fileToSave.getName().toLowerCase().endsWith(ProjectFile.EXTENSION)) {
+                if (!fileToSave.getName().toLowerCase().endsWith(ProjectFile.EXTENSION)) {
+                    fileToSave = new File(fileToSave.getAbsolutePath() + ProjectFile.EXTENSION);
+                }
+                long start = System.nanoTime();
+                try {
+                    drawingCanvas.saveProject(fileToSave.getAbsolutePath(), new DrawingCanvas.ProjectListener() {
+                        @Override
+                        public void saved(Path file, long fileLength) { // Only changes after the first save
+                            showStatus(String.format("Saved %s in %.2f ms, %,d bytes", file.getFileName(),
+                                    (System.nanoTime() - start) / 1e6, fileLength));
+                        }
+
+                        @Override
+                        public void failed(IOException e) {
+                            JOptionPane.showMessageDialog(InnerFrame.this,
+                                    "Error saving project: " + e.getMessage());
+                        }
+                    });
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(this, "Error saving project: " + ex.getMessage());
+                }
+                return;
+            }
             if (!fileToSave.getAbsolutePath().toLowerCase().endsWith(".png")) {
                 fileToSave = new File(fileToSave.getAbsolutePath() + ".png");
             }
-            try {
-                drawingCanvas.saveCanvasAsPNG(fileToSave.getAbsolutePath());
-                JOptionPane.showMessageDialog(this, "File saved successfully!");
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error saving file: " + ex.getMessage());
-            }
+            SaveProgress progress = new SaveProgress(fileToSave); // Callbacks come later on this thread, after save is set
+            progress.save = drawingCanvas.saveCanvasAsPNGAsync(fileToSave.getAbsolutePath(), progress);
+            showStatus(String.format("Saving %s; the UI was blocked for %.2f ms", fileToSave.getName(),
+                    drawingCanvas.getSaveBlockedMillis()));
         }
         
     }// GEN-LAST:event_BtnSaveActionPerformed
@@ -797,9 +948,17 @@ public class InnerFrame extends javax.swing.JFrame {
     }// GEN-LAST:event_BtnStarActionPerformed
 
     private void BtnLayersActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_BtnLayersActionPerformed
-        // TODO add your handling code here:
+        if (layersDialog == null) {
+            layersDialog = new LayersDialog(this, drawingCanvas);
+        }
+        layersDialog.refresh(); // The document may have been replaced since it was last shown
+        layersDialog.setVisible(true);
     }// GEN-LAST:event_BtnLayersActionPerformed
 
+    private void BtnFilterActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_BtnFilterActionPerformed
+        new FiltersDialog(this, drawingCanvas).setVisible(true);
+    }// GEN-LAST:event_BtnFilterActionPerformed
+
     private void BtnPentagonActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_BtnPentagonActionPerformed
         drawingCanvas.setDrawingShape(true, "Pentagon");
     }// GEN-LAST:event_BtnPentagonActionPerformed
@@ -808,6 +967,10 @@ public class InnerFrame extends javax.swing.JFrame {
         drawingCanvas.setDrawingShape(true, "Hexagon");
     }// GEN-LAST:event_BtnHexagonActionPerformed
 
+    private void BtnMarkerActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_BtnMarkerActionPerformed
+        drawingCanvas.setShapeSelectMode(true); // Drag shapes around instead of painting
+    }// GEN-LAST:event_BtnMarkerActionPerformed
+
     private void BtnCropActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_BtnCropActionPerformed
         drawingCanvas.setCroppingMode(true); // Activate cropping mode.
     }// GEN-LAST:event_BtnCropActionPerformed
@@ -0,0 +1,251 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Undo/redo history kept as a binary journal of {@link CanvasOp}s plus a
+ * keyframe of the surface every few ops. Undo restores the nearest keyframe at
+ * or before the target edit and replays the journal from there; redo replays
+ * the one edit on top of the canvas. Keyframes share tiles with the surface,
+ * so each one only costs the tiles painted after it was taken.
+ */
+public class JournalHistory implements CanvasHistory {
+
+    private final int keyframeInterval; // Ops between keyframes
+    private final int maxEdits;
+    private TiledSurface surface;
+
+    private byte[] journal = new byte[4096];
+    private int journalLength = 0;
+    private int committedLength = 0; // Ops past this offset belong to the edit in progress
+    private int pendingOps = 0;
+
+    private final List<Integer> editStarts = new ArrayList<>(); // Journal offset where each edit begins
+    private final List<Integer> editFirstOps = new ArrayList<>(); // Running op count where each edit begins
+    private int committedOps = 0;
+    private final TreeMap<Integer, BufferedImage[]> keyframes = new TreeMap<>(); // Edit index -> tiles before it
+    private int appliedEdits = 0;
+
+    private final ByteArrayOutputStream opBytes = new ByteArrayOutputStream(64);
+    private final DataOutputStream opOut = new DataOutputStream(opBytes);
+
+    public JournalHistory(int keyframeInterval, int maxEdits) {
+        this.keyframeInterval = keyframeInterval;
+        this.maxEdits = maxEdits;
+    }
+
+    @Override
+    public void reset(TiledSurface surface) {
+        this.surface = surface;
+        journalLength = 0;
+        committedLength = 0;
+        pendingOps = 0;
+        committedOps = 0;
+        editStarts.clear();
+        editFirstOps.clear();
+        keyframes.clear();
+        appliedEdits = 0;
+        if (surface != null) {
+            keyframes.put(0, surface.snapshot());
+        }
+    }
+
+    @Override
+    public void record(CanvasOp op, Rectangle area) {
+        if (surface == null) {
+            return;
+        }
+        if (pendingOps == 0 && appliedEdits < editStarts.size()) { // A new edit discards the redo branch
+            journalLength = editStarts.get(appliedEdits);
+            committedLength = journalLength;
+            committedOps = editFirstOps.get(appliedEdits);
+            editStarts.subList(appliedEdits, editStarts.size()).clear();
+            editFirstOps.subList(appliedEdits, editFirstOps.size()).clear();
+            keyframes.tailMap(appliedEdits, false).clear();
+        }
+        try {
+            opBytes.reset();
+            op.write(opOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory does not fail
+        }
+        if (journalLength + opBytes.size() > journal.length) {
+            journal = Arrays.copyOf(journal, Math.max(journal.length * 2, journalLength + opBytes.size()));
+        }
+        System.arraycopy(opBytes.toByteArray(), 0, journal, journalLength, opBytes.size());
+        journalLength += opBytes.size();
+        pendingOps++;
+    }
+
+    @Override
+    public boolean commit() {
+        if (pendingOps == 0) {
+            return false;
+        }
+        editStarts.add(committedLength);
+        editFirstOps.add(committedOps);
+        committedLength = journalLength;
+        committedOps += pendingOps;
+        pendingOps = 0;
+        appliedEdits = editStarts.size();
+        if (committedOps - editFirstOps.get(keyframes.lastKey()) >= keyframeInterval) {
+            keyframes.put(appliedEdits, surface.snapshot());
+        }
+        trimToDepth();
+        return true;
+    }
+
+    @Override
+    public Rectangle undo() {
+        commit();
+        if (appliedEdits == 0) {
+            return null;
+        }
+        appliedEdits--;
+        Rectangle changed = replay(appliedEdits, appliedEdits + 1, false); // Replaying the rest repaints it as it was
+        Map.Entry<Integer, BufferedImage[]> keyframe = keyframes.floorEntry(appliedEdits);
+        surface.restore(keyframe.getValue());
+        replay(keyframe.getKey(), appliedEdits, true);
+        return changed;
+    }
+
+    @Override
+    public Rectangle redo() {
+        commit();
+        if (appliedEdits == editStarts.size()) {
+            return null;
+        }
+        appliedEdits++;
+        return replay(appliedEdits - 1, appliedEdits, true);
+    }
+
+    // Journal bytes plus every distinct painted tile the keyframes hold on to.
+    @Override
+    public long getHistoryBytes() {
+        Set<BufferedImage> held = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BufferedImage[] keyframe : keyframes.values()) {
+            for (BufferedImage tile : keyframe) {
+                if (tile != null && !TiledSurface.isBlank(tile)) { // Null is a tile still in the project file
+                    held.add(tile);
+                }
+            }
+        }
+        return journalLength + (long) held.size() * TiledSurface.TILE_BYTES;
+    }
+
+    // Compared with a full-document snapshot per edit, as DrawingCanvas used to keep.
+    @Override
+    public double getCompressionRatio() {
+        long snapshotBytes = surface == null ? 0
+                : (long) (editStarts.size() + 1) * surface.getWidth() * surface.getHeight() * 4;
+        return snapshotBytes / (double) Math.max(1, getHistoryBytes());
+    }
+
+    @Override
+    public Saved save() {
+        if (surface == null) {
+            return null;
+        }
+        commit();
+        byte[][] edits = new byte[appliedEdits][];
+        for (int i = 0; i < appliedEdits; i++) {
+            int end = i + 1 < editStarts.size() ? editStarts.get(i + 1) : committedLength;
+            edits[i] = Arrays.copyOfRange(journal, editStarts.get(i), end);
+        }
+        return new Saved(keyframes.get(0), edits);
+    }
+
+    // Takes the saved journal as is; the only keyframes are the saved base and the surface as it is now.
+    @Override
+    public void load(TiledSurface surface, Saved saved) throws IOException {
+        reset(surface);
+        keyframes.clear();
+        keyframes.put(0, saved.getBase());
+        for (byte[] edit : saved.getEdits()) {
+            editStarts.add(journalLength);
+            editFirstOps.add(committedOps);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(edit))) {
+                while (in.available() > 0) {
+                    CanvasOp.read(in); // Only counted here; checks the edit is readable before it is needed
+                    committedOps++;
+                }
+            }
+            if (journalLength + edit.length > journal.length) {
+                journal = Arrays.copyOf(journal, Math.max(journal.length * 2, journalLength + edit.length));
+            }
+            System.arraycopy(edit, 0, journal, journalLength, edit.length);
+            journalLength += edit.length;
+        }
+        committedLength = journalLength;
+        appliedEdits = editStarts.size();
+        keyframes.put(appliedEdits, surface.snapshot());
+    }
+
+    public int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    // Paints edits [from, to) onto the canvas, or only reads them unless paint, and returns the area they cover.
+    private Rectangle replay(int from, int to, boolean paint) {
+        if (from >= to) {
+            return null;
+        }
+        int start = editStarts.get(from);
+        int end = to < editStarts.size() ? editStarts.get(to) : committedLength;
+        Rectangle changed = null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal, start, end - start))) {
+            while (in.available() > 0) {
+                CanvasOp op = CanvasOp.read(in);
+                Rectangle area = surface.bounds(op);
+                changed = changed == null ? area : changed.union(area);
+                if (paint) {
+                    surface.apply(op, area);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt undo journal", e);
+        }
+        return changed;
+    }
+
+    // Once a later keyframe has a full depth of edits after it, everything before it is dropped.
+    private void trimToDepth() {
+        while (editStarts.size() > maxEdits) {
+            Integer base = keyframes.higherKey(0);
+            if (base == null || base > appliedEdits || editStarts.size() - base < maxEdits) {
+                return;
+            }
+            int byteShift = editStarts.get(base);
+            int opShift = editFirstOps.get(base);
+            System.arraycopy(journal, byteShift, journal, 0, journalLength - byteShift);
+            journalLength -= byteShift;
+            committedLength -= byteShift;
+            committedOps -= opShift;
+            editStarts.subList(0, base).clear();
+            editFirstOps.subList(0, base).clear();
+            for (int i = 0; i < editStarts.size(); i++) {
+                editStarts.set(i, editStarts.get(i) - byteShift);
+                editFirstOps.set(i, editFirstOps.get(i) - opShift);
+            }
+            TreeMap<Integer, BufferedImage[]> kept = new TreeMap<>();
+            for (Map.Entry<Integer, BufferedImage[]> entry : keyframes.tailMap(base, true).entrySet()) {
+                kept.put(entry.getKey() - base, entry.getValue());
+            }
+            keyframes.clear();
+            keyframes.putAll(kept);
+            appliedEdits -= base;
+        }
+    }
+}
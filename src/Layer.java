@@ -0,0 +1,62 @@
+/**
+ * One layer of the document: its pixels, how they composite onto the layers
+ * below, and the undo history of what was painted on it. Change the
+ * compositing properties through {@link LayerStack} so its caches follow.
+ */
+public class Layer {
+
+    private String name;
+    private final TiledSurface surface;
+    private float opacity = 1;
+    private boolean visible = true;
+    private BlendMode blendMode = BlendMode.NORMAL;
+    private CanvasHistory history;
+
+    public Layer(String name, TiledSurface surface) {
+        this.name = name;
+        this.surface = surface;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public TiledSurface getSurface() {
+        return surface;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public BlendMode getBlendMode() {
+        return blendMode;
+    }
+
+    // Null for layers that only exist to be composited, such as export copies.
+    public CanvasHistory getHistory() {
+        return history;
+    }
+
+    public void setHistory(CanvasHistory history) {
+        this.history = history;
+    }
+
+    // Same properties over a copy-on-write copy of the pixels; no history.
+    public Layer copy() {
+        Layer copy = new Layer(name, surface.copy());
+        copy.setProperties(name, opacity, visible, blendMode);
+        return copy;
+    }
+
+    void setProperties(String name, float opacity, boolean visible, BlendMode blendMode) {
+        this.name = name;
+        this.opacity = Math.max(0, Math.min(1, opacity));
+        this.visible = visible;
+        this.blendMode = blendMode;
+    }
+}
@@ -0,0 +1,269 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The document's layers, bottom first, and the compositor that flattens them.
+ * <p>
+ * The flattened result is cached per tile and a tile is only composited
+ * again once a layer changes under it. While one layer is being painted,
+ * the visible layers below it are kept flattened per tile, and so are the
+ * layers above it when they all blend normally (source-over is associative,
+ * the other modes are not). Recompositing a tile after a stroke then blends
+ * at most three tiles whatever the number of layers.
+ * <p>
+ * A single plain layer is the common case; it is read straight from its
+ * surface without any cache.
+ */
+public class LayerStack implements PixelSource {
+
+    private static final int TILE_SIZE = TiledSurface.TILE_SIZE;
+
+    private final int width, height;
+    private final List<Layer> layers = new ArrayList<>();
+    private int active;
+    private int modCount; // Bumped by every change to the list or to a layer's properties
+
+    private final TiledSurface grid; // Tile geometry shared by every layer
+    private final BufferedImage[] composite; // Flattened tiles; null until needed or after a change under them
+    private final int[][] below, above; // Flattened layers under and over the active one, per tile
+    private boolean aboveFlattens; // Every visible layer above the active one blends normally
+
+    public LayerStack(Layer background) {
+        this.width = background.getSurface().getWidth();
+        this.height = background.getSurface().getHeight();
+        this.grid = new TiledSurface(width, height);
+        this.composite = new BufferedImage[grid.getTileCount()];
+        this.below = new int[grid.getTileCount()][];
+        this.above = new int[grid.getTileCount()][];
+        layers.add(background);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    public Layer get(int index) {
+        return layers.get(index);
+    }
+
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    public int getActiveIndex() {
+        return active;
+    }
+
+    public Layer getActive() {
+        return layers.get(active);
+    }
+
+    public int getModCount() {
+        return modCount;
+    }
+
+    public void setActive(int index) {
+        if (index != active) {
+            active = index;
+            dropGroups();
+        }
+    }
+
+    // Inserts the layer at index (0 is the bottom) and makes it active.
+    public void add(int index, Layer layer) {
+        if (layer.getSurface().getWidth() != width || layer.getSurface().getHeight() != height) {
+            throw new IllegalArgumentException("Layer is " + layer.getSurface().getWidth() + "x"
+                    + layer.getSurface().getHeight() + ", document is " + width + "x" + height);
+        }
+        layers.add(index, layer);
+        active = index;
+        changedAll();
+    }
+
+    // The bottom layer stays; returns null when asked to remove it and it is the only one.
+    public Layer remove(int index) {
+        if (layers.size() == 1) {
+            return null;
+        }
+        Layer removed = layers.remove(index);
+        active = Math.min(active > index ? active - 1 : active, layers.size() - 1);
+        changedAll();
+        return removed;
+    }
+
+    // Moves a layer up or down the stack; the active layer stays active.
+    public void move(int from, int to) {
+        Layer activeLayer = getActive();
+        layers.add(to, layers.remove(from));
+        active = layers.indexOf(activeLayer);
+        changedAll();
+    }
+
+    public void setProperties(int index, String name, float opacity, boolean visible, BlendMode blendMode) {
+        Layer layer = layers.get(index);
+        boolean looksSame = layer.getOpacity() == opacity && layer.isVisible() == visible
+                && layer.getBlendMode() == blendMode;
+        layer.setProperties(name, opacity, visible, blendMode);
+        modCount++;
+        if (!looksSame) {
+            changedAll();
+        }
+    }
+
+    // Pixels of the layer changed under area.
+    public void invalidate(Layer layer, Rectangle area) {
+        boolean grouped = layer != getActive();
+        for (int index : grid.tilesIn(area)) {
+            composite[index] = null;
+            if (grouped) {
+                below[index] = null;
+                above[index] = null;
+            }
+        }
+    }
+
+    // Every layer the same, with copy-on-write pixels and no history, for saving while painting goes on.
+    public LayerStack copy() {
+        LayerStack copy = new LayerStack(layers.get(0).copy());
+        for (int i = 1; i < layers.size(); i++) {
+            copy.layers.add(layers.get(i).copy());
+        }
+        copy.active = active;
+        copy.modCount = modCount;
+        copy.dropGroups();
+        return copy;
+    }
+
+    // The only layer's surface when it shows as it is; the composite is then that surface itself.
+    public TiledSurface getPlainSurface() {
+        if (layers.size() != 1) {
+            return null;
+        }
+        Layer layer = layers.get(0);
+        return layer.isVisible() && layer.getOpacity() == 1 ? layer.getSurface() : null;
+    }
+
+    // Draws the flattened tiles under area in document coordinates.
+    public void drawTo(Graphics2D g, Rectangle area) {
+        TiledSurface plain = getPlainSurface();
+        if (plain != null) {
+            plain.drawTo(g, area);
+            return;
+        }
+        for (int index : grid.tilesIn(area)) {
+            Rectangle tile = grid.tileBounds(index);
+            g.drawImage(compositeTile(index), tile.x, tile.y, tile.x + tile.width, tile.y + tile.height, 0, 0,
+                    tile.width, tile.height, null);
+        }
+    }
+
+    @Override
+    public void readPixels(Rectangle area, int[] out) {
+        TiledSurface plain = getPlainSurface();
+        if (plain != null) {
+            plain.readPixels(area, out);
+            return;
+        }
+        if (!new Rectangle(0, 0, width, height).contains(area)) {
+            Arrays.fill(out, 0, area.width * area.height, 0);
+        }
+        for (int index : grid.tilesIn(area)) {
+            Rectangle tile = grid.tileBounds(index);
+            Rectangle r = tile.intersection(area);
+            int[] pixels = ((DataBufferInt) compositeTile(index).getRaster().getDataBuffer()).getData();
+            for (int y = r.y; y < r.y + r.height; y++) {
+                System.arraycopy(pixels, (y - tile.y) * TILE_SIZE + (r.x - tile.x), out,
+                        (y - area.y) * area.width + (r.x - area.x), r.width);
+            }
+        }
+    }
+
+    @Override
+    public boolean isBlank(Rectangle area) {
+        TiledSurface plain = getPlainSurface();
+        return plain != null && plain.isBlank(area);
+    }
+
+    private synchronized BufferedImage compositeTile(int index) { // Exports read bands in parallel
+        if (composite[index] != null) {
+            return composite[index];
+        }
+        Rectangle tile = grid.tileBounds(index);
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] out = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] scratch = new int[TILE_SIZE * TILE_SIZE];
+        if (active > 0) {
+            if (below[index] == null) {
+                below[index] = flatten(0, active, tile, scratch);
+            }
+            System.arraycopy(below[index], 0, out, 0, out.length);
+        }
+        blendLayer(getActive(), tile, out, scratch);
+        if (active < layers.size() - 1) {
+            if (aboveFlattens) {
+                if (above[index] == null) {
+                    above[index] = flatten(active + 1, layers.size(), tile, scratch);
+                }
+                BlendMode.NORMAL.composite(above[index], out, out.length, 1);
+            } else {
+                for (int i = active + 1; i < layers.size(); i++) {
+                    blendLayer(layers.get(i), tile, out, scratch);
+                }
+            }
+        }
+        composite[index] = image;
+        return image;
+    }
+
+    // Layers [from, to) flattened onto transparency, packed TILE_SIZE pixels per row.
+    private int[] flatten(int from, int to, Rectangle tile, int[] scratch) {
+        int[] out = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = from; i < to; i++) {
+            blendLayer(layers.get(i), tile, out, scratch);
+        }
+        return out;
+    }
+
+    private static void blendLayer(Layer layer, Rectangle tile, int[] out, int[] scratch) {
+        TiledSurface surface = layer.getSurface();
+        if (!layer.isVisible() || layer.getOpacity() == 0
+                || (surface.isTransparent() && surface.isUnpainted(tile))) {
+            return;
+        }
+        Rectangle full = new Rectangle(tile.x, tile.y, TILE_SIZE, TILE_SIZE); // Edge tiles read 0 past the edge
+        surface.readPixels(full, scratch);
+        layer.getBlendMode().composite(scratch, out, scratch.length, layer.getOpacity());
+    }
+
+    private void changedAll() {
+        modCount++;
+        Arrays.fill(composite, null);
+        dropGroups();
+    }
+
+    private void dropGroups() {
+        Arrays.fill(below, null);
+        Arrays.fill(above, null);
+        aboveFlattens = true;
+        for (int i = active + 1; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            aboveFlattens &= !layer.isVisible() || layer.getBlendMode() == BlendMode.NORMAL;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.Window;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.ListSelectionModel;
+
+/**
+ * Layer panel for the canvas: the stack top first, with buttons to add,
+ * delete, reorder and rename layers, and controls for the selected layer's
+ * visibility, opacity and blend mode. Selecting a layer makes it the one
+ * painted on.
+ */
+public class LayersDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DrawingCanvas canvas;
+    private final DefaultListModel<String> names = new DefaultListModel<>();
+    private final JList<String> list = new JList<>(names);
+    private final JCheckBox visible = new JCheckBox("Visible");
+    private final JSlider opacity = new JSlider(0, 100, 100);
+    private final JComboBox<BlendMode> blendMode = new JComboBox<>(BlendMode.values());
+    private boolean updating; // Filling the controls in, not the user changing them
+
+    public LayersDialog(Window owner, DrawingCanvas canvas) {
+        super(owner, "Layers", ModalityType.MODELESS);
+        this.canvas = canvas;
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.addListSelectionListener(e -> {
+            if (!updating && !e.getValueIsAdjusting() && list.getSelectedIndex() >= 0) {
+                canvas.setActiveLayer(toStack(list.getSelectedIndex()));
+                refresh();
+            }
+        });
+        visible.addActionListener(e -> propertiesChanged());
+        opacity.addChangeListener(e -> propertiesChanged());
+        blendMode.addActionListener(e -> propertiesChanged());
+
+        JPanel buttons = new JPanel(new GridLayout(1, 0, 4, 0));
+        buttons.add(button("Add", () -> canvas.addLayer()));
+        buttons.add(button("Delete", () -> canvas.removeLayer(activeIndex())));
+        buttons.add(button("Up", () -> move(1)));
+        buttons.add(button("Down", () -> move(-1)));
+        buttons.add(button("Rename", this::rename));
+
+        JPanel properties = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        properties.add(visible);
+        properties.add(new JLabel("Opacity"));
+        properties.add(opacity);
+        properties.add(blendMode);
+
+        JPanel controls = new JPanel(new BorderLayout());
+        controls.add(properties, BorderLayout.NORTH);
+        controls.add(buttons, BorderLayout.SOUTH);
+        getContentPane().add(new JScrollPane(list), BorderLayout.CENTER);
+        getContentPane().add(controls, BorderLayout.SOUTH);
+        refresh();
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    // Fills the list and controls in from the canvas's layers.
+    public void refresh() {
+        updating = true;
+        LayerStack layers = canvas.getLayers();
+        names.clear();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            Layer layer = layers.get(i);
+            names.addElement(layer.isVisible() ? layer.getName() : layer.getName() + " (hidden)");
+        }
+        list.setSelectedIndex(toList(layers.getActiveIndex()));
+        Layer active = layers.getActive();
+        visible.setSelected(active.isVisible());
+        opacity.setValue(Math.round(active.getOpacity() * 100));
+        blendMode.setSelectedItem(active.getBlendMode());
+        updating = false;
+    }
+
+    private JButton button(String text, Runnable action) {
+        JButton button = new JButton(text);
+        button.addActionListener(e -> {
+            action.run();
+            refresh();
+        });
+        return button;
+    }
+
+    private void propertiesChanged() {
+        if (updating) {
+            return;
+        }
+        Layer active = canvas.getLayers().getActive();
+        canvas.setLayerProperties(activeIndex(), active.getName(), opacity.getValue() / 100f, visible.isSelected(),
+                (BlendMode) blendMode.getSelectedItem());
+        if (!opacity.getValueIsAdjusting()) {
+            refresh();
+        }
+    }
+
+    // Moves the active layer up (1) or down (-1) the stack.
+    private void move(int direction) {
+        int to = activeIndex() + direction;
+        if (to >= 0 && to < canvas.getLayers().size()) {
+            canvas.moveLayer(activeIndex(), to);
+        }
+    }
+
+    private void rename() {
+        Layer active = canvas.getLayers().getActive();
+        String name = JOptionPane.showInputDialog(this, "Layer name:", active.getName());
+        if (name != null && !name.trim().isEmpty()) {
+            canvas.setLayerProperties(activeIndex(), name.trim(), active.getOpacity(), active.isVisible(),
+                    active.getBlendMode());
+        }
+    }
+
+    private int activeIndex() {
+        return canvas.getLayers().getActiveIndex();
+    }
+
+    // The list shows the top layer first.
+    private int toStack(int row) {
+        return canvas.getLayers().size() - 1 - row;
+    }
+
+    private int toList(int index) {
+        return canvas.getLayers().size() - 1 - index;
+    }
+}
@@ -0,0 +1,165 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Half-resolution copies of a {@link PixelSource}, kept as 128x128 tiles per
+ * level. Tiles are built on first paint from the level below with a 2x2 box
+ * filter, and {@link #invalidate(Rectangle)} drops the tiles above a changed
+ * area at every level so the next paint rebuilds just those.
+ */
+public class MipmapPyramid {
+
+    private static final int TILE_SIZE = TiledSurface.TILE_SIZE;
+
+    private final PixelSource source;
+    private final int maxLevel;
+    private final BufferedImage[][] levels; // [level][tile], level 0 is the source itself
+    private final int[] tilesAcross;
+    private final int[] tilesDown;
+    private final int[] block = new int[4 * TILE_SIZE * TILE_SIZE]; // 2x2 tiles of the level below
+    private final int[] reduced = new int[TILE_SIZE * TILE_SIZE];
+    private BufferedImage blankTile; // Shared by level tiles over plain white source
+
+    public MipmapPyramid(PixelSource source) {
+        this.source = source;
+        int level = 0;
+        while ((Math.max(source.getWidth(), source.getHeight()) >> level) > TILE_SIZE) {
+            level++;
+        }
+        this.maxLevel = level;
+        this.levels = new BufferedImage[maxLevel + 1][];
+        this.tilesAcross = new int[maxLevel + 1];
+        this.tilesDown = new int[maxLevel + 1];
+        for (int l = 1; l <= maxLevel; l++) {
+            tilesAcross[l] = (levelSize(source.getWidth(), l) + TILE_SIZE - 1) / TILE_SIZE;
+            tilesDown[l] = (levelSize(source.getHeight(), l) + TILE_SIZE - 1) / TILE_SIZE;
+            levels[l] = new BufferedImage[tilesAcross[l] * tilesDown[l]];
+        }
+    }
+
+    // Coarsest level that still has at least one level pixel per device pixel at this scale.
+    public int levelFor(double scale) {
+        if (scale >= 0.5) {
+            return 0;
+        }
+        int level = (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+        return Math.min(level, maxLevel);
+    }
+
+    // Forgets every level tile built from any part of the area.
+    public void invalidate(Rectangle area) {
+        if (area == null) {
+            return;
+        }
+        for (int l = 1; l <= maxLevel; l++) {
+            int span = TILE_SIZE << l; // Source pixels per level tile
+            int firstX = Math.max(0, Math.floorDiv(area.x, span));
+            int firstY = Math.max(0, Math.floorDiv(area.y, span));
+            int lastX = Math.min(tilesAcross[l] - 1, Math.floorDiv(area.x + area.width - 1, span));
+            int lastY = Math.min(tilesDown[l] - 1, Math.floorDiv(area.y + area.height - 1, span));
+            for (int ty = firstY; ty <= lastY; ty++) {
+                for (int tx = firstX; tx <= lastX; tx++) {
+                    levels[l][ty * tilesAcross[l] + tx] = null;
+                }
+            }
+        }
+    }
+
+    // Draws the level tiles under area, given in source coordinates, scaled back up to source size.
+    public void draw(Graphics2D g, int level, Rectangle area) {
+        Rectangle r = area.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        int span = TILE_SIZE << level;
+        for (int ty = r.y / span; ty <= (r.y + r.height - 1) / span; ty++) {
+            for (int tx = r.x / span; tx <= (r.x + r.width - 1) / span; tx++) {
+                BufferedImage tile = tile(level, tx, ty);
+                int validWidth = Math.min(TILE_SIZE, levelSize(source.getWidth(), level) - tx * TILE_SIZE);
+                int validHeight = Math.min(TILE_SIZE, levelSize(source.getHeight(), level) - ty * TILE_SIZE);
+                int x = tx * span;
+                int y = ty * span;
+                int width = Math.min(validWidth << level, source.getWidth() - x);
+                int height = Math.min(validHeight << level, source.getHeight() - y);
+                g.drawImage(tile, x, y, x + width, y + height, 0, 0, validWidth, validHeight, null);
+            }
+        }
+    }
+
+    private BufferedImage tile(int level, int tx, int ty) {
+        int index = ty * tilesAcross[level] + tx;
+        if (levels[level][index] == null) {
+            levels[level][index] = build(level, tx, ty);
+        }
+        return levels[level][index];
+    }
+
+    private BufferedImage build(int level, int tx, int ty) {
+        int span = TILE_SIZE << level;
+        if (source.isBlank(new Rectangle(tx * span, ty * span, span, span))) {
+            if (blankTile == null) {
+                blankTile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = blankTile.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+                g.dispose();
+            }
+            return blankTile;
+        }
+        int blockSize = 2 * TILE_SIZE;
+        if (level == 1) {
+            source.readPixels(new Rectangle(tx * blockSize, ty * blockSize, blockSize, blockSize), block);
+        } else {
+            BufferedImage[] children = new BufferedImage[4]; // Built before block is filled; building reuses it
+            for (int i = 0; i < 4; i++) {
+                int childX = 2 * tx + (i & 1);
+                int childY = 2 * ty + (i >> 1);
+                if (childX < tilesAcross[level - 1] && childY < tilesDown[level - 1]) {
+                    children[i] = tile(level - 1, childX, childY);
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                int offset = (i >> 1) * TILE_SIZE * blockSize + (i & 1) * TILE_SIZE;
+                for (int row = 0; row < TILE_SIZE; row++) {
+                    if (children[i] == null) {
+                        Arrays.fill(block, offset + row * blockSize, offset + row * blockSize + TILE_SIZE, 0);
+                    } else {
+                        children[i].getRGB(0, row, TILE_SIZE, 1, block, offset + row * blockSize, TILE_SIZE);
+                    }
+                }
+            }
+        }
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                int i = 2 * y * blockSize + 2 * x;
+                reduced[y * TILE_SIZE + x] = average(block[i], block[i + 1], block[i + blockSize],
+                        block[i + blockSize + 1]);
+            }
+        }
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        tile.getRaster().setDataElements(0, 0, TILE_SIZE, TILE_SIZE, reduced);
+        return tile;
+    }
+
+    // Alpha-weighted mean of four ARGB pixels, so transparent neighbours do not darken the colour.
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        int alpha = a0 + a1 + a2 + a3;
+        if (alpha == 0) {
+            return 0;
+        }
+        int r = ((p0 >> 16 & 0xff) * a0 + (p1 >> 16 & 0xff) * a1 + (p2 >> 16 & 0xff) * a2 + (p3 >> 16 & 0xff) * a3)
+                / alpha;
+        int g = ((p0 >> 8 & 0xff) * a0 + (p1 >> 8 & 0xff) * a1 + (p2 >> 8 & 0xff) * a2 + (p3 >> 8 & 0xff) * a3)
+                / alpha;
+        int b = ((p0 & 0xff) * a0 + (p1 & 0xff) * a1 + (p2 & 0xff) * a2 + (p3 & 0xff) * a3) / alpha;
+        return ((alpha + 2) / 4) << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static int levelSize(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Random;
+
+/**
+ * Time per pixel of each {@link PixelKernels} kernel, scalar against the
+ * implementation {@link PixelKernels#get()} picks, and the speedup. Both
+ * outputs of every kernel are compared, allowing channels to differ by one
+ * where the vector code rounds a half the other way.
+ * <p>
+ * Run with --add-modules jdk.incubator.vector, or both columns are scalar.
+ * <p>
+ * Usage: java --add-modules jdk.incubator.vector PixelKernelBenchmark [pixels] [iterations]
+ */
+public class PixelKernelBenchmark {
+
+    private interface Kernel {
+        void run(PixelKernels kernels);
+    }
+
+    private static int pixels;
+    private static int[] source, backdrop, out;
+    private static float[] planes;
+    private static byte[] bytes;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        pixels = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Random random = new Random(42);
+        source = new int[pixels];
+        backdrop = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            source[i] = random.nextInt();
+            backdrop[i] = random.nextInt();
+        }
+        out = new int[pixels];
+        planes = new float[4 * pixels];
+        bytes = new byte[4 * pixels];
+
+        String[] names = { "unpack", "pack", "blend", "brightness/contrast", "swizzle RGBA", "copy opaque" };
+        Kernel[] kernels = {
+            k -> k.unpack(source, 0, pixels, planes, 0, pixels, true),
+            k -> k.pack(planes, 0, pixels, pixels, out, 0, true),
+            k -> {
+                System.arraycopy(backdrop, 0, out, 0, pixels);
+                k.blend(source, out, 0, pixels, 0.7f);
+            },
+            k -> k.brightnessContrast(source, out, 0, pixels, 0.1f, 1.3f),
+            k -> k.toRgbaBytes(source, 0, pixels, bytes, 0, true),
+            k -> k.copy(source, 0, out, 0, pixels, true)
+        };
+        PixelKernels scalar = PixelKernels.scalar();
+        PixelKernels fast = PixelKernels.get();
+
+        System.out.printf("%d pixels, %s against %s%n", pixels, fast.getName(), scalar.getName());
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            if (report) {
+                System.out.printf("%-22s %12s %12s %9s %6s%n", "kernel", "scalar ns/px", "fast ns/px", "speedup",
+                        "match");
+            }
+            for (int k = 0; k < kernels.length; k++) {
+                double slow = time(kernels[k], scalar, iterations);
+                String expected = snapshot(k);
+                double quick = time(kernels[k], fast, iterations);
+                boolean match = close(expected, snapshot(k));
+                if (report) {
+                    System.out.printf("%-22s %12.3f %12.3f %8.2fx %6s%n", names[k], slow, quick, slow / quick, match);
+                }
+            }
+        }
+    }
+
+    private static double time(Kernel kernel, PixelKernels kernels, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            kernel.run(kernels);
+        }
+        return (double) (System.nanoTime() - start) / iterations / pixels;
+    }
+
+    // The output a kernel writes, as bytes of channels, so runs can be compared within one per channel.
+    private static String snapshot(int kernel) {
+        StringBuilder channels = new StringBuilder(4 * pixels);
+        if (kernel == 0) {
+            for (float v : planes) {
+                channels.append((char) Math.round(v));
+            }
+        } else if (kernel == 4) {
+            for (byte b : bytes) {
+                channels.append((char) (b & 0xff));
+            }
+        } else {
+            for (int p : out) {
+                channels.append((char) (p >>> 24)).append((char) ((p >> 16) & 0xff))
+                        .append((char) ((p >> 8) & 0xff)).append((char) (p & 0xff));
+            }
+        }
+        return channels.toString();
+    }
+
+    private static boolean close(String expected, String actual) {
+        if (expected.length() != actual.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (Math.abs(expected.charAt(i) - actual.charAt(i)) > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
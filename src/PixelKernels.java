@@ -0,0 +1,133 @@
+/**
+ * Per-pixel loops over packed ARGB ints that the compositor, filters and PNG
+ * encoder share: unpacking to float channel planes and packing back, source-
+ * over blending, brightness/contrast, swizzling to RGBA bytes and raster
+ * copies.
+ * <p>
+ * This class is the scalar implementation. {@link #get()} returns the SIMD
+ * one in {@code VectorPixelKernels} instead when the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}, unless -Dartstudio.simd=false.
+ * Both give the same results to within one per channel, as the vector code
+ * rounds halves to even; the scalar code also handles the tail of each array
+ * that does not fill a whole vector.
+ */
+public class PixelKernels {
+
+    private static final PixelKernels kernels = load();
+
+    protected PixelKernels() {
+    }
+
+    // The fastest implementation this JVM can run.
+    public static PixelKernels get() {
+        return kernels;
+    }
+
+    public static PixelKernels scalar() {
+        return new PixelKernels();
+    }
+
+    private static PixelKernels load() {
+        if (!"false".equals(System.getProperty("artstudio.simd"))) {
+            try {
+                return (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // jdk.incubator.vector is not in this run; stay scalar
+            }
+        }
+        return new PixelKernels();
+    }
+
+    public String getName() {
+        return "scalar";
+    }
+
+    // Splits count pixels into alpha, red, green and blue planes of floats in 0..255, stride apart from at.
+    // Premultiplied scales the colours by alpha.
+    public void unpack(int[] argb, int from, int count, float[] planes, int at, int stride, boolean premultiply) {
+        for (int i = 0; i < count; i++) {
+            int p = argb[from + i];
+            float alpha = premultiply ? (p >>> 24) / 255f : 1;
+            planes[at + i] = p >>> 24;
+            planes[at + stride + i] = ((p >> 16) & 0xff) * alpha;
+            planes[at + 2 * stride + i] = ((p >> 8) & 0xff) * alpha;
+            planes[at + 3 * stride + i] = (p & 0xff) * alpha;
+        }
+    }
+
+    // The reverse of unpack, rounding and clamping each channel; unpremultiply divides the colours by alpha.
+    public void pack(float[] planes, int at, int stride, int count, int[] argb, int to, boolean unpremultiply) {
+        for (int i = 0; i < count; i++) {
+            int alpha = clamp(planes[at + i]);
+            float scale = !unpremultiply ? 1 : alpha == 0 ? 0 : 255f / alpha;
+            argb[to + i] = (alpha << 24) | (clamp(planes[at + stride + i] * scale) << 16)
+                    | (clamp(planes[at + 2 * stride + i] * scale) << 8) | clamp(planes[at + 3 * stride + i] * scale);
+        }
+    }
+
+    // Composites count pixels of source over backdrop from index from, in place, with the source's alpha scaled
+    // by opacity. Neither is premultiplied.
+    public void blend(int[] source, int[] backdrop, int from, int count, float opacity) {
+        int opacity256 = Math.round(opacity * 256);
+        for (int i = from; i < from + count; i++) {
+            int s = source[i];
+            int sa = ((s >>> 24) * opacity256) >> 8;
+            if (sa == 0) {
+                continue;
+            }
+            int d = backdrop[i];
+            int da = d >>> 24;
+            if (da == 0 || sa == 255) {
+                backdrop[i] = (sa << 24) | (s & 0xffffff);
+                continue;
+            }
+            float as = sa / 255f;
+            float bs = (da / 255f) * (1 - as); // Backdrop weight
+            float ao = as + bs;
+            float scale = 1 / ao;
+            backdrop[i] = (clamp(ao * 255) << 24)
+                    | (clamp((as * ((s >> 16) & 0xff) + bs * ((d >> 16) & 0xff)) * scale) << 16)
+                    | (clamp((as * ((s >> 8) & 0xff) + bs * ((d >> 8) & 0xff)) * scale) << 8)
+                    | clamp((as * (s & 0xff) + bs * (d & 0xff)) * scale);
+        }
+    }
+
+    // Each colour channel v becomes (v - 127.5) * contrast + 127.5 + brightness * 255, clamped; alpha is kept.
+    public void brightnessContrast(int[] src, int[] dst, int from, int count, float brightness, float contrast) {
+        float offset = 127.5f - 127.5f * contrast + brightness * 255;
+        for (int i = from; i < from + count; i++) {
+            int p = src[i];
+            dst[i] = (p & 0xff000000) | (clamp(((p >> 16) & 0xff) * contrast + offset) << 16)
+                    | (clamp(((p >> 8) & 0xff) * contrast + offset) << 8) | clamp((p & 0xff) * contrast + offset);
+        }
+    }
+
+    // ARGB ints to R, G, B(, A) bytes as PNG rows store them.
+    public void toRgbaBytes(int[] argb, int from, int count, byte[] out, int at, boolean alpha) {
+        int i = at;
+        for (int x = from; x < from + count; x++) {
+            int p = argb[x];
+            out[i++] = (byte) (p >> 16);
+            out[i++] = (byte) (p >> 8);
+            out[i++] = (byte) p;
+            if (alpha) {
+                out[i++] = (byte) (p >>> 24);
+            }
+        }
+    }
+
+    // System.arraycopy, except that opaque sets every alpha to 255, as reading TYPE_INT_RGB data needs.
+    public void copy(int[] src, int from, int[] dst, int to, int count, boolean opaque) {
+        if (!opaque) {
+            System.arraycopy(src, from, dst, to, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            dst[to + i] = src[from + i] | 0xff000000;
+        }
+    }
+
+    static int clamp(float value) {
+        return value <= 0 ? 0 : value >= 255 ? 255 : (int) (value + 0.5f);
+    }
+}
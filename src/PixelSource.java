@@ -0,0 +1,48 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Read access to ARGB pixels of a document or image, one rectangle at a time,
+ * so consumers do not need the whole thing as a single image.
+ */
+public interface PixelSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    // Copies the area into out, row-major with area.width per row. Pixels outside the source read as 0.
+    void readPixels(Rectangle area, int[] out);
+
+    // True if the area is known to be plain white; false when unsure.
+    default boolean isBlank(Rectangle area) {
+        return false;
+    }
+
+    static PixelSource of(BufferedImage image) {
+        return new PixelSource() {
+            @Override
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            @Override
+            public void readPixels(Rectangle area, int[] out) {
+                Rectangle r = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+                if (!r.equals(area)) {
+                    Arrays.fill(out, 0, area.width * area.height, 0);
+                }
+                if (!r.isEmpty()) {
+                    image.getRGB(r.x, r.y, r.width, r.height, out, (r.y - area.y) * area.width + (r.x - area.x),
+                            area.width);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * The imported image as placed at one moment: its decoded pixels and a copy
+ * of their {@link ImageTransform}. Rendering at canvas resolution waits until
+ * the first call to {@link #render}, so a save can take one on the event
+ * thread and leave the resampling to its own thread. The result is kept, and
+ * {@link ImageHandler} hands out the same instance until the image or its
+ * transform changes, so anything that compares them by identity sees whether
+ * the image changed.
+ */
+public final class PlacedImage {
+
+    private final BufferedImage source; // Never changed; edits to the pixels make a new image
+    private final ImageTransform transform;
+    private final Rectangle bounds;
+    private BufferedImage rendered;
+
+    PlacedImage(BufferedImage source, ImageTransform transform) {
+        this.source = source;
+        this.transform = transform;
+        this.bounds = transform.getBounds();
+    }
+
+    // Where the rendered pixels go on the canvas.
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    // The pixels as placed, getBounds() in size; rendered by the first caller, which others wait for.
+    public synchronized BufferedImage render() {
+        if (rendered == null) {
+            rendered = transform.render(source);
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,89 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Export throughput of {@link PngEncoder} against ImageIO's PNG writer on a
+ * painted canvas. Every encoded file is read back with ImageIO and compared
+ * pixel for pixel with the canvas.
+ * <p>
+ * Usage: java PngBenchmark [width] [height] [strokes]
+ */
+public class PngBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int strokes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        TiledSurface surface = new TiledSurface(width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < strokes; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            CanvasOp op = CanvasOp.line(new Color(random.nextInt(0xffffff)), 1 + random.nextInt(12), x, y,
+                    x + random.nextInt(201) - 100, y + random.nextInt(201) - 100);
+            surface.apply(op, surface.bounds(op));
+        }
+        BufferedImage flat = surface.toImage();
+        File file = File.createTempFile("png-benchmark", ".png");
+        file.deleteOnExit();
+        double megabytes = (double) width * height * 4 / (1024 * 1024);
+
+        System.out.printf("Canvas %dx%d, %d processors%n", width, height, Runtime.getRuntime().availableProcessors());
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            long start = System.nanoTime();
+            ImageIO.write(flat, "png", file);
+            long nanos = System.nanoTime() - start;
+            if (report) {
+                print("ImageIO", nanos, megabytes, file.length(), true);
+            }
+            for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+                for (int level : new int[] { 1, 6 }) {
+                    if (!report && level == 6 && filter != PngEncoder.Filter.ADAPTIVE) {
+                        continue;
+                    }
+                    PngEncoder encoder = new PngEncoder();
+                    encoder.setFilter(filter);
+                    encoder.setCompressionLevel(level);
+                    start = System.nanoTime();
+                    encoder.write(surface, file.toPath());
+                    nanos = System.nanoTime() - start;
+                    if (report) {
+                        print(filter.name().toLowerCase() + " level " + level, nanos, megabytes, file.length(),
+                                matches(ImageIO.read(file), surface));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean matches(BufferedImage image, TiledSurface surface) {
+        if (image.getWidth() != surface.getWidth() || image.getHeight() != surface.getHeight()) {
+            return false;
+        }
+        int[] expected = new int[surface.getWidth()];
+        int[] actual = new int[surface.getWidth()];
+        for (int y = 0; y < surface.getHeight(); y++) {
+            surface.readPixels(new Rectangle(0, y, surface.getWidth(), 1), expected);
+            image.getRGB(0, y, image.getWidth(), 1, actual, 0, image.getWidth());
+            for (int x = 0; x < expected.length; x++) {
+                if (expected[x] != actual[x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void print(String name, long nanos, double megabytes, long bytes, boolean valid) {
+        System.out.printf("%-18s %8.1f ms  %7.1f MB/s  %,12d bytes%s%n", name, nanos / 1e6,
+                megabytes / (nanos / 1e9), bytes, valid ? "" : "  MISMATCH");
+    }
+}
@@ -0,0 +1,327 @@
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer that filters and deflates row bands in parallel. Each band is
+ * compressed as its own raw deflate stream, primed with the tail of the band
+ * above and ended with a sync flush, so the bands concatenate into one valid
+ * zlib stream; the Adler-32 of the whole is combined from the per-band
+ * checksums. Bands are read from a
+ * {@link PixelSource} as they are needed and written as IDAT chunks in order,
+ * so a tiled canvas is never flattened into one image.
+ */
+public class PngEncoder {
+
+    // Per-row filter choice; ADAPTIVE tries all five and keeps the smallest sum of absolute bytes.
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    // Told after each band is written, on the thread that called write.
+    public interface ProgressListener {
+        void progress(int rowsWritten, int height);
+    }
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int BAND_BYTES = 256 * 1024; // Uncompressed bytes per band, roughly
+    private static final int WINDOW = 32 * 1024; // Deflate history; each band is primed with this much of the one above
+
+    private Filter filter = Filter.ADAPTIVE;
+    private int level = 6;
+    private boolean alpha = true;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private ProgressListener progressListener;
+
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    // Deflate level from 0 (store) to 9 (smallest).
+    public void setCompressionLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be 0-9: " + level);
+        }
+        this.level = level;
+    }
+
+    // Without alpha the file is RGB and about a quarter smaller before compression.
+    public void setAlpha(boolean alpha) {
+        this.alpha = alpha;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void write(PixelSource source, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(source, channel);
+        }
+    }
+
+    public void write(PixelSource source, WritableByteChannel channel) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int rowBytes = 1 + width * (alpha ? 4 : 3); // Filter type byte, then the pixels
+        int bandRows = Math.max(1, BAND_BYTES / rowBytes);
+        int bands = (height + bandRows - 1) / bandRows;
+
+        writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height);
+        header.put((byte) 8).put((byte) (alpha ? 6 : 2)).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(channel, "IHDR", header.array(), 0, 13);
+
+        Deque<Future<Band>> inFlight = new ArrayDeque<>();
+        int window = Math.max(2, pool.getParallelism() * 2); // Bounds memory to a few bands per thread
+        int nextBand = 0;
+        long adler = 1;
+        try {
+            for (int i = 0; i < bands; i++) {
+                while (nextBand < bands && inFlight.size() < window) {
+                    int y = nextBand * bandRows;
+                    boolean last = nextBand == bands - 1;
+                    int rows = Math.min(bandRows, height - y);
+                    inFlight.add(pool.submit(() -> encodeBand(source, y, rows, last)));
+                    nextBand++;
+                }
+                Band band = inFlight.poll().get();
+                adler = combineAdler(adler, band.adler, band.rawLength);
+                byte[] data = band.data;
+                int offset = 2, length = band.length;
+                if (i == 0) {
+                    data[0] = 0x78; // zlib header: deflate with a 32K window
+                    data[1] = (byte) (level < 2 ? 0x01 : level < 6 ? 0x5e : level == 6 ? 0x9c : 0xda);
+                    offset = 0;
+                    length += 2;
+                }
+                if (i == bands - 1) {
+                    data[band.length + 2] = (byte) (adler >>> 24);
+                    data[band.length + 3] = (byte) (adler >>> 16);
+                    data[band.length + 4] = (byte) (adler >>> 8);
+                    data[band.length + 5] = (byte) adler;
+                    length += 4;
+                }
+                writeChunk(channel, "IDAT", data, offset, length);
+                if (progressListener != null) {
+                    progressListener.progress(Math.min(height, (i + 1) * bandRows), height);
+                }
+                if (Thread.currentThread().isInterrupted()) { // Cancelled; the caller discards the partial file
+                    throw new InterruptedIOException("PNG encoding cancelled");
+                }
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("PNG encoding failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("PNG encoding interrupted");
+        } finally {
+            for (Future<Band> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+        writeChunk(channel, "IEND", new byte[0], 0, 0);
+    }
+
+    // Filters and deflates rows [y, y + rows). Compressed data starts at offset 2, leaving room for the zlib header.
+    private Band encodeBand(PixelSource source, int y, int rows, boolean last) {
+        int width = source.getWidth();
+        int bpp = alpha ? 4 : 3;
+        int stride = width * bpp;
+        // Rows of the band above are filtered again here to rebuild the bytes it ends with, which become
+        // this band's deflate dictionary. Filtering only looks one row up, so they come out identical.
+        int lead = Math.min(y, (WINDOW + stride) / (stride + 1));
+        int first = y - lead == 0 ? 0 : 1; // One more row, which UP, AVERAGE and PAETH look at
+        int total = lead + rows;
+        int[] pixels = new int[(total + first) * width];
+        source.readPixels(new Rectangle(0, y - lead - first, width, total + first), pixels);
+
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        if (first == 1) {
+            toBytes(pixels, 0, width, previous);
+        }
+        byte[] raw = new byte[total * (stride + 1)];
+        byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[5][stride] : null;
+        for (int row = 0; row < total; row++) {
+            toBytes(pixels, (row + first) * width, width, current);
+            int out = row * (stride + 1);
+            if (filter == Filter.ADAPTIVE) {
+                int best = 0;
+                long bestScore = Long.MAX_VALUE;
+                for (int type = 0; type < 5; type++) {
+                    applyFilter(type, current, previous, bpp, candidates[type], 0);
+                    long score = 0;
+                    for (byte b : candidates[type]) {
+                        score += Math.abs(b);
+                    }
+                    if (score < bestScore) {
+                        bestScore = score;
+                        best = type;
+                    }
+                }
+                raw[out] = (byte) best;
+                System.arraycopy(candidates[best], 0, raw, out + 1, stride);
+            } else {
+                raw[out] = (byte) filter.ordinal();
+                applyFilter(filter.ordinal(), current, previous, bpp, raw, out + 1);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int start = lead * (stride + 1);
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, start, raw.length - start);
+        Deflater deflater = new Deflater(level, true); // Raw deflate; the zlib wrapper is written once for all bands
+        try {
+            if (start > 0) {
+                int length = Math.min(start, WINDOW);
+                deflater.setDictionary(raw, start - length, length);
+            }
+            deflater.setInput(raw, start, raw.length - start);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] data = new byte[(raw.length - start) / 2 + 1024];
+            int length = 0;
+            while (true) {
+                if (length + 2 + 4 >= data.length) { // Keep room for the header and trailing checksum
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int space = data.length - 6 - length;
+                int written = last ? deflater.deflate(data, 2 + length, space)
+                        : deflater.deflate(data, 2 + length, space, Deflater.SYNC_FLUSH);
+                length += written;
+                if (last ? deflater.finished() : written < space) {
+                    break; // A sync flush that did not fill the buffer has emitted everything
+                }
+            }
+            return new Band(data, length, checksum.getValue(), raw.length - start);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void toBytes(int[] pixels, int offset, int width, byte[] out) {
+        PixelKernels.get().toRgbaBytes(pixels, offset, width, out, 0, alpha);
+    }
+
+    private static void applyFilter(int type, byte[] row, byte[] above, int bpp, byte[] out, int offset) {
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = above[i] & 0xff;
+            int c = i >= bpp ? above[i - bpp] & 0xff : 0;
+            int predictor;
+            switch (type) {
+                case 1:
+                    predictor = a;
+                    break;
+                case 2:
+                    predictor = b;
+                    break;
+                case 3:
+                    predictor = (a + b) >>> 1;
+                    break;
+                case 4:
+                    predictor = paeth(a, b, c);
+                    break;
+                default:
+                    predictor = 0;
+                    break;
+            }
+            out[offset + i] = (byte) (x - predictor);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    // Adler-32 of two concatenated blocks from the checksums of each, as zlib's adler32_combine does.
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(WritableByteChannel channel, String type, byte[] data, int offset, int length)
+            throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(12 + length);
+        chunk.putInt(length);
+        chunk.put(type.getBytes(StandardCharsets.US_ASCII));
+        chunk.put(data, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array(), 4, 4 + length);
+        chunk.putInt((int) crc.getValue());
+        chunk.flip();
+        writeFully(channel, chunk);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static class Band {
+        final byte[] data; // Header room, deflated bytes, room for the checksum
+        final int length; // Deflated bytes only
+        final long adler;
+        final int rawLength;
+
+        Band(byte[] data, int length, long adler, int rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+}
@@ -0,0 +1,673 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * The native .artstudio project: the layers with their tiles and compositing
+ * properties, the imported image with its placement, the shapes, and
+ * optionally the undo history, in one file written through memory-mapped buffers.
+ * <p>
+ * Between compactions the file only grows. A save appends the tiles that
+ * changed since the previous save and a new index, then rewrites the fixed
+ * header to point at that index, so a save that dies halfway leaves the
+ * previous one readable. Once more than half the file is superseded data, the
+ * save writes a compact copy next to it and renames it over the file.
+ * <p>
+ * Opening maps the file and reads only the header and index; the layers it
+ * returns inflate each tile the first time the canvas touches it.
+ * <p>
+ * Layout, big-endian: a 64 byte header (magic "ARTS", version, width, height,
+ * tile size, index offset and length), then data blocks, each tile stored as
+ * its deflated ARGB ints and the image as PNG. The index holds the layer
+ * count and active layer, then per layer its name, opacity, flags and blend
+ * mode followed by an offset and length per tile (length 0 is a blank tile).
+ * After the layers come the image placement and block, and for the history
+ * the bottom layer's oldest tiles (length -1 when the tile is the current
+ * one), the op journal and the length of each edit. Shapes, from version 3,
+ * end the index as a byte count and a SHAPE op for each, bottom first.
+ * Version 1 files hold a single layer and no layer header.
+ */
+public class ProjectFile {
+
+    public static final String EXTENSION = ".artstudio";
+
+    private static final int MAGIC = 0x41525453; // "ARTS"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 64;
+    private static final int HAS_IMAGE = 1, HAS_HISTORY = 2, HAS_SHAPES = 4;
+    private static final int VISIBLE = 1, TRANSPARENT = 2;
+    private static final int SAME_AS_CURRENT = -1;
+    private static final int WINDOW = 64 * 1024 * 1024; // Bytes mapped at a time while writing
+    private static final Extent BLANK = new Extent(0, 0);
+
+    private volatile Path path; // Read on the event thread while a save may be running
+    private final int width, height, tileCount;
+
+    // What the last save wrote where, so the next one can leave unchanged data in place
+    private volatile long fileLength;
+    private Map<TiledSurface, LayerState> states = new IdentityHashMap<>(); // By layer surface
+    private final Object tileLock = new Object(); // Guards what tile loads and saves share in LayerState
+    private Extent[] baseExtents;
+    private final WeakReference<?>[] savedBase; // The tile objects baseExtents hold
+    private Extent imageExtent;
+    private WeakReference<?> savedImage;
+
+    // The file as it was opened. Null slots in a layer and its snapshots stand for the tiles stored there.
+    private ByteBuffer source; // Whole file, or null if it is too large to map at once
+    private FileChannel sourceChannel; // Only kept open when source is null
+
+    // Contents read by open()
+    private LayerStack layers;
+    private BufferedImage image;
+    private Rectangle imageBounds;
+    private CanvasHistory.Saved history;
+    private List<CanvasOp> shapes = List.of();
+
+    // A project that has not been written yet.
+    public ProjectFile(Path path, int width, int height) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.tileCount = new TiledSurface(width, height).getTileCount();
+        this.savedBase = new WeakReference<?>[tileCount];
+    }
+
+    // Maps the file and reads its index. Tiles are loaded as the returned layers need them.
+    public static ProjectFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        boolean keepOpen = false;
+        try {
+            long length = channel.size();
+            if (length < HEADER_BYTES) {
+                throw new IOException("Not an ArtStudio project: " + path);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not an ArtStudio project: " + path);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported project version " + version + ": " + path);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            long indexOffset = header.getLong();
+            int indexLength = header.getInt();
+            if (width <= 0 || height <= 0 || tileSize != TiledSurface.TILE_SIZE || indexOffset < HEADER_BYTES
+                    || indexLength < 0 || indexOffset + indexLength > length) {
+                throw new IOException("Corrupt project header: " + path);
+            }
+            ProjectFile project = new ProjectFile(path, width, height);
+            project.fileLength = length;
+            if (length <= Integer.MAX_VALUE) {
+                project.source = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } else {
+                project.sourceChannel = channel;
+                keepOpen = true;
+            }
+            project.readIndex(project.stored(new Extent(indexOffset, indexLength)), version);
+            return project;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt project index: " + path, e);
+        } finally {
+            if (!keepOpen) {
+                channel.close(); // The mapping stays valid without it
+            }
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The layers as opened, without histories; null for a project that was created rather than opened.
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    // The imported image as opened, or null if there was none.
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public Rectangle getImageBounds() {
+        return imageBounds;
+    }
+
+    // The bottom layer's undo history as opened, or null if it was saved without one.
+    public CanvasHistory.Saved getHistory() {
+        return history;
+    }
+
+    // SHAPE ops for the shapes as opened, bottom first.
+    public List<CanvasOp> getShapes() {
+        return shapes;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    // Writes the document to this project's file: only what changed since the last save, unless it is time
+    // to compact. Layers is a frozen LayerStack.copy(), so this can run on any thread, and surfaces are the
+    // live surfaces of its layers in the same order, which tell the layers apart from one save to the next.
+    // Image and history may be null; the image is rendered here if it changed, and the history is the bottom
+    // layer's. Shapes are SHAPE ops, bottom first.
+    public synchronized void save(LayerStack layers, List<TiledSurface> surfaces, PlacedImage image,
+            CanvasHistory.Saved history, List<CanvasOp> shapes) throws IOException {
+        write(path, layers, surfaces, image, history, shapes, false);
+    }
+
+    // Writes the whole document to a new file, which later saves then update.
+    public synchronized void saveAs(Path target, LayerStack layers, List<TiledSurface> surfaces, PlacedImage image,
+            CanvasHistory.Saved history, List<CanvasOp> shapes) throws IOException {
+        write(target, layers, surfaces, image, history, shapes, true);
+    }
+
+    private void write(Path target, LayerStack layers, List<TiledSurface> surfaces, PlacedImage image,
+            CanvasHistory.Saved history, List<CanvasOp> shapes, boolean forceCompact) throws IOException {
+        if (layers.getWidth() != width || layers.getHeight() != height) {
+            throw new IllegalArgumentException("Document is " + layers.getWidth() + "x" + layers.getHeight()
+                    + ", project is " + width + "x" + height);
+        }
+        List<Layer> list = layers.getLayers();
+        List<Entry> entries = new ArrayList<>();
+        LayerState[] layerStates = new LayerState[list.size()];
+        BufferedImage[][] tiles = new BufferedImage[list.size()][];
+        Entry[][] tileEntries = new Entry[list.size()][tileCount];
+        Entry[][] openEntries = new Entry[list.size()][tileCount];
+        for (int l = 0; l < list.size(); l++) {
+            TiledSurface surface = list.get(l).getSurface();
+            layerStates[l] = states.getOrDefault(surfaces.get(l), new LayerState(tileCount));
+            tiles[l] = surface.snapshot();
+            LayerState state = layerStates[l];
+            WeakReference<?>[] savedTiles;
+            synchronized (tileLock) {
+                savedTiles = state.savedTiles.clone();
+            }
+            for (int i = 0; i < tileCount; i++) {
+                tileEntries[l][i] = entry(state, i, tiles[l][i], savedTiles[i],
+                        state.tileExtents != null ? state.tileExtents[i] : null, openEntries[l], entries);
+            }
+        }
+        Entry imageEntry = null;
+        if (image != null) {
+            imageEntry = savedImage != null && savedImage.get() == image ? new Entry(imageExtent)
+                    : new Entry(encodeImage(image.render()));
+            entries.add(imageEntry);
+        }
+        Entry[] baseEntries = null;
+        Entry journalEntry = null;
+        if (history != null) {
+            BufferedImage[] base = history.getBase();
+            baseEntries = new Entry[tileCount];
+            for (int i = 0; i < tileCount; i++) {
+                if (base[i] != tiles[0][i]) {
+                    baseEntries[i] = entry(layerStates[0], i, base[i], savedBase[i],
+                            baseExtents != null ? baseExtents[i] : null, openEntries[0], entries);
+                }
+            }
+            ByteArrayOutputStream journal = new ByteArrayOutputStream();
+            for (byte[] edit : history.getEdits()) {
+                journal.write(edit);
+            }
+            journalEntry = new Entry(journal.toByteArray());
+            entries.add(journalEntry);
+        }
+
+        Rectangle imageBounds = image != null ? image.getBounds() : null;
+        int indexLength = index(layers, tileEntries, imageEntry, imageBounds, baseEntries, journalEntry, history,
+                shapes).length; // Nothing is placed yet, but the length does not depend on where things go
+        long live = HEADER_BYTES + indexLength;
+        long appended = indexLength;
+        for (Entry entry : entries) {
+            live += entry.length();
+            appended += entry.isNew() ? entry.length() : 0;
+        }
+        boolean compact = forceCompact || fileLength == 0 || fileLength + appended > 2 * live;
+        long start = compact ? HEADER_BYTES : fileLength;
+        long position = start;
+        for (Entry entry : entries) {
+            if (entry.isNew() || compact) {
+                entry.placed = new Extent(position, entry.length());
+                position += entry.length();
+            } else {
+                entry.placed = entry.old;
+            }
+        }
+        long indexOffset = position;
+        Entry indexEntry = new Entry(index(layers, tileEntries, imageEntry, imageBounds, baseEntries, journalEntry,
+                history, shapes));
+        indexEntry.placed = new Extent(indexOffset, indexLength);
+        entries.add(indexEntry);
+
+        Path file = compact ? Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName(),
+                ".tmp") : target;
+        try {
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    FileChannel current = compact && fileLength > 0 ? FileChannel.open(path, StandardOpenOption.READ)
+                            : null) {
+                append(out, current, entries, start, indexOffset + indexLength, compact);
+                MappedByteBuffer header = out.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(TiledSurface.TILE_SIZE)
+                        .putLong(indexOffset).putInt(indexLength);
+                header.force(); // Last, so the header never points at an index that is not on disk yet
+            }
+            if (compact) {
+                try {
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                file = null;
+            }
+        } finally {
+            if (compact && file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        // Remember what is where for the next save
+        path = target;
+        fileLength = indexOffset + indexLength;
+        Map<TiledSurface, LayerState> saved = new IdentityHashMap<>();
+        synchronized (tileLock) {
+            for (int l = 0; l < list.size(); l++) {
+                LayerState state = layerStates[l];
+                state.tileExtents = new Extent[tileCount];
+                for (int i = 0; i < tileCount; i++) {
+                    state.tileExtents[i] = tileEntries[l][i].placed;
+                    if (state.openExtents != null) {
+                        if (openEntries[l][i] != null) {
+                            state.openExtents[i] = openEntries[l][i].placed;
+                        } else if (compact) {
+                            state.openExtents[i] = null; // Not copied; the next save that needs it copies it again
+                        }
+                    }
+                    if (tiles[l][i] != null) {
+                        state.savedTiles[i] = new WeakReference<>(tiles[l][i]);
+                    } else if (state.openExtents == null || state.tileExtents[i] != state.openExtents[i]) {
+                        state.savedTiles[i] = null; // Else loaded during the save, as written where it still is
+                    }
+                }
+                saved.put(surfaces.get(l), state);
+            }
+        }
+        states = saved;
+        if (history != null) {
+            baseExtents = new Extent[tileCount];
+            BufferedImage[] base = history.getBase();
+            for (int i = 0; i < tileCount; i++) {
+                baseExtents[i] = baseEntries[i] == null ? layerStates[0].tileExtents[i] : baseEntries[i].placed;
+                savedBase[i] = base[i] == null ? null : new WeakReference<>(base[i]);
+            }
+        }
+        if (image != null) {
+            imageExtent = imageEntry.placed;
+            savedImage = new WeakReference<>(image);
+        }
+    }
+
+    // The index for entries as placed; unplaced entries are written as zeros.
+    private static byte[] index(LayerStack layers, Entry[][] tileEntries, Entry imageEntry, Rectangle imageBounds,
+            Entry[] baseEntries, Entry journalEntry, CanvasHistory.Saved history, List<CanvasOp> shapes)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(bytes);
+        index.writeInt((imageEntry != null ? HAS_IMAGE : 0) | (history != null ? HAS_HISTORY : 0)
+                | (shapes != null && !shapes.isEmpty() ? HAS_SHAPES : 0));
+        index.writeInt(layers.size());
+        index.writeInt(layers.getActiveIndex());
+        for (int l = 0; l < layers.size(); l++) {
+            Layer layer = layers.get(l);
+            byte[] name = layer.getName().getBytes(StandardCharsets.UTF_8);
+            index.writeShort(Math.min(name.length, 0xffff));
+            index.write(name, 0, Math.min(name.length, 0xffff));
+            index.writeFloat(layer.getOpacity());
+            index.writeByte((layer.isVisible() ? VISIBLE : 0) | (layer.getSurface().isTransparent() ? TRANSPARENT : 0));
+            index.writeByte(layer.getBlendMode().ordinal());
+            for (Entry entry : tileEntries[l]) {
+                writeExtent(index, entry.placed);
+            }
+        }
+        if (imageEntry != null) {
+            index.writeInt(imageBounds.x);
+            index.writeInt(imageBounds.y);
+            index.writeInt(imageBounds.width);
+            index.writeInt(imageBounds.height);
+            writeExtent(index, imageEntry.placed);
+        }
+        if (history != null) {
+            index.writeInt(history.getEdits().length);
+            for (Entry entry : baseEntries) {
+                writeExtent(index, entry == null ? new Extent(0, SAME_AS_CURRENT) : entry.placed);
+            }
+            writeExtent(index, journalEntry.placed);
+            for (byte[] edit : history.getEdits()) {
+                index.writeInt(edit.length);
+            }
+        }
+        if (shapes != null && !shapes.isEmpty()) {
+            ByteArrayOutputStream ops = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(ops);
+            for (CanvasOp shape : shapes) {
+                shape.write(out);
+            }
+            index.writeInt(ops.size());
+            ops.writeTo(index);
+        }
+        return bytes.toByteArray();
+    }
+
+    // How the tile at index is written: as it is in the file, blank, or freshly encoded.
+    private Entry entry(LayerState state, int index, BufferedImage tile, WeakReference<?> saved, Extent savedExtent,
+            Entry[] openEntries, List<Entry> entries) {
+        if (tile != null && TiledSurface.isBlank(tile)) {
+            Entry entry = new Entry(BLANK);
+            entry.placed = BLANK;
+            return entry;
+        }
+        Entry entry;
+        if (tile == null) { // Still as opened
+            if (openEntries[index] != null) {
+                return openEntries[index];
+            }
+            entry = state.openExtents[index] != null ? new Entry(state.openExtents[index])
+                    : new Entry(state.sourceExtents[index], true);
+            openEntries[index] = entry;
+        } else if (saved != null && saved.get() == tile) {
+            entry = new Entry(savedExtent);
+        } else {
+            entry = new Entry(TiledSurface.deflate(tile));
+        }
+        entries.add(entry);
+        return entry;
+    }
+
+    // Writes every placed entry between start and end through mapped windows.
+    private void append(FileChannel out, FileChannel current, List<Entry> entries, long start, long end,
+            boolean compact) throws IOException {
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        for (Entry entry : entries) {
+            if (entry.placed == BLANK || !(entry.isNew() || compact) || entry.length() == 0) {
+                continue;
+            }
+            long offset = entry.placed.offset;
+            if (window == null || offset + entry.length() > windowStart + window.capacity()) {
+                if (window != null) {
+                    window.force();
+                }
+                windowStart = offset;
+                window = out.map(FileChannel.MapMode.READ_WRITE, windowStart,
+                        Math.min(end - windowStart, Math.max(WINDOW, entry.length())));
+            }
+            window.position((int) (offset - windowStart));
+            if (entry.data != null) {
+                window.put(entry.data);
+            } else if (entry.fromSource) {
+                window.put(stored(entry.old));
+            } else {
+                ByteBuffer target = window.slice().limit(entry.length());
+                long from = entry.old.offset;
+                while (target.hasRemaining()) {
+                    int read = current.read(target, from);
+                    if (read < 0) {
+                        throw new EOFException("Project file is shorter than its index: " + path);
+                    }
+                    from += read;
+                }
+            }
+        }
+        if (window != null) {
+            window.force();
+        }
+    }
+
+    private void readIndex(ByteBuffer index, int version) throws IOException {
+        int flags = index.getInt();
+        int layerCount = version >= 2 ? index.getInt() : 1;
+        int activeLayer = version >= 2 ? index.getInt() : 0;
+        if (layerCount < 1 || activeLayer < 0 || activeLayer >= layerCount) {
+            throw new IOException("Corrupt project index: " + path);
+        }
+        BufferedImage[] bottomTiles = null;
+        LayerState bottom = null;
+        for (int l = 0; l < layerCount; l++) {
+            String name = "Background";
+            float opacity = 1;
+            int layerFlags = VISIBLE;
+            BlendMode blendMode = BlendMode.NORMAL;
+            if (version >= 2) {
+                byte[] bytes = new byte[index.getShort() & 0xffff];
+                index.get(bytes);
+                name = new String(bytes, StandardCharsets.UTF_8);
+                opacity = index.getFloat();
+                layerFlags = index.get();
+                int mode = index.get();
+                if (mode < 0 || mode >= BlendMode.values().length) {
+                    throw new IOException("Corrupt project index: " + path);
+                }
+                blendMode = BlendMode.values()[mode];
+            }
+            LayerState state = new LayerState(tileCount);
+            state.sourceExtents = new Extent[tileCount];
+            boolean[] stored = new boolean[tileCount];
+            for (int i = 0; i < tileCount; i++) {
+                state.sourceExtents[i] = getExtent(index, false);
+                stored[i] = state.sourceExtents[i].length > 0;
+            }
+            state.openExtents = state.sourceExtents.clone();
+            state.tileExtents = state.sourceExtents.clone();
+            TiledSurface surface = new TiledSurface(width, height, (layerFlags & TRANSPARENT) != 0, stored,
+                    i -> load(state, i));
+            states.put(surface, state);
+            Layer layer = new Layer(name, surface);
+            layer.setProperties(name, opacity, (layerFlags & VISIBLE) != 0, blendMode);
+            if (l == 0) {
+                layers = new LayerStack(layer);
+                bottomTiles = surface.snapshot();
+                bottom = state;
+            } else {
+                layers.add(l, layer);
+            }
+        }
+        layers.setActive(activeLayer);
+        if ((flags & HAS_IMAGE) != 0) {
+            imageBounds = new Rectangle(index.getInt(), index.getInt(), index.getInt(), index.getInt());
+            imageExtent = getExtent(index, false);
+            ByteBuffer png = stored(imageExtent);
+            byte[] bytes = new byte[png.remaining()];
+            png.get(bytes);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (decoded == null) {
+                throw new IOException("Unreadable image in project: " + path);
+            }
+            image = DecodedImageCache.toDisplayFormat(decoded);
+            savedImage = new WeakReference<>(image);
+        }
+        if ((flags & HAS_HISTORY) != 0) {
+            int editCount = index.getInt();
+            BufferedImage[] base = new BufferedImage[tileCount];
+            baseExtents = new Extent[tileCount];
+            TiledSurface surface = layers.get(0).getSurface();
+            for (int i = 0; i < tileCount; i++) {
+                Extent extent = getExtent(index, true);
+                if (extent.length == SAME_AS_CURRENT) {
+                    base[i] = bottomTiles[i];
+                    baseExtents[i] = bottom.tileExtents[i];
+                } else {
+                    base[i] = extent.length == 0 ? surface.getBlankTile() : TiledSurface.inflate(stored(extent));
+                    baseExtents[i] = extent;
+                    savedBase[i] = new WeakReference<>(base[i]);
+                }
+            }
+            ByteBuffer journal = stored(getExtent(index, false));
+            byte[][] edits = new byte[editCount][];
+            for (int i = 0; i < editCount; i++) {
+                int length = index.getInt();
+                if (length < 0 || length > journal.remaining()) {
+                    throw new IOException("Corrupt project history: " + path);
+                }
+                edits[i] = new byte[length];
+                journal.get(edits[i]);
+            }
+            history = new CanvasHistory.Saved(base, edits);
+        }
+        if ((flags & HAS_SHAPES) != 0) {
+            int length = index.getInt();
+            if (length < 0 || length > index.remaining()) {
+                throw new IOException("Corrupt project shapes: " + path);
+            }
+            byte[] bytes = new byte[length];
+            index.get(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            List<CanvasOp> opened = new ArrayList<>();
+            while (in.available() > 0) {
+                CanvasOp op = CanvasOp.read(in);
+                if (op.getType() != CanvasOp.SHAPE) {
+                    throw new IOException("Corrupt project shapes: " + path);
+                }
+                opened.add(op);
+            }
+            shapes = opened;
+        }
+    }
+
+    // Loads a tile of a layer as it was when the project was opened; called by the layer on first use. Only
+    // reads the file as opened, so it never waits for a save to finish writing the current one.
+    private BufferedImage load(LayerState state, int index) {
+        BufferedImage tile;
+        try {
+            tile = TiledSurface.inflate(stored(state.sourceExtents[index]));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read tile " + index + " of " + path, e);
+        }
+        synchronized (tileLock) {
+            if (state.savedTiles[index] == null && state.openExtents[index] != null
+                    && state.tileExtents[index] == state.openExtents[index]) {
+                state.savedTiles[index] = new WeakReference<>(tile); // The last save wrote exactly this tile
+            }
+        }
+        return tile;
+    }
+
+    // The extent's bytes in the file as opened.
+    private ByteBuffer stored(Extent extent) throws IOException {
+        if (source != null) {
+            return source.duplicate().position((int) extent.offset).limit((int) (extent.offset + extent.length))
+                    .slice();
+        }
+        return sourceChannel.map(FileChannel.MapMode.READ_ONLY, extent.offset, extent.length);
+    }
+
+    private Extent getExtent(ByteBuffer index, boolean allowSame) throws IOException {
+        long offset = index.getLong();
+        int length = index.getInt();
+        if (length == SAME_AS_CURRENT && allowSame) {
+            return new Extent(0, SAME_AS_CURRENT);
+        }
+        if (length < 0 || (length > 0 && (offset < HEADER_BYTES || offset + length > fileLength))) {
+            throw new IOException("Corrupt project index: " + path);
+        }
+        return length == 0 ? BLANK : new Extent(offset, length);
+    }
+
+    private static void writeExtent(DataOutputStream index, Extent extent) throws IOException {
+        index.writeLong(extent != null ? extent.offset : 0);
+        index.writeInt(extent != null ? extent.length : 0);
+    }
+
+    private static byte[] encodeImage(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder encoder = new PngEncoder();
+        encoder.setCompressionLevel(1);
+        encoder.write(PixelSource.of(image), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    // Where one layer's tiles are, in the current file and in the file as opened.
+    private static final class LayerState {
+        Extent[] tileExtents; // As of the last save; null before the first
+        final WeakReference<?>[] savedTiles; // The tile objects tileExtents hold
+        Extent[] sourceExtents; // Only for layers read by open()
+        Extent[] openExtents; // Where the opened tiles are in the current file, once copied or still there
+
+        LayerState(int tileCount) {
+            savedTiles = new WeakReference<?>[tileCount];
+        }
+    }
+
+    private static final class Extent {
+        final long offset;
+        final int length;
+
+        Extent(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // One block of a save: new bytes, or bytes already in the current file or the file as opened.
+    private static final class Entry {
+        final byte[] data;
+        final Extent old;
+        final boolean fromSource;
+        Extent placed;
+
+        Entry(byte[] data) {
+            this.data = data;
+            this.old = null;
+            this.fromSource = false;
+        }
+
+        Entry(Extent old) {
+            this(old, false);
+        }
+
+        Entry(Extent old, boolean fromSource) {
+            this.data = null;
+            this.old = old;
+            this.fromSource = fromSource;
+        }
+
+        boolean isNew() {
+            return data != null || fromSource;
+        }
+
+        int length() {
+            return data != null ? data.length : old.length;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scales images in row bands on the {@link FilterEngine} pool:
+ * <ul>
+ * <li>HALVING averages 2x2 blocks until the image is less than twice the
+ * target, then finishes bilinearly. It is quick enough to preview with and
+ * does not alias the way one bilinear step does.</li>
+ * <li>AREA_AVERAGE weights each source pixel by how much of it an output
+ * pixel covers.</li>
+ * <li>LANCZOS3 uses a windowed sinc with three lobes, widened when shrinking
+ * so every source pixel counts.</li>
+ * </ul>
+ * The last two are separable: weights for each output column and row are
+ * worked out once per resize, then a horizontal and a vertical pass apply
+ * them to premultiplied pixels. Callers should always resize from the
+ * original pixels rather than a previous result.
+ * <p>
+ * -Dartstudio.resize.quality picks the algorithm {@link #commit} uses
+ * (default LANCZOS3).
+ */
+public final class ResizeEngine {
+
+    public enum Algorithm {
+        HALVING, AREA_AVERAGE, LANCZOS3
+    }
+
+    private static final int BAND_ROWS = 16; // Rows one task resamples; smaller bands split no further
+
+    private static final ThreadLocal<float[][]> scratch = ThreadLocal.withInitial(() -> new float[2][0]);
+
+    private ResizeEngine() {
+    }
+
+    // A quick scale, good enough to look at while something is being adjusted.
+    public static BufferedImage preview(BufferedImage source, int width, int height) {
+        return resize(source, width, height, Algorithm.HALVING);
+    }
+
+    // A scale for pixels that are kept, such as an exported image.
+    public static BufferedImage commit(BufferedImage source, int width, int height) {
+        Algorithm algorithm = Algorithm.valueOf(System.getProperty("artstudio.resize.quality", "LANCZOS3"));
+        return resize(source, width, height, algorithm);
+    }
+
+    // An ARGB copy of source at width x height.
+    public static BufferedImage resize(BufferedImage source, int width, int height, Algorithm algorithm) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        int[] pixels = FilterEngine.pixels(source);
+        if (algorithm == Algorithm.HALVING) {
+            return halving(pixels, source.getWidth(), source.getHeight(), width, height);
+        }
+        return image(separable(pixels, source.getWidth(), source.getHeight(), width, height, algorithm), width,
+                height);
+    }
+
+    private static BufferedImage halving(int[] pixels, int w, int h, int width, int height) {
+        while (w / 2 >= width || h / 2 >= height) {
+            int nextWidth = w / 2 >= width ? w / 2 : w, nextHeight = h / 2 >= height ? h / 2 : h;
+            pixels = halve(pixels, w, h, nextWidth, nextHeight);
+            w = nextWidth;
+            h = nextHeight;
+        }
+        BufferedImage image = image(pixels, w, h);
+        if (w == width && h == height) {
+            return image;
+        }
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null); // Less than 2x left, so bilinear does not alias
+        g.dispose();
+        return scaled;
+    }
+
+    private static int[] halve(int[] from, int fromWidth, int fromHeight, int width, int height) {
+        int[] to = new int[width * height];
+        inBands(height, (first, last) -> halve(from, fromWidth, fromHeight, to, width, height, first, last));
+        return to;
+    }
+
+    // Rows [first, last) of to, each pixel the premultiplied average of the block of from it halves.
+    private static void halve(int[] from, int fromWidth, int fromHeight, int[] to, int width, int height, int first,
+            int last) {
+        int stepX = fromWidth / width, stepY = fromHeight / height; // 1 or 2, or 3 where an odd side of 3 halves
+        for (int y = first; y < last; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int dy = 0; dy < stepY; dy++) {
+                    int row = (y * stepY + dy) * fromWidth + x * stepX;
+                    for (int dx = 0; dx < stepX; dx++) {
+                        int p = from[row + dx];
+                        int alpha = p >>> 24;
+                        a += alpha;
+                        r += ((p >> 16) & 0xff) * alpha;
+                        g += ((p >> 8) & 0xff) * alpha;
+                        b += (p & 0xff) * alpha;
+                    }
+                }
+                int n = stepX * stepY;
+                to[y * width + x] = a == 0 ? 0 : ((a + n / 2) / n << 24) | ((r + a / 2) / a << 16)
+                        | ((g + a / 2) / a << 8) | (b + a / 2) / a;
+            }
+        }
+    }
+
+    // Horizontal pass from source rows into a premultiplied intermediate, then vertical pass out of it.
+    private static int[] separable(int[] pixels, int w, int h, int width, int height, Algorithm algorithm) {
+        Weights columns = new Weights(w, width, algorithm);
+        Weights rows = new Weights(h, height, algorithm);
+        int[] middle = new int[width * h];
+        inBands(h, (first, last) -> {
+            PixelKernels kernels = PixelKernels.get();
+            float[][] buffers = buffers(4 * w, 4 * width);
+            float[] in = buffers[0], out = buffers[1];
+            for (int y = first; y < last; y++) {
+                kernels.unpack(pixels, y * w, w, in, 0, w, true);
+                for (int x = 0; x < width; x++) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    for (int t = x * columns.taps, end = t + columns.taps; t < end; t++) {
+                        int i = columns.index[t];
+                        float weight = columns.weight[t];
+                        a += weight * in[i];
+                        r += weight * in[w + i];
+                        g += weight * in[2 * w + i];
+                        b += weight * in[3 * w + i];
+                    }
+                    out[x] = a;
+                    out[width + x] = r;
+                    out[2 * width + x] = g;
+                    out[3 * width + x] = b;
+                }
+                kernels.pack(out, 0, width, width, middle, y * width, false);
+            }
+        });
+        int[] result = new int[width * height];
+        inBands(height, (first, last) -> {
+            PixelKernels kernels = PixelKernels.get();
+            float[][] buffers = buffers(4 * width, 4 * width);
+            float[] in = buffers[0], sum = buffers[1];
+            for (int y = first; y < last; y++) {
+                Arrays.fill(sum, 0, 4 * width, 0);
+                for (int t = y * rows.taps, end = t + rows.taps; t < end; t++) {
+                    float weight = rows.weight[t];
+                    if (weight == 0) {
+                        continue;
+                    }
+                    kernels.unpack(middle, rows.index[t] * width, width, in, 0, width, false);
+                    for (int i = 0; i < 4 * width; i++) {
+                        sum[i] += weight * in[i];
+                    }
+                }
+                kernels.pack(sum, 0, width, width, result, y * width, true);
+            }
+        });
+        return result;
+    }
+
+    // This thread's scratch rows, grown to at least the given sizes.
+    private static float[][] buffers(int first, int second) {
+        float[][] buffers = scratch.get();
+        if (buffers[0].length < first) {
+            buffers[0] = new float[first];
+        }
+        if (buffers[1].length < second) {
+            buffers[1] = new float[second];
+        }
+        return buffers;
+    }
+
+    private static BufferedImage image(int[] pixels, int width, int height) {
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+                new int[] { 0xff0000, 0xff00, 0xff, 0xff000000 }, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    interface RowTask {
+        void run(int first, int last);
+    }
+
+    // Runs task over [0, rows) in bands on the filter pool, returning when all are done.
+    static void inBands(int rows, RowTask task) {
+        FilterEngine.pool().invoke(new Band(task, 0, rows));
+    }
+
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowTask task;
+        private final int first, last;
+
+        Band(RowTask task, int first, int last) {
+            this.task = task;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= BAND_ROWS) {
+                task.run(first, last);
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new Band(task, first, middle), new Band(task, middle, last));
+        }
+    }
+
+    /**
+     * Which source pixels make up each output pixel along one axis, and how
+     * much: taps entries per output pixel, source indices clamped to the edge.
+     */
+    private static final class Weights {
+        final int taps;
+        final int[] index;
+        final float[] weight;
+
+        Weights(int from, int to, Algorithm algorithm) {
+            double scale = (double) to / from;
+            double stretch = Math.max(1, 1 / scale); // Shrinking widens the kernel to cover every source pixel
+            double support = (algorithm == Algorithm.LANCZOS3 ? 3 : 0.5) * stretch;
+            taps = (int) Math.ceil(2 * support) + 1;
+            index = new int[to * taps];
+            weight = new float[to * taps];
+            for (int o = 0; o < to; o++) {
+                double centre = (o + 0.5) / scale; // In source pixels, whose centres are at i + 0.5
+                int first = (int) Math.floor(centre - support);
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    int i = first + t;
+                    double w = algorithm == Algorithm.LANCZOS3 ? lanczos((i + 0.5 - centre) / stretch)
+                            : Math.max(0, Math.min(i + 1, centre + support) - Math.max(i, centre - support));
+                    index[o * taps + t] = Math.max(0, Math.min(from - 1, i));
+                    weight[o * taps + t] = (float) w;
+                    sum += w;
+                }
+                for (int t = 0; t < taps; t++) {
+                    weight[o * taps + t] /= sum;
+                }
+            }
+        }
+
+        private static double lanczos(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            if (Math.abs(x) >= 3) {
+                return 0;
+            }
+            double pi = Math.PI * x;
+            return 3 * Math.sin(pi) * Math.sin(pi / 3) / (pi * pi);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Rotation time of {@link RotationEngine} against the Graphics2D.rotate path
+ * ImageHandler used to take, on a photo-sized image. Four 90 degree turns
+ * must give back the source pixel for pixel, odd sizes included.
+ * <p>
+ * Usage: java -Xmx2g RotationBenchmark [width] [height] [degrees]
+ */
+public class RotationBenchmark {
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 6000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        double degrees = args.length > 2 ? Double.parseDouble(args[2]) : 30;
+
+        BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = source.createGraphics();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(400),
+                    20 + random.nextInt(400));
+        }
+        g.dispose();
+        double megapixels = width * (double) height / 1e6;
+
+        System.out.printf("Image %dx%d (%.1f MP), %d processors%n", width, height, megapixels,
+                Runtime.getRuntime().availableProcessors());
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            long start = System.nanoTime();
+            BufferedImage result = graphicsRotate(source, degrees);
+            print(report, "Graphics2D " + degrees + " (same size)", start, result);
+            result = null;
+
+            start = System.nanoTime();
+            result = RotationEngine.rotate(source, degrees, RotationEngine.Interpolation.BILINEAR);
+            print(report, "engine " + degrees + " bilinear", start, result);
+            result = null;
+
+            start = System.nanoTime();
+            result = RotationEngine.rotate(source, degrees, RotationEngine.Interpolation.BICUBIC);
+            print(report, "engine " + degrees + " bicubic", start, result);
+            result = null;
+
+            start = System.nanoTime();
+            result = graphicsRotate(source, 90);
+            print(report, "Graphics2D 90 (same size)", start, result);
+            result = null;
+
+            start = System.nanoTime();
+            result = RotationEngine.rotate(source, 90, RotationEngine.Interpolation.BILINEAR);
+            print(report, "engine 90 (index copy)", start, result);
+            if (report) {
+                for (int turn = 0; turn < 3; turn++) {
+                    result = RotationEngine.rotate(result, 90, RotationEngine.Interpolation.BILINEAR);
+                }
+                System.out.println("four 90 degree turns give the source back: " + same(source, result));
+                for (int[] size : new int[][] { { 3, 2 }, { 5, 4 }, { 7, 3 }, { 601, 400 } }) {
+                    System.out.printf("  %dx%d: %s%n", size[0], size[1], quarterTurnsExact(size[0], size[1]));
+                }
+            }
+            result = null;
+        }
+    }
+
+    // Odd differences between width and height have no pixel centre to turn about; each turn must still swap the
+    // size exactly and four must give the source back.
+    private static boolean quarterTurnsExact(int width, int height) {
+        BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source.setRGB(x, y, 0xff000000 | random.nextInt(0xffffff));
+            }
+        }
+        BufferedImage result = source;
+        for (int turn = 0; turn < 4; turn++) {
+            result = RotationEngine.rotate(result, 90, RotationEngine.Interpolation.BILINEAR);
+            boolean swapped = turn % 2 == 0;
+            if (result.getWidth() != (swapped ? height : width) || result.getHeight() != (swapped ? width : height)) {
+                return false;
+            }
+        }
+        return same(source, result) && source.getRGB(0, 0) == RotationEngine.rotate(source, 90,
+                RotationEngine.Interpolation.BILINEAR).getRGB(height - 1, 0);
+    }
+
+    // What ImageHandler.rotateImage did: one thread, the same size as the source, corners cut off.
+    private static BufferedImage graphicsRotate(BufferedImage image, double degrees) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        BufferedImage rotated = new BufferedImage(w, h, image.getType());
+        Graphics2D g2d = rotated.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.rotate(Math.toRadians(degrees), w / 2, h / 2);
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return rotated;
+    }
+
+    private static void print(boolean report, String name, long start, BufferedImage result) {
+        long nanos = System.nanoTime() - start;
+        if (report) {
+            double megapixels = result.getWidth() * (double) result.getHeight() / 1e6;
+            System.out.printf("%-32s %8.1f ms  %5dx%-5d  %6.1f MP/s%n", name, nanos / 1e6, result.getWidth(),
+                    result.getHeight(), megapixels / (nanos / 1e9));
+        }
+    }
+
+    private static boolean same(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        int[] rowA = new int[a.getWidth()], rowB = new int[b.getWidth()];
+        for (int y = 0; y < a.getHeight(); y++) {
+            a.getRGB(0, y, a.getWidth(), 1, rowA, 0, a.getWidth());
+            b.getRGB(0, y, b.getWidth(), 1, rowB, 0, b.getWidth());
+            for (int x = 0; x < rowA.length; x++) {
+                if (rowA[x] != rowB[x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,296 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Rotates images by any angle, and more generally draws them through any
+ * affine transform, by inverse mapping: each output pixel centre is mapped
+ * back into the source and sampled there, bilinear or bicubic, on
+ * premultiplied colour so transparent pixels do not darken edges. Output
+ * rows are split into bands on the {@link FilterEngine} pool.
+ * <p>
+ * Turns by multiples of 90 degrees are copied index for index, with no
+ * interpolation at all, and so are transforms that only turn by quarters,
+ * flip and move by whole pixels.
+ * <p>
+ * -Dartstudio.rotate.interpolation picks what ImageTransform renders with
+ * (default BILINEAR).
+ */
+public final class RotationEngine {
+
+    public enum Interpolation {
+        BILINEAR, BICUBIC
+    }
+
+    private static final double EXACT = 1e-9; // Matrix entries this close to 0 or 1 count as exact
+    private static final double ONE = 4294967296.0; // 1.0 in 32.32 fixed point
+
+    private RotationEngine() {
+    }
+
+    public static Interpolation defaultInterpolation() {
+        return Interpolation.valueOf(System.getProperty("artstudio.rotate.interpolation", "BILINEAR"));
+    }
+
+    // Source turned clockwise by degrees about its centre, in an image just large enough to hold all of it.
+    // Corners outside the source are transparent.
+    public static BufferedImage rotate(BufferedImage source, double degrees, Interpolation interpolation) {
+        int width = source.getWidth(), height = source.getHeight();
+        double turns = degrees / 90;
+        if (turns == Math.rint(turns)) {
+            return quarterTurns(source, (int) Math.floorMod((long) turns, 4L));
+        }
+        AffineTransform rotation = AffineTransform.getRotateInstance(Math.toRadians(degrees), width / 2.0,
+                height / 2.0);
+        Rectangle2D turned = rotation.createTransformedShape(new Rectangle(0, 0, width, height)).getBounds2D();
+        int x1 = (int) Math.floor(turned.getMinX() + 1e-6), y1 = (int) Math.floor(turned.getMinY() + 1e-6);
+        int x2 = (int) Math.ceil(turned.getMaxX() - 1e-6), y2 = (int) Math.ceil(turned.getMaxY() - 1e-6);
+        rotation.preConcatenate(AffineTransform.getTranslateInstance(-x1, -y1));
+        BufferedImage result = new BufferedImage(Math.max(1, x2 - x1), Math.max(1, y2 - y1),
+                BufferedImage.TYPE_INT_ARGB);
+        transform(source, rotation, result, null, interpolation);
+        return result;
+    }
+
+    // Source turned clockwise by turns quarter turns, pixel for pixel: width and height swap on odd turns. About
+    // the centre there is no whole pixel grid to land on when width - height is odd, so this maps indices directly
+    // rather than going through a transform.
+    static BufferedImage quarterTurns(BufferedImage source, int turns) {
+        int sw = source.getWidth(), sh = source.getHeight();
+        int width = turns % 2 == 0 ? sw : sh, height = turns % 2 == 0 ? sh : sw;
+        int[] src = FilterEngine.pixels(source);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        ResizeEngine.inBands(height, (first, last) -> {
+            for (int y = first; y < last; y++) {
+                int row = y * width;
+                switch (turns) {
+                    case 0:
+                        System.arraycopy(src, y * sw, dst, row, width);
+                        break;
+                    case 1: // dst(x, y) = src(y, sh - 1 - x)
+                        for (int x = 0, i = (sh - 1) * sw + y; x < width; x++, i -= sw) {
+                            dst[row + x] = src[i];
+                        }
+                        break;
+                    case 2: // dst(x, y) = src(sw - 1 - x, sh - 1 - y)
+                        for (int x = 0, i = (sh - 1 - y) * sw + sw - 1; x < width; x++, i--) {
+                            dst[row + x] = src[i];
+                        }
+                        break;
+                    default: // dst(x, y) = src(sw - 1 - y, x)
+                        for (int x = 0, i = sw - 1 - y; x < width; x++, i += sw) {
+                            dst[row + x] = src[i];
+                        }
+                }
+            }
+        });
+        return result;
+    }
+
+    // Draws source into out, a TYPE_INT_ARGB image of its own, through transform from source to out pixels.
+    // Every pixel of out is written: those no source pixel covers, or outside clip if there is one, become clear.
+    public static void transform(BufferedImage source, AffineTransform transform, BufferedImage out, Shape clip,
+            Interpolation interpolation) {
+        AffineTransform inverse;
+        try {
+            inverse = transform.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("Transform squashes the image flat", e);
+        }
+        int[] src = FilterEngine.pixels(source);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        int sw = source.getWidth(), sh = source.getHeight(), width = out.getWidth();
+        boolean exact = isExact(inverse);
+        ResizeEngine.inBands(out.getHeight(), (first, last) -> {
+            if (exact) {
+                copy(src, sw, sh, inverse, dst, width, first, last);
+            } else if (interpolation == Interpolation.BILINEAR) {
+                bilinear(src, sw, sh, inverse, dst, width, first, last);
+            } else {
+                sample(src, sw, sh, inverse, dst, width, first, last, true);
+            }
+        });
+        if (clip != null) {
+            Area outside = new Area(new Rectangle(0, 0, width, out.getHeight()));
+            outside.subtract(new Area(clip));
+            Graphics2D g = out.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fill(outside);
+            g.dispose();
+        }
+    }
+
+    // True if the inverse maps output pixel centres onto source pixel centres one to one.
+    private static boolean isExact(AffineTransform inverse) {
+        double[] m = new double[6];
+        inverse.getMatrix(m);
+        for (int i = 0; i < 4; i++) {
+            if (Math.abs(m[i]) > EXACT && Math.abs(Math.abs(m[i]) - 1) > EXACT) {
+                return false;
+            }
+        }
+        if (Math.abs(Math.abs(m[0] * m[3] - m[1] * m[2]) - 1) > EXACT) {
+            return false;
+        }
+        double u = m[0] * 0.5 + m[2] * 0.5 + m[4] - 0.5, v = m[1] * 0.5 + m[3] * 0.5 + m[5] - 0.5;
+        return Math.abs(u - Math.rint(u)) < 1e-6 && Math.abs(v - Math.rint(v)) < 1e-6;
+    }
+
+    // The 90 degree path: output rows [first, last) are source pixels picked by index, stepping a whole pixel.
+    private static void copy(int[] src, int sw, int sh, AffineTransform inverse, int[] dst, int width, int first,
+            int last) {
+        int dux = (int) Math.rint(inverse.getScaleX()), duy = (int) Math.rint(inverse.getShearX());
+        int dvx = (int) Math.rint(inverse.getShearY()), dvy = (int) Math.rint(inverse.getScaleY());
+        int u0 = (int) Math.rint(inverse.getScaleX() * 0.5 + inverse.getShearX() * 0.5 + inverse.getTranslateX() - 0.5);
+        int v0 = (int) Math.rint(inverse.getShearY() * 0.5 + inverse.getScaleY() * 0.5 + inverse.getTranslateY() - 0.5);
+        for (int y = first; y < last; y++) {
+            int u = u0 + duy * y, v = v0 + dvy * y;
+            int row = y * width;
+            for (int x = 0; x < width; x++, u += dux, v += dvx) {
+                dst[row + x] = u >= 0 && u < sw && v >= 0 && v < sh ? src[v * sw + u] : 0;
+            }
+        }
+    }
+
+    // Bilinear sample() with the position stepped in 32.32 fixed point and 8-bit weights. Where all four
+    // pixels are opaque, as inside most photos, the channels are mixed straight, in integers.
+    private static void bilinear(int[] src, int sw, int sh, AffineTransform inverse, int[] dst, int width,
+            int first, int last) {
+        long dux = (long) (inverse.getScaleX() * ONE), dvx = (long) (inverse.getShearY() * ONE);
+        for (int y = first; y < last; y++) {
+            long u = (long) ((inverse.getScaleX() * 0.5 + inverse.getShearX() * (y + 0.5) + inverse.getTranslateX()
+                    - 0.5) * ONE);
+            long v = (long) ((inverse.getShearY() * 0.5 + inverse.getScaleY() * (y + 0.5) + inverse.getTranslateY()
+                    - 0.5) * ONE);
+            int row = y * width;
+            for (int x = 0; x < width; x++, u += dux, v += dvx) {
+                int u0 = (int) (u >> 32), v0 = (int) (v >> 32);
+                if (u0 < -1 || v0 < -1 || u0 >= sw || v0 >= sh) {
+                    dst[row + x] = 0;
+                    continue;
+                }
+                int fu = (int) (u >>> 24) & 0xff, fv = (int) (v >>> 24) & 0xff;
+                if (u0 >= 0 && v0 >= 0 && u0 + 1 < sw && v0 + 1 < sh) {
+                    int i = v0 * sw + u0;
+                    int p00 = src[i], p01 = src[i + 1], p10 = src[i + sw], p11 = src[i + sw + 1];
+                    if ((p00 & p01 & p10 & p11) >>> 24 == 255) {
+                        int w00 = (256 - fu) * (256 - fv), w01 = fu * (256 - fv), w10 = (256 - fu) * fv, w11 = fu * fv;
+                        dst[row + x] = 0xff000000
+                                | ((((p00 >> 16) & 0xff) * w00 + ((p01 >> 16) & 0xff) * w01 + ((p10 >> 16) & 0xff) * w10
+                                        + ((p11 >> 16) & 0xff) * w11 + 32768) >> 16 << 16)
+                                | ((((p00 >> 8) & 0xff) * w00 + ((p01 >> 8) & 0xff) * w01 + ((p10 >> 8) & 0xff) * w10
+                                        + ((p11 >> 8) & 0xff) * w11 + 32768) >> 16 << 8)
+                                | (((p00 & 0xff) * w00 + (p01 & 0xff) * w01 + (p10 & 0xff) * w10 + (p11 & 0xff) * w11
+                                        + 32768) >> 16);
+                        continue;
+                    }
+                }
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int j = 0; j < 2; j++) {
+                    int sy = v0 + j;
+                    if (sy < 0 || sy >= sh) {
+                        continue;
+                    }
+                    float wy = j == 0 ? (256 - fv) / 256f : fv / 256f;
+                    for (int i = 0; i < 2; i++) {
+                        int sx = u0 + i;
+                        if (sx < 0 || sx >= sw) {
+                            continue;
+                        }
+                        int p = src[sy * sw + sx];
+                        float w = (i == 0 ? (256 - fu) / 256f : fu / 256f) * wy * (p >>> 24);
+                        a += w;
+                        r += w * ((p >> 16) & 0xff);
+                        g += w * ((p >> 8) & 0xff);
+                        b += w * (p & 0xff);
+                    }
+                }
+                dst[row + x] = unpremultiply(a, r, g, b);
+            }
+        }
+    }
+
+    // Output rows [first, last), each pixel interpolated at its centre's place in the source. Pixel centres are
+    // at whole coordinates here; samples beyond the edge count as clear, which antialiases the outline.
+    private static void sample(int[] src, int sw, int sh, AffineTransform inverse, int[] dst, int width, int first,
+            int last, boolean bicubic) {
+        double dux = inverse.getScaleX(), dvx = inverse.getShearY();
+        float[] wx = new float[4], wy = new float[4];
+        for (int y = first; y < last; y++) {
+            double u = inverse.getScaleX() * 0.5 + inverse.getShearX() * (y + 0.5) + inverse.getTranslateX() - 0.5;
+            double v = inverse.getShearY() * 0.5 + inverse.getScaleY() * (y + 0.5) + inverse.getTranslateY() - 0.5;
+            int row = y * width;
+            for (int x = 0; x < width; x++, u += dux, v += dvx) {
+                int u0 = (int) Math.floor(u), v0 = (int) Math.floor(v);
+                if (u0 < -2 || v0 < -2 || u0 > sw || v0 > sh) {
+                    dst[row + x] = 0;
+                    continue;
+                }
+                float fu = (float) (u - u0), fv = (float) (v - v0);
+                int taps;
+                if (bicubic) {
+                    cubic(fu, wx);
+                    cubic(fv, wy);
+                    u0--;
+                    v0--;
+                    taps = 4;
+                } else {
+                    wx[0] = 1 - fu;
+                    wx[1] = fu;
+                    wy[0] = 1 - fv;
+                    wy[1] = fv;
+                    taps = 2;
+                }
+                boolean inside = u0 >= 0 && v0 >= 0 && u0 + taps <= sw && v0 + taps <= sh;
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int j = 0; j < taps; j++) {
+                    int sy = v0 + j;
+                    if (!inside && (sy < 0 || sy >= sh)) {
+                        continue;
+                    }
+                    for (int i = 0; i < taps; i++) {
+                        int sx = u0 + i;
+                        if (!inside && (sx < 0 || sx >= sw)) {
+                            continue;
+                        }
+                        int p = src[sy * sw + sx];
+                        float w = wx[i] * wy[j] * (p >>> 24);
+                        a += w;
+                        r += w * ((p >> 16) & 0xff);
+                        g += w * ((p >> 8) & 0xff);
+                        b += w * (p & 0xff);
+                    }
+                }
+                dst[row + x] = unpremultiply(a, r, g, b);
+            }
+        }
+    }
+
+    // ARGB from alpha and colour channels premultiplied by it.
+    private static int unpremultiply(float a, float r, float g, float b) {
+        int alpha = PixelKernels.clamp(a);
+        if (alpha == 0) {
+            return 0;
+        }
+        float scale = 1 / a;
+        return (alpha << 24) | (PixelKernels.clamp(r * scale) << 16) | (PixelKernels.clamp(g * scale) << 8)
+                | PixelKernels.clamp(b * scale);
+    }
+
+    // Catmull-Rom weights for the four pixels around a sample t of the way from the second to the third.
+    private static void cubic(float t, float[] weights) {
+        float t2 = t * t, t3 = t2 * t;
+        weights[0] = 0.5f * (-t3 + 2 * t2 - t);
+        weights[1] = 0.5f * (3 * t3 - 5 * t2 + 2);
+        weights[2] = 0.5f * (-3 * t3 + 4 * t2 + t);
+        weights[3] = 0.5f * (t3 - t2);
+    }
+}
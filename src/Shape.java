@@ -1,22 +1,65 @@
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * A shape on the canvas, as a view of one slot of a {@link ShapeStore}; the
+ * shape itself is only primitives in the store's arrays. Views are cheap and
+ * made as needed, so compare them with equals rather than ==. A shape made
+ * on its own gets a store of one until a {@link ShapeScene} takes it in, and
+ * from then on the view shows the scene's copy.
+ * <p>
+ * (x, y) is the top left of the outline, which is held relative to that
+ * corner so moving only changes the two ints.
+ */
 public class Shape {
 
-    int x, y, w, h;
-    Color color;
-    boolean isFilled = false;
+    ShapeStore store;
+    int handle;
 
     public Shape(int x, int y, int w, int h, Color c) {
-        this.x = x;
-        this.y = y;
-        this.w = w;
-        this.h = h;
-        this.color = c;
+        this(new ShapeStore(1), -1);
+        handle = store.add(0, c.getRGB(), 1, x, y, x + w, y + h);
+    }
+
+    Shape(ShapeStore store, int handle) {
+        this.store = store;
+        this.handle = handle;
+    }
+
+    // A view of handle in store, a Circle for circles.
+    static Shape view(ShapeStore store, int handle) {
+        return store.type[handle] == ShapeStore.CIRCLE ? new Circle(store, handle) : new Shape(store, handle);
+    }
+
+    // The shape a SHAPE op outlines, or null for other ops.
+    public static Shape of(CanvasOp op) {
+        if (op == null || op.getType() != CanvasOp.SHAPE) {
+            return null;
+        }
+        ShapeStore store = new ShapeStore(1);
+        return view(store, store.add(op));
+    }
+
+    // A shape dragged out from (x1, y1) to (x2, y2) with the drawing tools; null for names they do not know.
+    public static Shape create(String type, Color color, float strokeWidth, int x1, int y1, int x2, int y2) {
+        return of(CanvasOp.shape(type, color, strokeWidth, x1, y1, x2, y2));
+    }
+
+    // The op that paints this shape where it is now, to store it or flatten it into a layer.
+    public CanvasOp toOp() {
+        return store.toOp(handle);
+    }
 
+    // Same shape at the same place, on its own.
+    public Shape copy() {
+        ShapeStore copy = new ShapeStore(1);
+        return view(copy, copy.add(store, handle));
     }
 
+    // Moves the shape in its store; a shape in a scene is moved with ShapeScene.move so the scene can find it.
     public void move(int x, int y) {
-        this.x = x;
-        this.y = y;
+        store.move(handle, x, y);
     }
 
     public boolean contains(int x, int y) {
@@ -28,24 +71,72 @@ public class Shape {
         return false;
     }
 
+    // True if the point is on the outline, or inside it for a filled shape; contains() only checks the box.
+    public boolean hits(int x, int y) {
+        return store.hits(handle, x, y);
+    }
+
+    // Canvas pixels the shape paints, including the stroke.
+    public Rectangle getBounds() {
+        int left = store.left(handle), top = store.top(handle);
+        return new Rectangle(left, top, store.right(handle) - left, store.bottom(handle) - top);
+    }
+
+    // Draws the cached pixels when g only scales and translates, rasterizing them first if the scale changed.
+    public void draw(Graphics2D g) {
+        store.nextFrame();
+        store.draw(handle, g, g.getTransform());
+    }
+
+    // Draws the shape as rasterized on its own at scale 1, whatever its size, onto g which may only translate.
+    // Java2D strokes a little differently near the edge of the clip, so exports that draw in bands use this to
+    // get the same pixels in every band.
+    public void drawPixels(Graphics2D g) {
+        store.drawPixels(handle, g);
+    }
+
+    // Draws straight from the geometry, for transforms the cached pixels cannot follow.
+    public void drawGeometry(Graphics2D g) {
+        store.drawGeometry(handle, g);
+    }
+
     public int getX() {
-        return x;
+        return store.x[handle];
     }
 
     public int getY() {
-        return y;
+        return store.y[handle];
     }
 
     public int getW() {
-        return w;
+        return store.w[handle];
     }
 
     public int getH() {
-        return h;
+        return store.h[handle];
     }
 
     public Color getColor() {
-        return color;
+        return new Color(store.argb[handle], true);
+    }
+
+    public String getType() {
+        return CanvasOp.SHAPES[store.type[handle]];
+    }
+
+    public boolean isFilled() {
+        return (store.flags[handle] & ShapeStore.FILLED) != 0;
+    }
+
+    // Views of the same slot are the same shape.
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Shape && ((Shape) other).store == store && ((Shape) other).handle == handle;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + handle;
     }
 
 }
@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+/**
+ * A loose quadtree over the bounds of shapes in a {@link ShapeStore}, for
+ * picking and for finding what a repaint has to draw without looking at every
+ * shape. Each node reaches half its size past its square on every side, and a
+ * shape goes down to the child its centre is in for as long as that child
+ * holds all of it. Without the slack, every shape across a split line would
+ * stay in the node above, and with a million shapes the root alone holds
+ * thousands that every query has to look at. A node splits into four once it
+ * holds more than {@link #SPLIT} shapes, down to {@link #MIN_SIZE} pixels. The
+ * root starts around the first shape and doubles towards any shape that falls
+ * outside.
+ * <p>
+ * Nodes hold store handles in int arrays, and queries add to a {@link Found}
+ * that is kept between them, so a query allocates nothing. Results come in no
+ * particular order.
+ */
+final class ShapeIndex {
+
+    private static final int SPLIT = 16; // Shapes a node holds before it splits
+    private static final int MIN_SIZE = 32; // Nodes this small or smaller do not split
+    private static final int MAX_SIZE = 1 << 28; // Shapes past a root this big stay in it
+
+    // Handles a query found; clear and reuse it rather than make a new one per query.
+    static final class Found {
+        int[] handles = new int[64];
+        int size;
+
+        void add(int handle) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, 2 * size);
+            }
+            handles[size++] = handle;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private static final class Node {
+        final int x, y, size;
+        int[] handles = new int[4];
+        int count;
+        Node[] children;
+
+        Node(int x, int y, int size) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        // The area shapes in the node may cover, slack included.
+        int left() {
+            return x - size / 2;
+        }
+
+        int top() {
+            return y - size / 2;
+        }
+
+        int right() {
+            return x + size + size / 2;
+        }
+
+        int bottom() {
+            return y + size + size / 2;
+        }
+
+        boolean overlaps(int left, int top, int right, int bottom) {
+            return left < right() && right > left() && top < bottom() && bottom > top();
+        }
+    }
+
+    private final ShapeStore store;
+    private Node root;
+    private Node[] nodes = new Node[16]; // Node each handle is in
+    private int size;
+
+    ShapeIndex(ShapeStore store) {
+        this.store = store;
+    }
+
+    private boolean holds(Node node, int handle) {
+        return store.left(handle) >= node.left() && store.top(handle) >= node.top()
+                && store.right(handle) <= node.right() && store.bottom(handle) <= node.bottom();
+    }
+
+    // Whether the shape's centre is in the node's square, slack left out.
+    private boolean centred(Node node, int handle) {
+        int centerX = (store.left(handle) + store.right(handle)) >> 1;
+        int centerY = (store.top(handle) + store.bottom(handle)) >> 1;
+        return centerX >= node.x && centerX < node.x + node.size && centerY >= node.y && centerY < node.y + node.size;
+    }
+
+    public void insert(int handle) {
+        if (root == null) {
+            int size = MIN_SIZE * 8;
+            int width = store.right(handle) - store.left(handle), height = store.bottom(handle) - store.top(handle);
+            while (size < MAX_SIZE && (size < width || size < height)) {
+                size *= 2;
+            }
+            root = new Node(Math.floorDiv(store.left(handle), size) * size,
+                    Math.floorDiv(store.top(handle), size) * size, size);
+        }
+        while (!(holds(root, handle) && centred(root, handle)) && root.size < MAX_SIZE) {
+            grow(handle); // A shape centred in the slack could go in no child, and would pile up in the root
+        }
+        if (handle >= nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(handle + 1, nodes.length + (nodes.length >> 1)));
+        }
+        insert(root, handle);
+        size++;
+    }
+
+    // Doubles the root towards handle; the old root becomes one quarter of the new one. The shapes the old root
+    // held itself go in again from the top, as some now fit further down.
+    private void grow(int handle) {
+        Node old = root;
+        int size = old.size;
+        int x = (store.left(handle) + store.right(handle)) >> 1 < old.x ? old.x - size : old.x;
+        int y = (store.top(handle) + store.bottom(handle)) >> 1 < old.y ? old.y - size : old.y;
+        Node grown = new Node(x, y, 2 * size);
+        grown.children = new Node[4];
+        for (int i = 0; i < 4; i++) {
+            int cx = x + (i & 1) * size, cy = y + (i >> 1) * size;
+            grown.children[i] = cx == old.x && cy == old.y ? old : new Node(cx, cy, size);
+        }
+        root = grown;
+        int[] handles = old.handles;
+        int count = old.count;
+        old.handles = new int[4];
+        old.count = 0;
+        for (int i = 0; i < count; i++) {
+            insert(grown, handles[i]);
+        }
+    }
+
+    private void insert(Node node, int handle) {
+        while (node.children != null) {
+            Node child = childHolding(node, handle);
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+        if (node.count == node.handles.length) {
+            node.handles = Arrays.copyOf(node.handles, 2 * node.count);
+        }
+        node.handles[node.count++] = handle;
+        nodes[handle] = node;
+        if (node.children == null && node.count > SPLIT && node.size > MIN_SIZE) {
+            split(node);
+        }
+    }
+
+    // The child the shape's centre is in, if it holds all of the shape.
+    private Node childHolding(Node node, int handle) {
+        int half = node.size / 2;
+        int centerX = (store.left(handle) + store.right(handle)) >> 1;
+        int centerY = (store.top(handle) + store.bottom(handle)) >> 1;
+        Node child = node.children[(centerX >= node.x + half ? 1 : 0) | (centerY >= node.y + half ? 2 : 0)];
+        return holds(child, handle) ? child : null;
+    }
+
+    private void split(Node node) {
+        int half = node.size / 2;
+        node.children = new Node[4];
+        for (int i = 0; i < 4; i++) {
+            node.children[i] = new Node(node.x + (i & 1) * half, node.y + (i >> 1) * half, half);
+        }
+        int[] handles = node.handles;
+        int count = node.count;
+        node.handles = new int[4];
+        node.count = 0;
+        for (int i = 0; i < count; i++) {
+            insert(node, handles[i]);
+        }
+    }
+
+    public void remove(int handle) {
+        Node node = handle < nodes.length ? nodes[handle] : null;
+        if (node != null) {
+            unlink(node, handle);
+            nodes[handle] = null;
+            size--;
+        }
+    }
+
+    private static void unlink(Node node, int handle) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.handles[i] == handle) {
+                node.handles[i] = node.handles[--node.count];
+                return;
+            }
+        }
+    }
+
+    // Call after the shape moved. Stays put when the node still holds it and no child would.
+    public void update(int handle) {
+        Node node = handle < nodes.length ? nodes[handle] : null;
+        if (node == null) {
+            return;
+        }
+        if (holds(node, handle) && (node.children == null || childHolding(node, handle) == null)) {
+            return;
+        }
+        remove(handle);
+        insert(handle);
+    }
+
+    public void clear() {
+        root = null;
+        Arrays.fill(nodes, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Adds the shapes whose painted bounds contain the canvas point to out.
+    public void query(int x, int y, Found out) {
+        query(x, y, x + 1, y + 1, out);
+    }
+
+    // Adds the shapes whose painted bounds reach into [left, right) x [top, bottom) to out.
+    public void query(int left, int top, int right, int bottom, Found out) {
+        if (root != null) {
+            query(root, left, top, right, bottom, out);
+        }
+    }
+
+    private void query(Node node, int left, int top, int right, int bottom, Found out) {
+        if (left <= node.left() && top <= node.top() && right >= node.right() && bottom >= node.bottom()
+                && node.size < MAX_SIZE) { // A root this big may hold shapes past its edges
+            all(node, out); // Zoomed out far enough that the area covers the node
+            return;
+        }
+        for (int i = 0; i < node.count; i++) {
+            int handle = node.handles[i];
+            if (store.left(handle) < right && store.right(handle) > left && store.top(handle) < bottom
+                    && store.bottom(handle) > top) {
+                out.add(handle);
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child.overlaps(left, top, right, bottom)) {
+                    query(child, left, top, right, bottom, out);
+                }
+            }
+        }
+    }
+
+    private static void all(Node node, Found out) {
+        if (out.size + node.count > out.handles.length) {
+            out.handles = Arrays.copyOf(out.handles, Math.max(out.size + node.count, 2 * out.handles.length));
+        }
+        System.arraycopy(node.handles, 0, out.handles, out.size, node.count);
+        out.size += node.count;
+        if (node.children != null) {
+            for (Node child : node.children) {
+                all(child, out);
+            }
+        }
+    }
+}
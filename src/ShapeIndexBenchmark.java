@@ -0,0 +1,134 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picking, viewport culling and moving shapes through {@link ShapeIndex}
+ * against scanning every shape, on a diagram-sized scene. Both ways of
+ * picking must find the same shape. The shapes arrive in random order, then
+ * again sorted left to right and from the centre out, as a diagram drawn or
+ * imported in order would, since the tree's shape depends on the order.
+ * <p>
+ * Usage: java ShapeIndexBenchmark [shapes] [picks]
+ */
+public class ShapeIndexBenchmark {
+
+    private static final int CANVAS = 20000; // Side of the square canvas the shapes are spread over
+    private static final String[] TYPES = { "Rectangle", "Circle", "Square", "Triangle", "Star", "Pentagon",
+        "Hexagon" };
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int picks = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        Random random = new Random(42);
+        List<CanvasOp> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(CANVAS), y = random.nextInt(CANVAS);
+            ops.add(CanvasOp.shape(TYPES[random.nextInt(TYPES.length)], new Color(random.nextInt()),
+                    1 + random.nextInt(3), x, y, x + 10 + random.nextInt(110), y + 10 + random.nextInt(110)));
+        }
+        int[] points = new int[2 * picks];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(CANVAS);
+        }
+
+        System.out.printf("%d shapes over %dx%d, %d picks%n", count, CANVAS, CANVAS, picks);
+        run("random order", ops, points, random);
+        List<CanvasOp> sorted = new ArrayList<>(ops);
+        sorted.sort(Comparator.comparingInt(op -> op.x1));
+        run("left to right", sorted, points, random);
+        sorted.sort(Comparator.comparingDouble(op -> Math.hypot(op.x1 - CANVAS / 2, op.y1 - CANVAS / 2)));
+        run("centre out", sorted, points, random);
+    }
+
+    private static void run(String order, List<CanvasOp> ops, int[] points, Random random) {
+        int count = ops.size(), picks = points.length / 2;
+        ShapeStore store = new ShapeStore(count); // Same handles as the scene's, which adds them in the same order
+        for (CanvasOp op : ops) {
+            store.add(op);
+        }
+        int scans = Math.max(1, Math.min(picks, 500)); // A scan of every shape is too slow to do picks times
+
+        System.out.println(order);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            long start = System.nanoTime();
+            ShapeScene scene = new ShapeScene(1, ops);
+            print(report, "build index", System.nanoTime() - start, 1, "");
+
+            int hits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < picks; i++) {
+                hits += scene.pick(points[2 * i], points[2 * i + 1]) != null ? 1 : 0;
+            }
+            print(report, "pick, index", System.nanoTime() - start, picks, hits + " hits");
+
+            boolean same = true;
+            start = System.nanoTime();
+            for (int i = 0; i < scans; i++) {
+                int scanned = scan(store, points[2 * i], points[2 * i + 1]);
+                same &= scanned == scene.pickHandle(points[2 * i], points[2 * i + 1]);
+            }
+            print(report, "pick, scan all", System.nanoTime() - start, scans, "same shape: " + same);
+
+            for (double zoom : new double[] { 1, 0.25, 0.05 }) {
+                int width = (int) Math.ceil(1600 / zoom), height = (int) Math.ceil(1000 / zoom); // A 1600x1000 view
+                Rectangle view = new Rectangle(random.nextInt(Math.max(1, CANVAS - width)),
+                        random.nextInt(Math.max(1, CANVAS - height)), width, height);
+                ShapeIndex index = new ShapeIndex(store);
+                for (int handle = 0; handle < count; handle++) {
+                    index.insert(handle);
+                }
+                ShapeIndex.Found found = new ShapeIndex.Found();
+                int repeats = 200;
+                start = System.nanoTime();
+                for (int i = 0; i < repeats; i++) {
+                    found.clear();
+                    index.query(view.x, view.y, view.x + view.width, view.y + view.height, found);
+                }
+                print(report, String.format("cull at zoom %.2f, index", zoom), System.nanoTime() - start, repeats,
+                        found.size + " in view");
+                start = System.nanoTime();
+                int inView = 0;
+                for (int i = 0; i < repeats; i++) {
+                    inView = 0;
+                    for (int handle = 0; handle < count; handle++) {
+                        inView += store.left(handle) < view.x + view.width && store.right(handle) > view.x
+                                && store.top(handle) < view.y + view.height && store.bottom(handle) > view.y ? 1 : 0;
+                    }
+                }
+                print(report, String.format("cull at zoom %.2f, scan all", zoom), System.nanoTime() - start,
+                        repeats, inView + " in view");
+            }
+
+            List<Shape> shapes = scene.getShapes();
+            start = System.nanoTime();
+            for (int i = 0; i < picks; i++) {
+                Shape shape = shapes.get(random.nextInt(count));
+                scene.move(shape, shape.getX() + random.nextInt(41) - 20, shape.getY() + random.nextInt(41) - 20);
+            }
+            print(report, "move and update", System.nanoTime() - start, picks, "");
+        }
+    }
+
+    // What picking did before the index: every shape, top first.
+    private static int scan(ShapeStore store, int x, int y) {
+        for (int handle = store.size() - 1; handle >= 0; handle--) {
+            if (store.hits(handle, x, y)) {
+                return handle;
+            }
+        }
+        return -1;
+    }
+
+    private static void print(boolean report, String name, long nanos, int operations, String note) {
+        if (report) {
+            System.out.printf("%-32s %12.3f us/op  %s%n", name, nanos / 1e3 / operations, note);
+        }
+    }
+}
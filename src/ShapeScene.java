@@ -0,0 +1,380 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The shapes on the canvas, bottom first, drawn over the layers. Adding,
+ * moving and clearing are undoable here; the canvas decides when an undo
+ * step is the scene's rather than a layer's. Methods that change what is
+ * shown return the canvas area to repaint.
+ * <p>
+ * The shapes live in a {@link ShapeStore} the scene owns, and the
+ * {@link Shape}s it hands out are views of it. Picking and drawing go through
+ * a {@link ShapeIndex}, so they only look at shapes near the point or area,
+ * and allocate nothing per shape. Each shape is numbered when first added and
+ * keeps its number through undo, which gives the z-order of what a query
+ * finds. A shape's slot is given back to the store once it is off the canvas
+ * and no undo or redo step refers to it.
+ */
+public class ShapeScene {
+
+    private enum Kind {
+        ADD, MOVE, CLEAR
+    }
+
+    private static final class Edit {
+        final Kind kind;
+        final int[] handles;
+        int dx, dy; // For MOVE; undo moves back by this much
+
+        Edit(Kind kind, int... handles) {
+            this.kind = kind;
+            this.handles = handles;
+        }
+    }
+
+    private static final int DIGIT_BITS = 11; // Radix sort of z-order numbers, three digits of 11 bits
+
+    private final ShapeStore store = new ShapeStore(64);
+    private final ShapeIndex index = new ShapeIndex(store);
+    private final ShapeIndex.Found found = new ShapeIndex.Found(); // Query results, reused
+    private int[] shown = new int[64]; // Handles on the canvas, bottom first
+    private int shownCount;
+    private int[] refs = new int[64]; // Undo and redo steps that refer to each handle
+    private int nextOrder;
+    private long[] keys = new long[64], sorted = new long[64]; // (order << 32) | handle, for drawing bottom first
+    private final int[] digitCounts = new int[1 << DIGIT_BITS];
+    private final Deque<Edit> undo = new ArrayDeque<>();
+    private final Deque<Edit> redo = new ArrayDeque<>();
+    private final int depth;
+    private int modCount; // Bumped by every change to what is shown
+
+    public ShapeScene(int depth) {
+        this.depth = depth;
+    }
+
+    // A scene that starts out with the shapes of SHAPE ops, as opened from a project; they are not an edit to undo.
+    public ShapeScene(int depth, List<CanvasOp> ops) {
+        this.depth = depth;
+        for (CanvasOp op : ops) {
+            if (op != null && op.getType() == CanvasOp.SHAPE) {
+                put(store.add(op));
+            }
+        }
+    }
+
+    // Puts shape on top. A shape from elsewhere is copied in, and the view is moved over to the copy.
+    public Rectangle add(Shape shape) {
+        if (shape.store != store) {
+            shape.handle = store.add(shape.store, shape.handle);
+            shape.store = store;
+        }
+        put(shape.handle);
+        modCount++;
+        record(new Edit(Kind.ADD, shape.handle));
+        return bounds(shape.handle, null);
+    }
+
+    private void put(int handle) {
+        store.order[handle] = ++nextOrder;
+        show(handle);
+    }
+
+    // Back on the canvas at its place in the z-order.
+    private void show(int handle) {
+        if (shownCount == shown.length) {
+            shown = Arrays.copyOf(shown, 2 * shownCount);
+        }
+        int low = 0, high = shownCount; // Binary search for the place, then shift once
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (store.order[shown[middle]] < store.order[handle]) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        System.arraycopy(shown, low, shown, low + 1, shownCount - low);
+        shown[low] = handle;
+        shownCount++;
+        store.flags[handle] |= ShapeStore.LIVE;
+        index.insert(handle);
+    }
+
+    private void hide(int handle) {
+        int at = indexOf(handle);
+        System.arraycopy(shown, at + 1, shown, at, shownCount - at - 1);
+        shownCount--;
+        store.flags[handle] &= ~ShapeStore.LIVE;
+        index.remove(handle);
+    }
+
+    private int indexOf(int handle) {
+        int low = 0, high = shownCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = store.order[shown[middle]];
+            if (order < store.order[handle]) {
+                low = middle + 1;
+            } else if (order > store.order[handle]) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // Moves shape without recording it, as for each step of a drag.
+    public Rectangle move(Shape shape, int x, int y) {
+        Rectangle before = bounds(shape.handle, null);
+        store.move(shape.handle, x, y);
+        index.update(shape.handle);
+        modCount++;
+        return bounds(shape.handle, before);
+    }
+
+    // Records the moves since shape was at (fromX, fromY) as one edit; false if it ended up where it started.
+    public boolean moved(Shape shape, int fromX, int fromY) {
+        if (shape.getX() == fromX && shape.getY() == fromY) {
+            return false;
+        }
+        Edit edit = new Edit(Kind.MOVE, shape.handle);
+        edit.dx = shape.getX() - fromX;
+        edit.dy = shape.getY() - fromY;
+        record(edit);
+        return true;
+    }
+
+    // Removes every shape; null if there were none.
+    public Rectangle clear() {
+        if (shownCount == 0) {
+            return null;
+        }
+        Rectangle area = null;
+        for (int i = 0; i < shownCount; i++) {
+            area = bounds(shown[i], area);
+            store.flags[shown[i]] &= ~ShapeStore.LIVE;
+        }
+        Edit edit = new Edit(Kind.CLEAR, Arrays.copyOf(shown, shownCount));
+        shownCount = 0;
+        index.clear();
+        modCount++;
+        record(edit);
+        return area;
+    }
+
+    private void record(Edit edit) {
+        refer(edit, 1);
+        undo.push(edit);
+        clearRedo();
+        if (undo.size() > depth) {
+            refer(undo.removeLast(), -1);
+        }
+    }
+
+    // Counts the edit's references to its shapes, and gives back the slots of shapes that are gone for good.
+    private void refer(Edit edit, int change) {
+        for (int handle : edit.handles) {
+            if (handle >= refs.length) {
+                refs = Arrays.copyOf(refs, Math.max(handle + 1, 2 * refs.length));
+            }
+            refs[handle] += change;
+            if (refs[handle] == 0 && (store.flags[handle] & ShapeStore.LIVE) == 0) {
+                store.release(handle);
+            }
+        }
+    }
+
+    // Reverts the latest edit; null if there is none.
+    public Rectangle undo() {
+        Edit edit = undo.poll();
+        if (edit == null) {
+            return null;
+        }
+        redo.push(edit);
+        return apply(edit, true);
+    }
+
+    public Rectangle redo() {
+        Edit edit = redo.poll();
+        if (edit == null) {
+            return null;
+        }
+        undo.push(edit);
+        return apply(edit, false);
+    }
+
+    // A new edit elsewhere on the canvas means the undone scene edits can no longer be redone.
+    public void clearRedo() {
+        while (!redo.isEmpty()) {
+            refer(redo.pop(), -1);
+        }
+    }
+
+    private Rectangle apply(Edit edit, boolean reverse) {
+        modCount++;
+        Rectangle area = null;
+        for (int handle : edit.handles) {
+            area = bounds(handle, area);
+        }
+        switch (edit.kind) {
+            case ADD:
+            case CLEAR:
+                boolean remove = reverse == (edit.kind == Kind.ADD);
+                for (int handle : edit.handles) {
+                    if (remove) {
+                        hide(handle);
+                    } else {
+                        show(handle);
+                    }
+                }
+                return area;
+            default:
+                int sign = reverse ? -1 : 1;
+                for (int handle : edit.handles) {
+                    store.move(handle, store.x[handle] + sign * edit.dx, store.y[handle] + sign * edit.dy);
+                    index.update(handle);
+                    area = bounds(handle, area);
+                }
+                return area;
+        }
+    }
+
+    // The topmost shape under the canvas point, or null.
+    public Shape pick(int x, int y) {
+        int handle = pickHandle(x, y);
+        return handle < 0 ? null : Shape.view(store, handle);
+    }
+
+    // The store handle of the topmost shape under the canvas point, or -1.
+    int pickHandle(int x, int y) {
+        found.clear();
+        index.query(x, y, found);
+        int top = -1;
+        for (int i = 0; i < found.size; i++) {
+            int handle = found.handles[i];
+            if ((top < 0 || store.order[handle] > store.order[top]) && store.hits(handle, x, y)) {
+                top = handle;
+            }
+        }
+        return top;
+    }
+
+    // Draws the shapes that reach into area, bottom first, from their cached pixels.
+    public void drawTo(Graphics2D g, Rectangle area) {
+        found.clear();
+        index.query(area.x, area.y, area.x + area.width, area.y + area.height, found);
+        int n = found.size;
+        if (n > keys.length) {
+            keys = new long[Math.max(n, 2 * keys.length)];
+            sorted = new long[keys.length];
+        }
+        for (int i = 0; i < n; i++) {
+            int handle = found.handles[i];
+            keys[i] = (long) store.order[handle] << 32 | handle;
+        }
+        long[] bottomFirst = sortByOrder(n);
+        AffineTransform transform = g.getTransform();
+        store.nextFrame();
+        for (int i = 0; i < n; i++) {
+            store.draw((int) bottomFirst[i], g, transform);
+        }
+    }
+
+    // Sorts the first n keys on their high half with an LSD radix sort between keys and sorted, which needs no
+    // scratch beyond them, and returns whichever holds the result.
+    private long[] sortByOrder(int n) {
+        long[] from = keys, to = sorted;
+        int mask = (1 << DIGIT_BITS) - 1;
+        for (int shift = 32; shift < 32 + 3 * DIGIT_BITS && nextOrder >>> (shift - 32) != 0; shift += DIGIT_BITS) {
+            Arrays.fill(digitCounts, 0);
+            for (int i = 0; i < n; i++) {
+                digitCounts[(int) (from[i] >>> shift) & mask]++;
+            }
+            for (int d = 0, start = 0; d <= mask; d++) {
+                int count = digitCounts[d];
+                digitCounts[d] = start;
+                start += count;
+            }
+            for (int i = 0; i < n; i++) {
+                to[digitCounts[(int) (from[i] >>> shift) & mask]++] = from[i];
+            }
+            long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        return from;
+    }
+
+    // Views of the shapes, bottom first; not to be changed.
+    public List<Shape> getShapes() {
+        return new AbstractList<Shape>() {
+            @Override
+            public Shape get(int i) {
+                if (i < 0 || i >= shownCount) {
+                    throw new IndexOutOfBoundsException(i);
+                }
+                return Shape.view(store, shown[i]);
+            }
+
+            @Override
+            public int size() {
+                return shownCount;
+            }
+        };
+    }
+
+    // The ops that paint the shapes bottom first, to save them.
+    public List<CanvasOp> toOps() {
+        List<CanvasOp> ops = new ArrayList<>(shownCount);
+        for (int i = 0; i < shownCount; i++) {
+            ops.add(store.toOp(shown[i]));
+        }
+        return ops;
+    }
+
+    // The shapes as they are now, for a save or export that runs while they keep changing. Views of a frozen
+    // store, made as they are read; taking one only copies the list of handles.
+    public List<Shape> snapshot() {
+        ShapeStore frozen = store.freeze();
+        int[] handles = Arrays.copyOf(shown, shownCount);
+        return new AbstractList<Shape>() {
+            @Override
+            public Shape get(int i) {
+                return Shape.view(frozen, handles[i]);
+            }
+
+            @Override
+            public int size() {
+                return handles.length;
+            }
+        };
+    }
+
+    // Changes whenever what the scene shows does, so a caller can tell whether it has anything new to save.
+    public int getModCount() {
+        return modCount;
+    }
+
+    public boolean isEmpty() {
+        return shownCount == 0;
+    }
+
+    public int size() {
+        return shownCount;
+    }
+
+    // Painted area of handle joined to area, or on its own if area is null.
+    private Rectangle bounds(int handle, Rectangle area) {
+        int left = store.left(handle), top = store.top(handle);
+        Rectangle bounds = new Rectangle(left, top, store.right(handle) - left, store.bottom(handle) - top);
+        return area == null ? bounds : area.union(bounds);
+    }
+}
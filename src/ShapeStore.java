@@ -0,0 +1,553 @@
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * The shapes of a scene as parallel primitive arrays, one slot per shape,
+ * addressed by an int handle that stays the same for as long as the shape
+ * exists. A million shapes are a couple of dozen arrays rather than millions
+ * of objects, and hit tests and drawing read them without allocating.
+ * {@link Shape} is a view of one slot.
+ * <p>
+ * Outlines drawn on screen are rasterized once per zoom level and the pixels
+ * kept, within -Dartstudio.shapes.spriteMB (default 256) for all shapes.
+ * Past that, pixels not drawn in the current frame are dropped. Shapes only a
+ * few pixels across on screen are drawn from their geometry instead, in
+ * whole device pixels when their line is under a pixel wide.
+ * <p>
+ * Only used from one thread at a time, except {@link #drawPixels}, which
+ * exports call from several. A {@link #freeze frozen} view for a save or
+ * export shares the arrays rather than copying them; the store copies a
+ * group of arrays only when it next writes one the view can see.
+ */
+final class ShapeStore {
+
+    static final int CIRCLE = 1, SQUARE = 2; // Type codes are indices into CanvasOp.SHAPES; 0 is a rectangle
+    static final byte FILLED = 1, LIVE = 2; // Flags; LIVE is up to the owner, for shapes that are showing
+
+    private static final long SPRITE_BUDGET = Long.getLong("artstudio.shapes.spriteMB", 256) * 1024 * 1024;
+    private static final int MIN_SPRITE_SIDE = 8; // On screen pixels; smaller shapes are cheaper to draw again
+    private static final BasicStroke THIN = new BasicStroke(1);
+    private static final int OVAL_POINTS = 16; // Corners of the polygon tiny circles are drawn as
+    private static final double[] COS = new double[OVAL_POINTS], SIN = new double[OVAL_POINTS];
+    static {
+        for (int i = 0; i < OVAL_POINTS; i++) {
+            COS[i] = Math.cos(2 * Math.PI * i / OVAL_POINTS);
+            SIN[i] = Math.sin(2 * Math.PI * i / OVAL_POINTS);
+        }
+    }
+    private static final ThreadLocal<BufferedImage[]> scratchImage = // Per export thread, for drawPixels
+            ThreadLocal.withInitial(() -> new BufferedImage[1]);
+
+    // Per slot. (x, y, w, h) is the outline's bounding box; the drag that made it is relative to (x, y).
+    int[] x, y, w, h, fromX, fromY, toX, toY, argb, order;
+    float[] stroke;
+    byte[] type, flags;
+    private boolean placeShared, shapeShared; // x and y, and the other arrays, are also a frozen view's
+    private Color[] colors; // Made from argb the first time the slot is painted
+    private BufferedImage[] sprites; // Cached pixels and colours start out null in a frozen view
+    private double[] spriteScales;
+    private int[] spriteFrames; // Frame each sprite was last drawn in
+    private long spriteBytes;
+    private int frame;
+    private int evictedFrame = -1; // Eviction only helps once a frame
+
+    private int size; // Slots handed out so far; every handle is below this
+    private int[] free = new int[16];
+    private int freeCount;
+
+    // Scratch geometry and paint, so hit tests and drawing on screen allocate nothing
+    private final int[] xs = new int[CanvasOp.MAX_CORNERS], ys = new int[CanvasOp.MAX_CORNERS];
+    private final Rectangle rectangle = new Rectangle();
+    private final Ellipse2D.Float ellipse = new Ellipse2D.Float();
+    private final Polygon polygon = new Polygon();
+    private final AffineTransform translation = new AffineTransform();
+    private final int[] ovalXs = new int[OVAL_POINTS], ovalYs = new int[OVAL_POINTS];
+    private final Color[] palette = new Color[256]; // Recent colours by hash, so slots of one colour share it
+    private final BasicStroke[] strokes = new BasicStroke[64]; // By hash of the width
+
+    ShapeStore(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    // A frozen view of from, sharing its arrays.
+    private ShapeStore(ShapeStore from) {
+        x = from.x;
+        y = from.y;
+        w = from.w;
+        h = from.h;
+        fromX = from.fromX;
+        fromY = from.fromY;
+        toX = from.toX;
+        toY = from.toY;
+        argb = from.argb;
+        order = from.order;
+        stroke = from.stroke;
+        type = from.type;
+        flags = from.flags;
+        size = from.size;
+        placeShared = true; // Writes through the view copy too
+        shapeShared = true;
+    }
+
+    private void allocate(int capacity) {
+        x = resize(x, capacity);
+        y = resize(y, capacity);
+        w = resize(w, capacity);
+        h = resize(h, capacity);
+        fromX = resize(fromX, capacity);
+        fromY = resize(fromY, capacity);
+        toX = resize(toX, capacity);
+        toY = resize(toY, capacity);
+        argb = resize(argb, capacity);
+        order = resize(order, capacity);
+        spriteFrames = resize(spriteFrames, capacity);
+        stroke = stroke == null ? new float[capacity] : Arrays.copyOf(stroke, capacity);
+        type = type == null ? new byte[capacity] : Arrays.copyOf(type, capacity);
+        flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+        colors = colors == null ? new Color[capacity] : Arrays.copyOf(colors, capacity);
+        sprites = sprites == null ? new BufferedImage[capacity] : Arrays.copyOf(sprites, capacity);
+        spriteScales = spriteScales == null ? new double[capacity] : Arrays.copyOf(spriteScales, capacity);
+        placeShared = false; // Every array is a new one now
+        shapeShared = false;
+    }
+
+    private static int[] resize(int[] array, int capacity) {
+        return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    // The shapes as they are now, for a save or export on another thread to read while this store changes. Costs
+    // nothing up front: the view shares the arrays, and whichever side writes one first copies its group. Slots
+    // added past the view's size need no copy, so only moves, and slots given back or reused, pay for one.
+    // The owner may still set LIVE bits and order numbers in place; views do not read them.
+    ShapeStore freeze() {
+        placeShared = true;
+        shapeShared = true;
+        return new ShapeStore(this);
+    }
+
+    private void ownPlace() {
+        if (placeShared) {
+            x = x.clone();
+            y = y.clone();
+            placeShared = false;
+        }
+    }
+
+    private void ownShape() {
+        if (shapeShared) {
+            w = w.clone();
+            h = h.clone();
+            fromX = fromX.clone();
+            fromY = fromY.clone();
+            toX = toX.clone();
+            toY = toY.clone();
+            argb = argb.clone();
+            order = order.clone();
+            stroke = stroke.clone();
+            type = type.clone();
+            flags = flags.clone();
+            shapeShared = false;
+        }
+    }
+
+    // Slots handed out so far; live handles are all below this.
+    int size() {
+        return size;
+    }
+
+    // A new slot for a shape dragged from (x1, y1) to (x2, y2); shapeType indexes CanvasOp.SHAPES.
+    int add(int shapeType, int color, float strokeWidth, int x1, int y1, int x2, int y2) {
+        int handle = take();
+        int left, top, right, bottom;
+        int n = CanvasOp.corners(shapeType, x1, y1, x2, y2, xs, ys);
+        if (n > 0) {
+            left = right = xs[0];
+            top = bottom = ys[0];
+            for (int i = 1; i < n; i++) {
+                left = Math.min(left, xs[i]);
+                right = Math.max(right, xs[i]);
+                top = Math.min(top, ys[i]);
+                bottom = Math.max(bottom, ys[i]);
+            }
+        } else {
+            int width = Math.abs(x2 - x1), height = Math.abs(y2 - y1);
+            int side = shapeType == CIRCLE ? Math.max(width, height) : shapeType == SQUARE ? Math.min(width, height)
+                    : -1;
+            left = Math.min(x1, x2);
+            top = Math.min(y1, y2);
+            right = left + (side < 0 ? width : side);
+            bottom = top + (side < 0 ? height : side);
+        }
+        x[handle] = left;
+        y[handle] = top;
+        w[handle] = right - left;
+        h[handle] = bottom - top;
+        fromX[handle] = x1 - left;
+        fromY[handle] = y1 - top;
+        toX[handle] = x2 - left;
+        toY[handle] = y2 - top;
+        argb[handle] = color;
+        colors[handle] = null;
+        stroke[handle] = strokeWidth;
+        type[handle] = (byte) shapeType;
+        return handle;
+    }
+
+    // A new slot for the shape a SHAPE op outlines.
+    int add(CanvasOp op) {
+        return add(op.shape, op.argb, op.width, op.x1, op.y1, op.x2, op.y2);
+    }
+
+    // A new slot holding what handle holds in from.
+    int add(ShapeStore from, int handle) {
+        int to = take();
+        x[to] = from.x[handle];
+        y[to] = from.y[handle];
+        w[to] = from.w[handle];
+        h[to] = from.h[handle];
+        fromX[to] = from.fromX[handle];
+        fromY[to] = from.fromY[handle];
+        toX[to] = from.toX[handle];
+        toY[to] = from.toY[handle];
+        argb[to] = from.argb[handle];
+        colors[to] = from.colors != null ? from.colors[handle] : null;
+        order[to] = from.order[handle];
+        stroke[to] = from.stroke[handle];
+        type[to] = from.type[handle];
+        flags[to] = from.flags[handle];
+        return to;
+    }
+
+    private int take() {
+        if (freeCount > 0) {
+            ownPlace(); // The slot may be one a frozen view shows
+            ownShape();
+            return free[--freeCount];
+        }
+        if (size == x.length) {
+            allocate(x.length + (x.length >> 1) + 16);
+        }
+        return size++; // Past every frozen view's size, so the arrays may stay shared
+    }
+
+    // The slot may be handed out again; views of it then show the new shape.
+    void release(int handle) {
+        dropSprite(handle);
+        ownShape();
+        flags[handle] = 0;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, 2 * free.length);
+        }
+        free[freeCount++] = handle;
+    }
+
+    void move(int handle, int newX, int newY) {
+        ownPlace();
+        x[handle] = newX;
+        y[handle] = newY;
+    }
+
+    private int pad(int handle) {
+        return (int) Math.ceil(stroke[handle] / 2) + 2; // As CanvasOp.bounds pads
+    }
+
+    // Edges of the painted area, stroke included; right and bottom are exclusive.
+    int left(int handle) {
+        return x[handle] - pad(handle);
+    }
+
+    int top(int handle) {
+        return y[handle] - pad(handle);
+    }
+
+    int right(int handle) {
+        return x[handle] + w[handle] + pad(handle);
+    }
+
+    int bottom(int handle) {
+        return y[handle] + h[handle] + pad(handle);
+    }
+
+    CanvasOp toOp(int handle) {
+        return CanvasOp.shape(CanvasOp.SHAPES[type[handle]], new Color(argb[handle], true), stroke[handle],
+                x[handle] + fromX[handle], y[handle] + fromY[handle], x[handle] + toX[handle],
+                y[handle] + toY[handle]);
+    }
+
+    // True if the canvas point is on the outline, or inside it for a filled shape.
+    boolean hits(int handle, int px, int py) {
+        if (px < left(handle) || py < top(handle) || px >= right(handle) || py >= bottom(handle)) {
+            return false;
+        }
+        boolean filled = (flags[handle] & FILLED) != 0;
+        double reach = Math.max(stroke[handle], 6) / 2.0; // Thin outlines are hard to land on exactly
+        int left = x[handle], top = y[handle], right = left + w[handle], bottom = top + h[handle];
+        int n = corners(handle);
+        if (n > 0) {
+            return filled ? insidePolygon(n, px, py) : nearPolygon(n, px, py, reach);
+        }
+        if (type[handle] == CIRCLE) {
+            double a = w[handle] / 2.0, b = h[handle] / 2.0;
+            double dx = px - (left + a), dy = py - (top + b);
+            if (a == 0 || b == 0) {
+                return Math.hypot(dx, dy) <= reach;
+            }
+            double radius = Math.sqrt((dx * dx) / (a * a) + (dy * dy) / (b * b)); // 1 on the outline
+            return filled ? radius <= 1 : Math.abs(radius - 1) * Math.min(a, b) <= reach;
+        }
+        if (filled) {
+            return px >= left && px < right && py >= top && py < bottom;
+        }
+        boolean inOuter = px >= left - reach && px < right + reach && py >= top - reach && py < bottom + reach;
+        boolean inInner = px >= left + reach && px < right - reach && py >= top + reach && py < bottom - reach;
+        return inOuter && !inInner;
+    }
+
+    // Corners of handle's outline into xs and ys; 0 for rectangles, squares and circles.
+    private int corners(int handle) {
+        return CanvasOp.corners(type[handle], x[handle] + fromX[handle], y[handle] + fromY[handle],
+                x[handle] + toX[handle], y[handle] + toY[handle], xs, ys);
+    }
+
+    private boolean insidePolygon(int n, int px, int py) {
+        boolean inside = false;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if ((ys[i] > py) != (ys[j] > py)
+                    && px < (double) (xs[j] - xs[i]) * (py - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private boolean nearPolygon(int n, int px, int py, double reach) {
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double sx = xs[i] - xs[j], sy = ys[i] - ys[j];
+            double length = sx * sx + sy * sy;
+            double t = length == 0 ? 0 : Math.max(0, Math.min(1, ((px - xs[j]) * sx + (py - ys[j]) * sy) / length));
+            if (Math.hypot(px - (xs[j] + t * sx), py - (ys[j] + t * sy)) <= reach) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The outline in canvas coordinates, in scratch that the next call reuses.
+    private java.awt.Shape outline(int handle) {
+        int n = corners(handle);
+        if (n > 0) {
+            polygon.reset();
+            for (int i = 0; i < n; i++) {
+                polygon.addPoint(xs[i], ys[i]);
+            }
+            return polygon;
+        }
+        if (type[handle] == CIRCLE) {
+            ellipse.setFrame(x[handle], y[handle], w[handle], h[handle]);
+            return ellipse;
+        }
+        rectangle.setBounds(x[handle], y[handle], w[handle], h[handle]);
+        return rectangle;
+    }
+
+    private void paint(int handle, Graphics2D g) {
+        g.setColor(color(handle));
+        if ((flags[handle] & FILLED) != 0) {
+            g.fill(outline(handle));
+        } else {
+            g.setStroke(stroke(stroke[handle]));
+            g.draw(outline(handle));
+        }
+    }
+
+    // The slot's colour, made once; painting then allocates nothing however often the colour changes.
+    private Color color(int handle) {
+        Color color = colors != null ? colors[handle] : null;
+        if (color == null) {
+            int slot = argb[handle] * 0x9E3779B9 >>> 24;
+            color = palette[slot];
+            if (color == null || color.getRGB() != argb[handle]) {
+                color = new Color(argb[handle], true);
+                palette[slot] = color;
+            }
+            if (colors != null) {
+                colors[handle] = color;
+            }
+        }
+        return color;
+    }
+
+    private BasicStroke stroke(float width) {
+        int slot = Float.floatToIntBits(width) * 0x9E3779B9 >>> 26;
+        BasicStroke stroke = strokes[slot];
+        if (stroke == null || stroke.getLineWidth() != width) {
+            stroke = new BasicStroke(width);
+            strokes[slot] = stroke;
+        }
+        return stroke;
+    }
+
+    // Starts a frame on screen; cached pixels drawn since are kept first when over budget.
+    void nextFrame() {
+        frame++;
+    }
+
+    // Draws on screen through transform, which is g's and must stay as it is. From cached pixels when transform
+    // only scales and translates and the shape is big enough on screen to be worth keeping.
+    void draw(int handle, Graphics2D g, AffineTransform transform) {
+        if (sprites == null) { // A frozen view drawn on screen after all
+            sprites = new BufferedImage[x.length];
+            spriteScales = new double[x.length];
+            spriteFrames = new int[x.length];
+            colors = new Color[x.length];
+        }
+        double scale = transform.getScaleX();
+        int pad = pad(handle);
+        double width = (w[handle] + 2.0 * pad) * scale, height = (h[handle] + 2.0 * pad) * scale;
+        if (transform.getShearX() != 0 || transform.getShearY() != 0 || scale != transform.getScaleY()
+                || Math.min(width, height) < MIN_SPRITE_SIDE) {
+            if (scale == transform.getScaleY() && transform.getShearX() == 0 && transform.getShearY() == 0
+                    && stroke[handle] * scale <= 1) {
+                drawThin(handle, g, transform, scale);
+            } else {
+                paint(handle, g);
+            }
+            return;
+        }
+        BufferedImage pixels = sprites[handle];
+        if (pixels == null || spriteScales[handle] != scale) {
+            dropSprite(handle);
+            long bytes = 4L * (long) Math.ceil(width) * (long) Math.ceil(height);
+            if (spriteBytes + bytes > SPRITE_BUDGET && evictedFrame != frame) {
+                evictSprites();
+                evictedFrame = frame;
+            }
+            if (spriteBytes + bytes > SPRITE_BUDGET) {
+                paint(handle, g); // This frame alone is over budget
+                return;
+            }
+            pixels = rasterize(handle, scale, null);
+            sprites[handle] = pixels;
+            spriteScales[handle] = scale;
+            spriteBytes += bytes;
+        }
+        spriteFrames[handle] = frame;
+        translation.setToTranslation(Math.round((x[handle] - pad) * scale + transform.getTranslateX()),
+                Math.round((y[handle] - pad) * scale + transform.getTranslateY()));
+        g.setTransform(translation);
+        g.drawImage(pixels, 0, 0, null);
+        g.setTransform(transform);
+    }
+
+    // A shape a few pixels across with a stroke under a pixel, drawn in whole device pixels with a one pixel line,
+    // which is what Java2D makes of it anyway; the int primitives take a path through Java2D that allocates nothing.
+    private void drawThin(int handle, Graphics2D g, AffineTransform transform, double scale) {
+        double dx = transform.getTranslateX(), dy = transform.getTranslateY();
+        boolean filled = (flags[handle] & FILLED) != 0;
+        translation.setToIdentity();
+        g.setTransform(translation);
+        g.setColor(color(handle));
+        g.setStroke(THIN);
+        int n = corners(handle);
+        if (n > 0) {
+            for (int i = 0; i < n; i++) {
+                xs[i] = (int) Math.round(xs[i] * scale + dx);
+                ys[i] = (int) Math.round(ys[i] * scale + dy);
+            }
+            if (filled) {
+                g.fillPolygon(xs, ys, n);
+            } else {
+                g.drawPolygon(xs, ys, n);
+            }
+        } else {
+            int left = (int) Math.round(x[handle] * scale + dx), top = (int) Math.round(y[handle] * scale + dy);
+            int width = (int) Math.round((x[handle] + w[handle]) * scale + dx) - left;
+            int height = (int) Math.round((y[handle] + h[handle]) * scale + dy) - top;
+            if (type[handle] == CIRCLE) { // drawOval would go through shapes; this small, a polygon looks the same
+                for (int i = 0; i < OVAL_POINTS; i++) {
+                    ovalXs[i] = (int) Math.round(left + width * (1 + COS[i]) / 2);
+                    ovalYs[i] = (int) Math.round(top + height * (1 + SIN[i]) / 2);
+                }
+                if (filled) {
+                    g.fillPolygon(ovalXs, ovalYs, OVAL_POINTS);
+                } else {
+                    g.drawPolygon(ovalXs, ovalYs, OVAL_POINTS);
+                }
+            } else if (filled) {
+                g.fillRect(left, top, width, height);
+            } else {
+                g.drawRect(left, top, width, height);
+            }
+        }
+        g.setTransform(transform);
+    }
+
+    // Draws as rasterized on its own at scale 1, onto g which may only translate by whole pixels. Java2D strokes
+    // a little differently near the edge of the clip, so exports that draw in bands use this to get the same
+    // pixels in every band. Safe to call from several threads.
+    void drawPixels(int handle, Graphics2D g) {
+        int pad = pad(handle);
+        BufferedImage pixels = sprites != null ? sprites[handle] : null;
+        if (pixels != null && spriteScales[handle] == 1) {
+            g.drawImage(pixels, x[handle] - pad, y[handle] - pad, null);
+            return;
+        }
+        BufferedImage[] scratch = scratchImage.get();
+        int width = w[handle] + 2 * pad, height = h[handle] + 2 * pad;
+        if (scratch[0] == null || scratch[0].getWidth() < width || scratch[0].getHeight() < height) {
+            scratch[0] = new BufferedImage(Math.max(width, scratch[0] != null ? scratch[0].getWidth() : 0),
+                    Math.max(height, scratch[0] != null ? scratch[0].getHeight() : 0), BufferedImage.TYPE_INT_ARGB);
+        }
+        rasterize(handle, 1, scratch[0]);
+        g.drawImage(scratch[0], x[handle] - pad, y[handle] - pad, x[handle] - pad + width, y[handle] - pad + height,
+                0, 0, width, height, null);
+    }
+
+    // Draws straight from the geometry through whatever transform g has.
+    void drawGeometry(int handle, Graphics2D g) {
+        paint(handle, g);
+    }
+
+    // The shape's painted area at scale into the top left of into, cleared first, or into a new image.
+    private synchronized BufferedImage rasterize(int handle, double scale, BufferedImage into) {
+        int pad = pad(handle);
+        int width = Math.max(1, (int) Math.ceil((w[handle] + 2 * pad) * scale));
+        int height = Math.max(1, (int) Math.ceil((h[handle] + 2 * pad) * scale));
+        BufferedImage image = into != null ? into : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        if (into != null) {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, width, height);
+            g.setComposite(AlphaComposite.SrcOver);
+        }
+        g.scale(scale, scale);
+        g.translate(pad - x[handle], pad - y[handle]);
+        paint(handle, g);
+        g.dispose();
+        return image;
+    }
+
+    private void dropSprite(int handle) {
+        if (sprites != null && sprites[handle] != null) {
+            spriteBytes -= 4L * sprites[handle].getWidth() * sprites[handle].getHeight();
+            sprites[handle] = null;
+        }
+    }
+
+    // Drops the cached pixels of every shape not drawn in this frame.
+    private void evictSprites() {
+        for (int i = 0; i < size; i++) {
+            if (sprites[i] != null && spriteFrames[i] != frame) {
+                dropSprite(i);
+            }
+        }
+    }
+}
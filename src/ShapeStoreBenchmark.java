@@ -0,0 +1,100 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Heap taken per shape, and time and bytes allocated per pick and per frame,
+ * for a scene of a million shapes kept in a {@link ShapeStore}. Frames are
+ * 1600x1000 views drawn into an image at a few zoom levels; what Java2D
+ * allocates while drawing counts too.
+ * <p>
+ * Usage: java ShapeStoreBenchmark [shapes] [picks]
+ */
+public class ShapeStoreBenchmark {
+
+    private static final int CANVAS = 20000; // Side of the square canvas the shapes are spread over
+    private static final String[] TYPES = { "Rectangle", "Circle", "Square", "Triangle", "Star", "Pentagon",
+        "Hexagon" };
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int picks = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        Random random = new Random(42);
+        List<CanvasOp> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(CANVAS), y = random.nextInt(CANVAS);
+            ops.add(CanvasOp.shape(TYPES[random.nextInt(TYPES.length)], new Color(random.nextInt()),
+                    1 + random.nextInt(3), x, y, x + 10 + random.nextInt(110), y + 10 + random.nextInt(110)));
+        }
+        int[] points = new int[2 * picks];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(CANVAS);
+        }
+        BufferedImage frame = new BufferedImage(1600, 1000, BufferedImage.TYPE_INT_ARGB);
+
+        System.out.printf("%d shapes over %dx%d, %d picks%n", count, CANVAS, CANVAS, picks);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            boolean report = round == 1;
+            long before = usedHeap();
+            long start = System.nanoTime();
+            ShapeScene scene = new ShapeScene(1, ops);
+            long built = System.nanoTime() - start;
+            long heap = usedHeap() - before;
+            if (report) {
+                System.out.printf("%-28s %12.1f ms  %d bytes/shape%n", "build", built / 1e6, heap / count);
+            }
+
+            int hits = 0;
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < picks; i++) {
+                hits += scene.pickHandle(points[2 * i], points[2 * i + 1]) >= 0 ? 1 : 0;
+            }
+            print(report, "pick", System.nanoTime() - start, threads.getCurrentThreadAllocatedBytes() - allocated,
+                    picks, hits + " hits");
+
+            for (double zoom : new double[] { 1, 0.25, 0.05 }) {
+                int width = (int) Math.ceil(frame.getWidth() / zoom);
+                int height = (int) Math.ceil(frame.getHeight() / zoom);
+                Rectangle view = new Rectangle(random.nextInt(Math.max(1, CANVAS - width)),
+                        random.nextInt(Math.max(1, CANVAS - height)), width, height);
+                Graphics2D g = frame.createGraphics();
+                g.scale(zoom, zoom);
+                g.translate(-view.x, -view.y);
+                scene.drawTo(g, view); // Rasterizes the cached pixels for this zoom
+                int frames = zoom < 0.1 ? 5 : 20;
+                allocated = threads.getCurrentThreadAllocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    scene.drawTo(g, view);
+                }
+                print(report, String.format("frame at zoom %.2f", zoom), System.nanoTime() - start,
+                        threads.getCurrentThreadAllocatedBytes() - allocated, frames, "");
+                g.dispose();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void print(boolean report, String name, long nanos, long bytes, int operations, String note) {
+        if (report) {
+            System.out.printf("%-28s %12.3f us/op %10d bytes/op  %s%n", name, nanos / 1e3 / operations,
+                    bytes / operations, note);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Fixed-size ring of brush points queued by mouse drags between two stroke
+ * ticks. Points are kept in primitive arrays so queuing allocates nothing,
+ * and each drain records how many events went into one polyline and how long
+ * the oldest of them waited.
+ */
+public class StrokeBuffer {
+
+    private final int[] xs;
+    private final int[] ys;
+    private final long[] queuedAt; // System.nanoTime() when each point arrived
+    private final int mask;
+    private int head = 0; // Next point to drain
+    private int size = 0;
+
+    private long events = 0;
+    private long batches = 0;
+    private long latencyNanos = 0;
+    private long maxLatencyNanos = 0;
+
+    // Capacity is rounded up to a power of two.
+    public StrokeBuffer(int capacity) {
+        int rounded = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        xs = new int[rounded];
+        ys = new int[rounded];
+        queuedAt = new long[rounded];
+        mask = rounded - 1;
+    }
+
+    // Returns false when the ring is full; the caller should drain and retry.
+    public boolean add(int x, int y, long nanos) {
+        if (size == xs.length) {
+            return false;
+        }
+        int slot = (head + size) & mask;
+        xs[slot] = x;
+        ys[slot] = y;
+        queuedAt[slot] = nanos;
+        size++;
+        events++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return xs.length;
+    }
+
+    // Moves every queued point into the arrays starting at offset and returns how many were moved.
+    public int drainTo(int[] outXs, int[] outYs, int offset) {
+        int count = size;
+        if (count == 0) {
+            return 0;
+        }
+        long latency = System.nanoTime() - queuedAt[head];
+        latencyNanos += latency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+        batches++;
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) & mask;
+            outXs[offset + i] = xs[slot];
+            outYs[offset + i] = ys[slot];
+        }
+        head = (head + count) & mask;
+        size = 0;
+        return count;
+    }
+
+    // Drag events per rasterized polyline.
+    public double getCoalescingRatio() {
+        return batches == 0 ? 0 : (double) events / batches;
+    }
+
+    // Average time from the oldest queued event of a batch to its rasterization.
+    public double getAverageLatencyMillis() {
+        return batches == 0 ? 0 : latencyNanos / 1e6 / batches;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    public void resetStats() {
+        events = 0;
+        batches = 0;
+        latencyNanos = 0;
+        maxLatencyNanos = 0;
+    }
+}
@@ -0,0 +1,298 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Undo/redo history for the canvas that only keeps the tiles an edit touched.
+ * Drawing code calls {@link #touch(Rectangle)} before it paints an area, which
+ * shares each tile under it with the history the first time it is written, and
+ * {@link #commit()} turns those tiles into one undoable edit. Because the
+ * surface copies shared tiles on write, touching a tile costs no pixel copy.
+ * <p>
+ * The history is bounded by bytes rather than by a fixed count. Edits that are
+ * not next in line for undo or redo are deflated on a background thread, and
+ * the oldest edits are dropped once the stored bytes exceed the budget.
+ */
+public class TileHistory implements CanvasHistory {
+
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TileHistory-compressor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final long byteBudget;
+    private final int maxEdits;
+    private TiledSurface surface;
+
+    private final Map<Integer, BufferedImage> pending = new LinkedHashMap<>(); // Tile index -> tile before the edit
+    private final List<TileEdit> edits = new ArrayList<>();
+    private int appliedEdits = 0; // Edits [0, appliedEdits) are currently on the canvas
+
+    private long storedBytes = 0; // What the edits occupy now, compressed or not
+    private long rawBytes = 0; // What the same edits would occupy uncompressed
+
+    public TileHistory(long byteBudget, int maxEdits) {
+        this.byteBudget = byteBudget;
+        this.maxEdits = maxEdits;
+    }
+
+    @Override
+    public synchronized void reset(TiledSurface surface) {
+        this.surface = surface;
+        pending.clear();
+        while (!edits.isEmpty()) {
+            evict(edits.size() - 1);
+        }
+        appliedEdits = 0;
+    }
+
+    @Override
+    public synchronized long getHistoryBytes() {
+        return storedBytes;
+    }
+
+    public synchronized long getUncompressedBytes() {
+        return rawBytes;
+    }
+
+    // Uncompressed size over stored size; 1.0 while nothing has been compressed yet.
+    @Override
+    public synchronized double getCompressionRatio() {
+        return storedBytes == 0 ? 1.0 : (double) rawBytes / storedBytes;
+    }
+
+    public synchronized int getEditCount() {
+        return edits.size();
+    }
+
+    @Override
+    public void record(CanvasOp op, Rectangle area) {
+        touch(area);
+    }
+
+    // Keeps every tile under the area that has not been kept yet in this edit.
+    public synchronized void touch(Rectangle area) {
+        if (surface == null || area == null) {
+            return;
+        }
+        for (int index : surface.tilesIn(area)) {
+            if (!pending.containsKey(index)) {
+                pending.put(index, surface.shareTile(index));
+            }
+        }
+    }
+
+    // Records the touched tiles as one edit. Returns false if nothing was touched.
+    @Override
+    public synchronized boolean commit() {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        while (edits.size() > appliedEdits) { // A new edit discards the redo branch
+            evict(edits.size() - 1);
+        }
+        int[] tiles = new int[pending.size()];
+        BufferedImage[] images = new BufferedImage[pending.size()];
+        int i = 0;
+        for (Map.Entry<Integer, BufferedImage> entry : pending.entrySet()) {
+            tiles[i] = entry.getKey();
+            images[i] = entry.getValue();
+            i++;
+        }
+        pending.clear();
+        TileEdit edit = new TileEdit(tiles, images);
+        edits.add(edit);
+        storedBytes += edit.bytes;
+        rawBytes += edit.rawBytes;
+        appliedEdits = edits.size();
+        trimToBudget();
+        scheduleCompression();
+        return true;
+    }
+
+    @Override
+    public synchronized Rectangle undo() {
+        commit();
+        if (appliedEdits == 0) {
+            return null;
+        }
+        appliedEdits--;
+        Rectangle changed = swap(edits.get(appliedEdits));
+        scheduleCompression();
+        return changed;
+    }
+
+    @Override
+    public synchronized Rectangle redo() {
+        commit();
+        if (appliedEdits == edits.size()) {
+            return null;
+        }
+        appliedEdits++;
+        Rectangle changed = swap(edits.get(appliedEdits - 1));
+        scheduleCompression();
+        return changed;
+    }
+
+    public synchronized boolean canUndo() {
+        return appliedEdits > 0 || !pending.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return appliedEdits < edits.size() && pending.isEmpty();
+    }
+
+    // Exchanges the stored tiles with the ones on the surface, so the same edit serves undo and redo.
+    private Rectangle swap(TileEdit edit) {
+        Rectangle changed = null;
+        synchronized (edit) {
+            if (edit.images == null) {
+                decompress(edit);
+            }
+            long bytes = 0;
+            for (int i = 0; i < edit.tiles.length; i++) {
+                BufferedImage current = surface.shareTile(edit.tiles[i]);
+                surface.setTile(edit.tiles[i], edit.images[i]);
+                edit.images[i] = current;
+                bytes += TiledSurface.isBlank(current) ? 0 : TiledSurface.TILE_BYTES;
+                Rectangle tile = surface.tileBounds(edit.tiles[i]);
+                changed = changed == null ? tile : changed.union(tile);
+            }
+            storedBytes += bytes - edit.bytes;
+            rawBytes += bytes - edit.rawBytes;
+            edit.bytes = bytes;
+            edit.rawBytes = bytes;
+            edit.version++;
+        }
+        return changed;
+    }
+
+    // Drops the oldest undoable edits until both the byte budget and the depth limit hold.
+    private void trimToBudget() {
+        while (appliedEdits > 1 && (storedBytes > byteBudget || edits.size() > maxEdits)) {
+            evict(0);
+            appliedEdits--;
+        }
+    }
+
+    private void evict(int index) {
+        TileEdit edit = edits.remove(index);
+        synchronized (edit) {
+            edit.evicted = true;
+            storedBytes -= edit.bytes;
+            rawBytes -= edit.rawBytes;
+        }
+    }
+
+    // Queues every raw edit except the two next to the undo cursor, which stay ready for a quick swap.
+    private void scheduleCompression() {
+        for (int i = 0; i < edits.size(); i++) {
+            TileEdit edit = edits.get(i);
+            if (i == appliedEdits - 1 || i == appliedEdits || edit.queued) {
+                continue;
+            }
+            synchronized (edit) {
+                if (edit.images == null || edit.rawBytes == 0) {
+                    continue;
+                }
+                edit.queued = true;
+            }
+            compressor.execute(() -> compress(edit));
+        }
+    }
+
+    // Runs on the compressor thread. Locks are always taken history first, then edit.
+    private void compress(TileEdit edit) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[][] packed = new byte[edit.tiles.length][];
+        long packedBytes = 0;
+        int version;
+        try {
+            synchronized (edit) {
+                edit.queued = false;
+                if (edit.evicted || edit.images == null) {
+                    return;
+                }
+                version = edit.version;
+                for (int i = 0; i < edit.tiles.length; i++) {
+                    if (TiledSurface.isBlank(edit.images[i])) {
+                        continue; // Stays null; the shared blank tile costs nothing
+                    }
+                    packed[i] = TiledSurface.deflate(edit.images[i], deflater);
+                    packedBytes += packed[i].length;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        synchronized (this) {
+            synchronized (edit) {
+                if (edit.evicted || edit.version != version) { // Swapped while we were deflating
+                    return;
+                }
+                storedBytes += packedBytes - edit.bytes;
+                edit.compressed = packed;
+                edit.images = null;
+                edit.bytes = packedBytes;
+            }
+            trimToBudget();
+        }
+    }
+
+    // Called with both the history and the edit locked.
+    private void decompress(TileEdit edit) {
+        Inflater inflater = new Inflater();
+        try {
+            BufferedImage[] images = new BufferedImage[edit.tiles.length];
+            for (int i = 0; i < edit.tiles.length; i++) {
+                if (edit.compressed[i] == null) {
+                    images[i] = surface.getBlankTile();
+                    continue;
+                }
+                images[i] = TiledSurface.inflate(ByteBuffer.wrap(edit.compressed[i]), inflater);
+            }
+            edit.images = images;
+            edit.compressed = null;
+            storedBytes += edit.rawBytes - edit.bytes;
+            edit.bytes = edit.rawBytes;
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt undo history", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Everything but tiles is guarded by the edit's own lock.
+    private static class TileEdit {
+        final int[] tiles; // Tile indices, row-major across the surface
+        BufferedImage[] images; // Tiles on the other side of the edit, null while compressed
+        byte[][] compressed; // Deflated tiles, null entries for blank ones; null while raw
+        long rawBytes; // Footprint of images, not counting blank tiles
+        long bytes; // Current footprint of images or compressed
+        int version; // Bumped by every swap so a stale compression is discarded
+        boolean queued;
+        boolean evicted;
+
+        TileEdit(int[] tiles, BufferedImage[] images) {
+            this.tiles = tiles;
+            this.images = images;
+            long size = 0;
+            for (BufferedImage image : images) {
+                size += TiledSurface.isBlank(image) ? 0 : TiledSurface.TILE_BYTES;
+            }
+            this.rawBytes = size;
+            this.bytes = size;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Canvas pixels stored as 128x128 ARGB tiles that are allocated on first
+ * write. Every tile that was never painted, or was cleared, is the same
+ * shared white tile, so memory follows the painted area rather than the
+ * document size.
+ * <p>
+ * Tiles handed out through {@link #shareTile(int)} or {@link #snapshot()} are
+ * treated as read-only: the next write to that position paints a copy.
+ * <p>
+ * Layers above the background are transparent surfaces: their unpainted
+ * tiles are a shared clear tile instead, and erasing clears to transparent.
+ * <p>
+ * A surface opened from a project starts with its stored tiles unloaded; a
+ * null slot stands for the tile as stored and is loaded on first use. Null
+ * slots can also appear in snapshots, where they mean the same thing.
+ */
+public class TiledSurface implements PixelSource {
+
+    // Supplies stored tiles the first time they are needed; may be called from any thread.
+    public interface TileLoader {
+        BufferedImage load(int index);
+    }
+
+    public static final int TILE_SIZE = 128;
+    public static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private static final BufferedImage BLANK = newTile(); // Shared by every tile that holds only white
+    private static final BufferedImage CLEAR = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+
+    private final int width, height;
+    private final boolean transparent;
+    private final BufferedImage blank; // BLANK, or CLEAR for a transparent surface
+    private final int tilesAcross, tilesDown;
+    private final BufferedImage[] tiles;
+    private final boolean[] shared; // Also referenced elsewhere; copy before writing
+    private final Graphics2D[] painters; // Graphics for tiles we own, translated to document coordinates
+    private final Graphics2D metrics; // Only used to measure text
+    private TileLoader loader; // For null slots; null if every tile is in memory
+
+    public TiledSurface(int width, int height) {
+        this(width, height, false);
+    }
+
+    public TiledSurface(int width, int height, boolean transparent) {
+        this.width = width;
+        this.height = height;
+        this.transparent = transparent;
+        this.blank = transparent ? CLEAR : BLANK;
+        this.tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new BufferedImage[tilesAcross * tilesDown];
+        this.shared = new boolean[tiles.length];
+        this.painters = new Graphics2D[tiles.length];
+        Arrays.fill(tiles, blank);
+        this.metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    }
+
+    // Surface whose stored tiles are left unloaded until something reads or paints them.
+    public TiledSurface(int width, int height, boolean transparent, boolean[] stored, TileLoader loader) {
+        this(width, height, transparent);
+        this.loader = loader;
+        for (int i = 0; i < tiles.length; i++) {
+            if (stored[i]) {
+                tiles[i] = null;
+            }
+        }
+    }
+
+    // A white tile that nothing else references.
+    public static BufferedImage newTile() {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        g.dispose();
+        return tile;
+    }
+
+    // True for the shared white and clear tiles, whichever kind of surface holds them.
+    public static boolean isBlank(BufferedImage tile) {
+        return tile == BLANK || tile == CLEAR;
+    }
+
+    public static BufferedImage blankTile() {
+        return BLANK;
+    }
+
+    // The tile's ARGB ints, big-endian and deflated: how projects, the autosave journal and the undo history
+    // store tiles.
+    public static byte[] deflate(BufferedImage tile) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            return deflate(tile, deflater);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // As deflate(tile), reusing a BEST_SPEED deflater across a run of tiles.
+    public static byte[] deflate(BufferedImage tile, Deflater deflater) {
+        int[] pixels = (int[]) tile.getRaster().getDataElements(0, 0, TILE_SIZE, TILE_SIZE, null);
+        ByteBuffer raw = ByteBuffer.allocate(TILE_BYTES);
+        raw.asIntBuffer().put(pixels);
+        deflater.reset();
+        deflater.setInput(raw.array());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    // A new tile from what deflate made of one.
+    public static BufferedImage inflate(ByteBuffer data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            return inflate(data, inflater);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // As inflate(data), reusing an inflater across a run of tiles.
+    public static BufferedImage inflate(ByteBuffer data, Inflater inflater) throws IOException {
+        byte[] raw = new byte[TILE_BYTES];
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != raw.length) {
+                throw new IOException("Truncated tile");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt tile", e);
+        }
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        tile.getRaster().setDataElements(0, 0, TILE_SIZE, TILE_SIZE, pixels);
+        return tile;
+    }
+
+    // The tile this surface starts out with everywhere.
+    public BufferedImage getBlankTile() {
+        return blank;
+    }
+
+    public boolean isTransparent() {
+        return transparent;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTilesAcross() {
+        return tilesAcross;
+    }
+
+    public int getTileCount() {
+        return tiles.length;
+    }
+
+    // Painted tiles in memory; stored tiles not loaded yet do not count.
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (BufferedImage tile : tiles) {
+            if (tile != blank && tile != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Part of the document covered by the tile; edge tiles are clipped to the document size.
+    public Rectangle tileBounds(int index) {
+        int x = (index % tilesAcross) * TILE_SIZE;
+        int y = (index / tilesAcross) * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    // Tile indices under the area, row-major; empty if the area misses the document.
+    public int[] tilesIn(Rectangle area) {
+        Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return new int[0];
+        }
+        int firstX = r.x / TILE_SIZE;
+        int firstY = r.y / TILE_SIZE;
+        int lastX = (r.x + r.width - 1) / TILE_SIZE;
+        int lastY = (r.y + r.height - 1) / TILE_SIZE;
+        int[] indices = new int[(lastX - firstX + 1) * (lastY - firstY + 1)];
+        int i = 0;
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                indices[i++] = ty * tilesAcross + tx;
+            }
+        }
+        return indices;
+    }
+
+    // Area the op will paint, measured the same way DrawingCanvas measures it.
+    public Rectangle bounds(CanvasOp op) {
+        return op.bounds(metrics);
+    }
+
+    // Paints the op into every tile under area, allocating or copying tiles as needed.
+    public void apply(CanvasOp op, Rectangle area) {
+        if (op.getType() == CanvasOp.FILTER) {
+            applyFilter(op.getFilter(), area);
+            return;
+        }
+        for (int index : tilesIn(area)) {
+            Rectangle tile = tileBounds(index);
+            if (op.getType() == CanvasOp.CLEAR && area.contains(tile)) {
+                replaceTile(index, blank); // Whole tile goes blank; drop it instead of painting it
+                shared[index] = false;
+                continue;
+            }
+            Graphics2D g = painter(index);
+            if (transparent && (op.getType() == CanvasOp.ERASE || op.getType() == CanvasOp.CLEAR)) {
+                Composite paint = g.getComposite();
+                g.setComposite(AlphaComposite.Clear); // Erase to transparent rather than to white
+                op.apply(g);
+                g.setComposite(paint);
+            } else {
+                op.apply(g);
+            }
+        }
+    }
+
+    // Filters area one strip of tile rows at a time. Strips read their context from a frozen copy, so the rows
+    // a strip has already written are not filtered twice by the next.
+    private void applyFilter(ImageFilter filter, Rectangle area) {
+        Rectangle surface = new Rectangle(0, 0, width, height);
+        area = area.intersection(surface);
+        int radius = filter.getRadius();
+        TiledSurface source = radius > 0 ? copy() : this;
+        int[] src = new int[0], dst = new int[0];
+        int[] row = new int[TILE_SIZE];
+        for (int top = area.y, bottom; top < area.y + area.height; top = bottom) {
+            bottom = Math.min(area.y + area.height, (top / TILE_SIZE + 1) * TILE_SIZE);
+            Rectangle strip = new Rectangle(area.x, top, area.width, bottom - top);
+            Rectangle context = new Rectangle(strip);
+            context.grow(radius, radius);
+            context = context.intersection(surface);
+            if (src.length < context.width * context.height) {
+                src = new int[context.width * context.height];
+                dst = new int[src.length];
+            }
+            source.readPixels(context, src);
+            FilterEngine.shared().filter(filter, src, dst, context.width, context.height);
+            for (int index : tilesIn(strip)) {
+                painter(index); // Makes the tile this surface's own
+                Rectangle tile = tileBounds(index);
+                Rectangle r = tile.intersection(strip);
+                for (int y = r.y; y < r.y + r.height; y++) {
+                    System.arraycopy(dst, (y - context.y) * context.width + (r.x - context.x), row, 0, r.width);
+                    tiles[index].getRaster().setDataElements(r.x - tile.x, y - tile.y, r.width, 1, row);
+                }
+            }
+        }
+    }
+
+    // Returns the tile and marks it read-only, so later writes go to a copy.
+    public BufferedImage shareTile(int index) {
+        BufferedImage tile = tile(index);
+        shared[index] = true;
+        return tile;
+    }
+
+    // Installs a tile that the caller may keep referencing.
+    public void setTile(int index, BufferedImage tile) {
+        replaceTile(index, tile);
+        shared[index] = true;
+    }
+
+    // Current tiles by reference, with null for stored tiles not loaded yet; costs one array copy no matter
+    // how large the document is.
+    public BufferedImage[] snapshot() {
+        Arrays.fill(shared, true);
+        return tiles.clone();
+    }
+
+    // A second surface over the same tiles; whichever writes to a tile first gets its own copy.
+    public TiledSurface copy() {
+        TiledSurface copy = new TiledSurface(width, height, transparent);
+        copy.loader = loader;
+        copy.restore(snapshot());
+        return copy;
+    }
+
+    public void restore(BufferedImage[] snapshot) {
+        for (int i = 0; i < tiles.length; i++) {
+            replaceTile(i, snapshot[i]);
+        }
+        Arrays.fill(shared, true);
+    }
+
+    // Draws the tiles under area in document coordinates.
+    public void drawTo(Graphics2D g, Rectangle area) {
+        for (int index : tilesIn(area)) {
+            Rectangle tile = tileBounds(index);
+            if (tiles[index] == BLANK) {
+                g.setColor(Color.WHITE);
+                g.fillRect(tile.x, tile.y, tile.width, tile.height);
+            } else if (tiles[index] != CLEAR) {
+                g.drawImage(tile(index), tile.x, tile.y, tile.x + tile.width, tile.y + tile.height, 0, 0,
+                        tile.width, tile.height, null);
+            }
+        }
+    }
+
+    @Override
+    public void readPixels(Rectangle area, int[] out) {
+        if (!new Rectangle(0, 0, width, height).contains(area)) {
+            Arrays.fill(out, 0, area.width * area.height, 0);
+        }
+        int[] row = new int[TILE_SIZE];
+        for (int index : tilesIn(area)) {
+            Rectangle tile = tileBounds(index);
+            Rectangle r = tile.intersection(area);
+            for (int y = r.y; y < r.y + r.height; y++) {
+                tile(index).getRaster().getDataElements(r.x - tile.x, y - tile.y, r.width, 1, row);
+                System.arraycopy(row, 0, out, (y - area.y) * area.width + (r.x - area.x), r.width);
+            }
+        }
+    }
+
+    @Override
+    public boolean isBlank(Rectangle area) {
+        return !transparent && isUnpainted(area);
+    }
+
+    // True if every tile under area is still this surface's blank tile, white or clear.
+    public boolean isUnpainted(Rectangle area) {
+        for (int index : tilesIn(area)) {
+            if (tiles[index] != blank) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Flattens the whole document into one image. Only for documents that fit in memory as a single image.
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        drawTo(g, new Rectangle(0, 0, width, height));
+        g.dispose();
+        return image;
+    }
+
+    // Graphics for a tile only this surface references, copying or allocating the tile first if needed.
+    private Graphics2D painter(int index) {
+        BufferedImage tile = tile(index);
+        if (tile == BLANK) {
+            tile = newTile();
+        } else if (tile == CLEAR) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        } else if (shared[index]) {
+            BufferedImage copy = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            copy.getRaster().setRect(tile.getRaster());
+            tile = copy;
+        } else if (painters[index] != null) {
+            return painters[index];
+        }
+        replaceTile(index, tile);
+        shared[index] = false;
+        Rectangle bounds = tileBounds(index);
+        Graphics2D g = tile.createGraphics();
+        g.translate(-bounds.x, -bounds.y);
+        painters[index] = g;
+        return g;
+    }
+
+    // The tile at index, loading it if it is still in storage. Loaded tiles are shared with the loader.
+    private BufferedImage tile(int index) {
+        if (tiles[index] == null) {
+            tiles[index] = loader.load(index);
+            shared[index] = true;
+        }
+        return tiles[index];
+    }
+
+    private void replaceTile(int index, BufferedImage tile) {
+        if (tiles[index] != tile && painters[index] != null) {
+            painters[index].dispose();
+            painters[index] = null;
+        }
+        tiles[index] = tile;
+    }
+}
@@ -0,0 +1,161 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PixelKernels} on the incubating Vector API: each loop handles as many
+ * pixels per step as the CPU's preferred vector holds ints, with floats in
+ * vectors of the same shape so one int vector converts to exactly one float
+ * vector. Pixels past the last whole vector go through the scalar code.
+ * <p>
+ * Only loaded by {@link PixelKernels#get()}, which falls back to the scalar
+ * kernels when the JVM was started without the jdk.incubator.vector module.
+ */
+final class VectorPixelKernels extends PixelKernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, INTS.vectorShape());
+
+    @Override
+    public String getName() {
+        return "vector (" + INTS.length() + " lanes)";
+    }
+
+    @Override
+    public void unpack(int[] argb, int from, int count, float[] planes, int at, int stride, boolean premultiply) {
+        int i = 0;
+        for (int end = INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector p = IntVector.fromArray(INTS, argb, from + i);
+            FloatVector a = toFloats(p.lanewise(VectorOperators.LSHR, 24));
+            FloatVector r = channel(p, 16), g = channel(p, 8), b = channel(p, 0);
+            if (premultiply) {
+                FloatVector alpha = a.mul(1 / 255f);
+                r = r.mul(alpha);
+                g = g.mul(alpha);
+                b = b.mul(alpha);
+            }
+            a.intoArray(planes, at + i);
+            r.intoArray(planes, at + stride + i);
+            g.intoArray(planes, at + 2 * stride + i);
+            b.intoArray(planes, at + 3 * stride + i);
+        }
+        super.unpack(argb, from + i, count - i, planes, at + i, stride, premultiply);
+    }
+
+    @Override
+    public void pack(float[] planes, int at, int stride, int count, int[] argb, int to, boolean unpremultiply) {
+        int i = 0;
+        for (int end = INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector a = toInts(FloatVector.fromArray(FLOATS, planes, at + i));
+            FloatVector r = FloatVector.fromArray(FLOATS, planes, at + stride + i);
+            FloatVector g = FloatVector.fromArray(FLOATS, planes, at + 2 * stride + i);
+            FloatVector b = FloatVector.fromArray(FLOATS, planes, at + 3 * stride + i);
+            if (unpremultiply) {
+                FloatVector alpha = toFloats(a);
+                FloatVector scale = FloatVector.broadcast(FLOATS, 255f).div(alpha)
+                        .blend(0f, alpha.compare(VectorOperators.EQ, 0f));
+                r = r.mul(scale);
+                g = g.mul(scale);
+                b = b.mul(scale);
+            }
+            a.lanewise(VectorOperators.LSHL, 24).or(toInts(r).lanewise(VectorOperators.LSHL, 16))
+                    .or(toInts(g).lanewise(VectorOperators.LSHL, 8)).or(toInts(b)).intoArray(argb, to + i);
+        }
+        super.pack(planes, at + i, stride, count - i, argb, to + i, unpremultiply);
+    }
+
+    @Override
+    public void blend(int[] source, int[] backdrop, int from, int count, float opacity) {
+        int opacity256 = Math.round(opacity * 256);
+        int i = from;
+        for (int end = from + INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector s = IntVector.fromArray(INTS, source, i);
+            IntVector sa = s.lanewise(VectorOperators.LSHR, 24).mul(opacity256).lanewise(VectorOperators.ASHR, 8);
+            VectorMask<Integer> visible = sa.compare(VectorOperators.NE, 0);
+            if (!visible.anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(INTS, backdrop, i);
+            IntVector da = d.lanewise(VectorOperators.LSHR, 24);
+            // Where the backdrop is clear or the source opaque the source replaces it, as in the scalar code
+            VectorMask<Integer> replace = da.compare(VectorOperators.EQ, 0).or(sa.compare(VectorOperators.EQ, 255));
+            FloatVector as = toFloats(sa).mul(1 / 255f);
+            FloatVector bs = toFloats(da).mul(1 / 255f).mul(as.neg().add(1f));
+            FloatVector ao = as.add(bs);
+            FloatVector scale = FloatVector.broadcast(FLOATS, 1f).div(ao);
+            IntVector mixed = toInts(ao.mul(255f)).lanewise(VectorOperators.LSHL, 24)
+                    .or(toInts(mix(channel(s, 16), channel(d, 16), as, bs, scale)).lanewise(VectorOperators.LSHL, 16))
+                    .or(toInts(mix(channel(s, 8), channel(d, 8), as, bs, scale)).lanewise(VectorOperators.LSHL, 8))
+                    .or(toInts(mix(channel(s, 0), channel(d, 0), as, bs, scale)));
+            IntVector replaced = sa.lanewise(VectorOperators.LSHL, 24).or(s.and(0xffffff));
+            d.blend(mixed, visible).blend(replaced, visible.and(replace)).intoArray(backdrop, i);
+        }
+        super.blend(source, backdrop, i, from + count - i, opacity);
+    }
+
+    @Override
+    public void brightnessContrast(int[] src, int[] dst, int from, int count, float brightness, float contrast) {
+        float offset = 127.5f - 127.5f * contrast + brightness * 255;
+        int i = from;
+        for (int end = from + INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector p = IntVector.fromArray(INTS, src, i);
+            p.and(0xff000000)
+                    .or(toInts(channel(p, 16).fma(contrast, offset)).lanewise(VectorOperators.LSHL, 16))
+                    .or(toInts(channel(p, 8).fma(contrast, offset)).lanewise(VectorOperators.LSHL, 8))
+                    .or(toInts(channel(p, 0).fma(contrast, offset))).intoArray(dst, i);
+        }
+        super.brightnessContrast(src, dst, i, from + count - i, brightness, contrast);
+    }
+
+    @Override
+    public void toRgbaBytes(int[] argb, int from, int count, byte[] out, int at, boolean alpha) {
+        if (!alpha) {
+            super.toRgbaBytes(argb, from, count, out, at, false); // Three bytes a pixel do not fill whole lanes
+            return;
+        }
+        int i = 0;
+        for (int end = INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector p = IntVector.fromArray(INTS, argb, from + i);
+            // ARGB to ABGR, whose little-endian bytes are R, G, B, A
+            p.and(0xff00ff00).or(p.lanewise(VectorOperators.LSHR, 16).and(0xff))
+                    .or(p.and(0xff).lanewise(VectorOperators.LSHL, 16)).reinterpretAsBytes()
+                    .intoArray(out, at + 4 * i);
+        }
+        super.toRgbaBytes(argb, from + i, count - i, out, at + 4 * i, true);
+    }
+
+    @Override
+    public void copy(int[] src, int from, int[] dst, int to, int count, boolean opaque) {
+        if (!opaque) {
+            System.arraycopy(src, from, dst, to, count);
+            return;
+        }
+        int i = 0;
+        for (int end = INTS.loopBound(count); i < end; i += INTS.length()) {
+            IntVector.fromArray(INTS, src, from + i).or(0xff000000).intoArray(dst, to + i);
+        }
+        super.copy(src, from + i, dst, to + i, count - i, true);
+    }
+
+    // The 0..255 channel at shift, as floats.
+    private static FloatVector channel(IntVector p, int shift) {
+        return toFloats(p.lanewise(VectorOperators.LSHR, shift).and(0xff));
+    }
+
+    private static FloatVector mix(FloatVector source, FloatVector backdrop, FloatVector as, FloatVector bs,
+            FloatVector scale) {
+        return source.mul(as).add(backdrop.mul(bs)).mul(scale);
+    }
+
+    private static FloatVector toFloats(IntVector v) {
+        return (FloatVector) v.convertShape(VectorOperators.I2F, FLOATS, 0);
+    }
+
+    // Clamps to 0..255 and rounds. Adding 2^23 leaves the rounded value in the low mantissa bits, which is
+    // much faster than an F2I conversion where that is not intrinsified; halves round to even, not up.
+    private static IntVector toInts(FloatVector v) {
+        return v.max(0f).min(255f).add(8388608f).reinterpretAsInts().and(0xff);
+    }
+}